@@ -27,7 +27,6 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.charset.Charset;
 import java.security.GeneralSecurityException;
-import java.security.cert.PKIXCertPathBuilderResult;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -45,6 +44,8 @@ import be.nabu.libs.resources.file.FileItem;
 import be.nabu.libs.resources.zip.ZIPArchive;
 import be.nabu.libs.triton.TritonLocalConsole.TritonConsoleInstance;
 import be.nabu.libs.triton.impl.PackageDescription;
+import be.nabu.libs.triton.impl.ProfileKeys;
+import be.nabu.libs.triton.impl.TrustIndex;
 import be.nabu.utils.codec.TranscoderUtils;
 import be.nabu.utils.codec.api.Transcoder;
 import be.nabu.utils.codec.impl.Base64Decoder;
@@ -55,10 +56,8 @@ import be.nabu.utils.io.ContentTypeMap;
 import be.nabu.utils.io.IOUtils;
 import be.nabu.utils.io.api.ByteBuffer;
 import be.nabu.utils.io.api.ReadableContainer;
-import be.nabu.utils.security.BCSecurityUtils;
 import be.nabu.utils.security.KeyStoreHandler;
 import be.nabu.utils.security.SecurityUtils;
-import be.nabu.utils.security.SignatureType;
 
 public class Triton {
 	
@@ -313,7 +312,7 @@ public class Triton {
 			byte[] decoded = decode(signature);
 			ReadableContainer<ByteBuffer> readable = file.getReadable();
 			try {
-				if (!SecurityUtils.verify(IOUtils.toInputStream(readable), decoded, author.getPublicKey(), SignatureType.SHA512WITHRSA)) {
+				if (!ProfileKeys.verify(IOUtils.toInputStream(readable), decoded, author.getPublicKey())) {
 					System.err.println("Invalid signature for file: " + path);
 					return false;
 				}
@@ -331,25 +330,10 @@ public class Triton {
 		}
 	}
 	
-	// TODO: validate that this works with correct chains etc, currently it has only been tested with self signed single ones
+	// the trust index checks the certificate itself, our own keys and then the chain against the trusted certificates that could have issued it
 	public static boolean isTrusted(X509Certificate [] chain, KeyStoreHandler keystore) {
 		try {
-			// if we trust the certificate itself, we good
-			// otherwise we check the chain
-			if (keystore.getCertificates().values().contains(chain[0])) {
-				return true;
-			}
-			// check if it matches a private key that we have
-			for (X509Certificate [] potential : keystore.getPrivateKeys().values()) {
-				if (potential[0].equals(chain[0])) {
-					return true;
-				}
-			}
-			PKIXCertPathBuilderResult validateCertificateChain = BCSecurityUtils.validateCertificateChain(chain, keystore.getCertificates().values().toArray(new X509Certificate[0]));
-			if (validateCertificateChain == null) {
-				return false;
-			}
-			return true;
+			return TrustIndex.getIndex(keystore).isTrusted(chain);
 		}
 		catch (GeneralSecurityException e) {
 			if (DEBUG) {
@@ -371,6 +355,7 @@ public class Triton {
 			if (author != null) {
 				KeyStoreHandler packagingKeystore = TritonLocalConsole.getPackagingKeystore();
 				if (!isTrusted(new X509Certificate[] { author }, packagingKeystore)) {
+					packagingKeystore = TritonLocalConsole.editPackagingKeystore();
 					try {
 						// adding an author is a big ask, you have to be sure so we take N by default
 						String result = console.getInputProvider().input("The author '" + TritonLocalConsole.getAlias(author) + "' is not trusted, do you want to add the author to your list of trusted authors? [y/N]: ", false, "y");
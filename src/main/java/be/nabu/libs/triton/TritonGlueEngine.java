@@ -19,6 +19,8 @@ package be.nabu.libs.triton;
 
 import java.io.IOException;
 import java.nio.charset.Charset;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import be.nabu.glue.api.ScriptRepository;
 import be.nabu.glue.core.api.MethodProvider;
@@ -28,6 +30,7 @@ import be.nabu.glue.core.impl.providers.SystemMethodProvider;
 import be.nabu.glue.core.repositories.ScannableScriptRepository;
 import be.nabu.glue.utils.MultipleRepository;
 import be.nabu.libs.resources.api.ResourceContainer;
+import be.nabu.libs.triton.impl.MethodCompletionIndex;
 import be.nabu.libs.triton.impl.TritonMethods;
 
 public class TritonGlueEngine {
@@ -35,6 +38,11 @@ public class TritonGlueEngine {
 	private MultipleRepository repository;
 	private boolean sandboxed;
 	private GlueParserProvider parserProvider;
+	// built when first needed and dropped whenever the available methods might have changed
+	private volatile MethodCompletionIndex methodIndex;
+	// bumped on every invalidation, an index that was built from an older generation is not kept
+	private volatile long methodGeneration;
+	private Lock methodLock = new ReentrantLock();
 	
 	public TritonGlueEngine(Triton triton, ResourceContainer<?>...scripts) {
 		try {
@@ -83,6 +91,10 @@ public class TritonGlueEngine {
 		catch (Exception e) {
 			throw new RuntimeException(e);
 		}
+		// an index built while we were reloading may be missing methods
+		finally {
+			invalidateMethodIndex();
+		}
 	}
 	
 	public void refresh() {
@@ -92,6 +104,20 @@ public class TritonGlueEngine {
 		catch (IOException e) {
 			throw new RuntimeException(e);
 		}
+		finally {
+			invalidateMethodIndex();
+		}
+	}
+	
+	private void invalidateMethodIndex() {
+		methodLock.lock();
+		try {
+			methodGeneration++;
+			methodIndex = null;
+		}
+		finally {
+			methodLock.unlock();
+		}
 	}
 
 	public ScriptRepository getRepository() {
@@ -113,4 +139,23 @@ public class TritonGlueEngine {
 	public MethodProvider[] getMethodProviders() {
 		return parserProvider.getMethodProviders(repository);
 	}
+	
+	public MethodCompletionIndex getMethodIndex() {
+		MethodCompletionIndex index = methodIndex;
+		if (index == null) {
+			long generation = methodGeneration;
+			index = new MethodCompletionIndex(getMethodProviders());
+			// if the methods changed while we were building, the next request builds it again
+			methodLock.lock();
+			try {
+				if (generation == methodGeneration) {
+					methodIndex = index;
+				}
+			}
+			finally {
+				methodLock.unlock();
+			}
+		}
+		return index;
+	}
 }
@@ -32,28 +32,57 @@ import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.NetworkInterface;
-import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
 import java.security.KeyPair;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.SecureRandom;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.X509Certificate;
+import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Pattern;
 
 import javax.net.ssl.KeyManager;
 import javax.net.ssl.SSLContext;
-import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
 import javax.net.ssl.SSLSocket;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.X509KeyManager;
@@ -64,10 +93,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import be.nabu.glue.api.InputProvider;
-import be.nabu.glue.api.MethodDescription;
-import be.nabu.glue.api.ParameterDescription;
 import be.nabu.glue.api.StreamProvider;
-import be.nabu.glue.core.api.MethodProvider;
 import be.nabu.glue.core.impl.executors.EvaluateExecutor;
 import be.nabu.glue.core.impl.parsers.GlueParserProvider;
 import be.nabu.glue.core.impl.providers.SystemMethodProvider;
@@ -80,12 +106,31 @@ import be.nabu.glue.utils.VirtualScript;
 import be.nabu.libs.authentication.api.Token;
 import be.nabu.libs.authentication.impl.BasicPrincipalImpl;
 import be.nabu.libs.triton.api.ConsoleSource;
+import be.nabu.libs.triton.impl.CoalescingOutputStream;
+import be.nabu.libs.triton.impl.ConsoleAdmissionControl;
+import be.nabu.libs.triton.impl.ConsoleChannelSource;
+import be.nabu.libs.triton.impl.ConsoleCompressionStatistics;
+import be.nabu.libs.triton.impl.ConsoleFrame;
+import be.nabu.libs.triton.impl.ConsoleFrame.FrameType;
+import be.nabu.libs.triton.impl.ConsoleFramer;
+import be.nabu.libs.triton.impl.ConsoleSessionRegistry;
 import be.nabu.libs.triton.impl.ConsoleSocketSource;
+import be.nabu.libs.triton.impl.ConsoleStatistics;
+import be.nabu.libs.triton.impl.DeferredTrustManager;
+import be.nabu.libs.triton.impl.DirectoryListingCache;
+import be.nabu.libs.triton.impl.DirectoryListingCache.FileEntry;
+import be.nabu.libs.triton.impl.HashedTimerWheel;
+import be.nabu.libs.triton.impl.MethodCompletionIndex;
+import be.nabu.libs.triton.impl.ParallelTransfer;
+import be.nabu.libs.triton.impl.PinnedTrustManager;
+import be.nabu.libs.triton.impl.ProfileKeys;
+import be.nabu.libs.triton.impl.ReloadableKeyManager;
+import be.nabu.libs.triton.impl.ReloadableTrustManager;
+import be.nabu.libs.triton.impl.TaggingOutputStream;
+import be.nabu.libs.triton.impl.TrustIndex;
 import be.nabu.utils.io.blocking.DeblockingInputStream;
 import be.nabu.utils.io.blocking.LoggingInputStream;
 import be.nabu.utils.security.AliasKeyManager;
-import be.nabu.utils.security.BCSecurityUtils;
-import be.nabu.utils.security.KeyPairType;
 import be.nabu.utils.security.KeyStoreHandler;
 import be.nabu.utils.security.RememberingTrustManager;
 import be.nabu.utils.security.SSLContextType;
@@ -102,16 +147,251 @@ public class TritonLocalConsole {
 	private boolean running;
 	private int maxConcurrentConsoles;
 	private ExecutorService threadPool;
-	private long consoleInstanceId;
+	// runs the commands of the channels on the framed protocol
+	private ExecutorService channelPool;
+	private AtomicLong consoleInstanceId = new AtomicLong();
 	private boolean clientAuth = true;
 	
 	// defaults to 1 hour
 	private static long timeout = Long.parseLong(System.getProperty("triton.timeout", "3600000"));
+	// the maximum duration of a session regardless of activity, defaults to unlimited
+	private static long sessionTimeout = Long.parseLong(System.getProperty("triton.sessionTimeout", "0"));
 	
-	private SSLServerSocket sslSocket;
+	private HashedTimerWheel<TritonConsoleInstance> reaper;
 	
-	private List<TritonConsoleInstance> instances = new ArrayList<TritonConsoleInstance>();
-	private Thread secureThread;
+	// whether we allow clients to negotiate compression
+	private static boolean compression = Boolean.parseBoolean(System.getProperty("triton.compression", "true"));
+	
+	// how many files we suggest at once
+	private static int maxFileSuggestions = Integer.parseInt(System.getProperty("triton.completion.maxFiles", "200"));
+	// the directory listings used for file completion, shared by all sessions
+	private DirectoryListingCache directoryListings;
+	
+	// the maximum amount of channels a single framed session can open
+	private static int maxChannels = Integer.parseInt(System.getProperty("triton.console.maxChannels", "16"));
+	
+	// whether plain sessions are read by the selector (rather than a thread blocking per session)
+	private static boolean nio = Boolean.parseBoolean(System.getProperty("triton.nio", "true"));
+	
+	// the selector that accepts for both listeners and reads for the selector-driven sessions
+	private Selector selector;
+	// the context used to layer ssl on top of accepted secure connections
+	private volatile SSLContext secureContext;
+	// the key and trust material of the secure context, these can be swapped without touching the context itself
+	private ReloadableKeyManager secureKeyManager;
+	private ReloadableTrustManager secureTrustManager;
+	// multiple keystore changes in quick succession (e.g. bulk adding users) are coalesced into a single reload
+	private static long reloadDelay = Long.parseLong(System.getProperty("triton.secure.reloadDelay", "250"));
+	private AtomicBoolean reloadPending = new AtomicBoolean();
+	private ScheduledExecutorService reloader;
+	
+	// whether we generate a missing server key in the background, the secure port opens once it is available
+	private static boolean pregenerate = Boolean.parseBoolean(System.getProperty("triton.keys.pregenerate", "false"));
+	// registrations with the selector must happen on the selector thread
+	private Queue<Runnable> pendingRegistrations = new ConcurrentLinkedQueue<Runnable>();
+	
+	// how many ssl sessions we keep around for resumption and for how long (in seconds)
+	private static int sslSessionCacheSize = Integer.parseInt(System.getProperty("triton.secure.sessionCacheSize", "1000"));
+	private static int sslSessionCacheTimeout = Integer.parseInt(System.getProperty("triton.secure.sessionCacheTimeout", "86400"));
+	
+	// the client context is reused for all connections in this process so sessions can be resumed
+	private static SSLContext clientContext;
+	private static DeferredTrustManager clientTrustManager;
+	
+	static {
+		// stateless resumption means the server does not need to remember every client, older jdks need this explicitly
+		if (System.getProperty("jdk.tls.server.enableSessionTicketExtension") == null) {
+			System.setProperty("jdk.tls.server.enableSessionTicketExtension", "true");
+		}
+		if (System.getProperty("jdk.tls.client.enableSessionTicketExtension") == null) {
+			System.setProperty("jdk.tls.client.enableSessionTicketExtension", "true");
+		}
+	}
+	
+	// the connected consoles, indexed by id, alias and remote address
+	private ConsoleSessionRegistry registry = new ConsoleSessionRegistry();
+	
+	private ConsoleAdmissionControl admission;
+	
+	// lines that look like "key: value"
+	private static final Pattern HEADER = Pattern.compile("^[\\s]*[\\w-]+[\\s]*:.*");
+	
+	private interface Negotiation {
+		public void negotiate(ConsoleSession session, String value) throws IOException, ParseException;
+	}
+	
+	private static Map<String, Negotiation> negotiations = new HashMap<String, Negotiation>();
+	
+	static {
+		negotiations.put("Negotiate-Response-End", new Negotiation() {
+			@Override
+			public void negotiate(ConsoleSession session, String value) {
+				session.responseEnd = value;
+				session.instance.setResponseEnd(value);
+			}
+		});
+		negotiations.put("Negotiate-File-Edit-End", new Negotiation() {
+			@Override
+			public void negotiate(ConsoleSession session, String value) {
+				session.fileEditEnd = value;
+				session.instance.setFileEditEnd(value);
+			}
+		});
+		negotiations.put("Negotiate-Input-End", new Negotiation() {
+			@Override
+			public void negotiate(ConsoleSession session, String value) {
+				session.inputEnd = value;
+				session.instance.setInputEnd(value);
+			}
+		});
+		negotiations.put("Negotiate-Password-End", new Negotiation() {
+			@Override
+			public void negotiate(ConsoleSession session, String value) {
+				session.passwordEnd = value;
+				session.instance.setPasswordEnd(value);
+			}
+		});
+		// turn on or off interactive mode
+		negotiations.put("Negotiate-Interactive", new Negotiation() {
+			@Override
+			public void negotiate(ConsoleSession session, String value) {
+				session.interactive = "true".equals(value);
+			}
+		});
+		negotiations.put("Negotiate-Protocol", new Negotiation() {
+			@Override
+			public void negotiate(ConsoleSession session, String value) throws IOException {
+				session.negotiateProtocol(value);
+			}
+		});
+		// run the commands on this channel with a pipeline of their own rather than the one of the session
+		negotiations.put("Negotiate-Pipeline", new Negotiation() {
+			@Override
+			public void negotiate(ConsoleSession session, String value) {
+				if ("isolated".equals(value)) {
+					session.current().isolate();
+				}
+			}
+		});
+		// compress what we send on the framed protocol, we answer with the algorithm we will use
+		negotiations.put("Negotiate-Compression", new Negotiation() {
+			@Override
+			public void negotiate(ConsoleSession session, String value) throws IOException {
+				if (session.framer != null && compression && Arrays.asList(value.toLowerCase().split("[\\s]*,[\\s]*")).contains("deflate")) {
+					session.current().writer.write("deflate\n");
+					session.framer.setCompression(true);
+				}
+			}
+		});
+		// clients that can answer chunked upload and download requests, this needs the framed protocol
+		negotiations.put("Negotiate-Transfer", new Negotiation() {
+			@Override
+			public void negotiate(ConsoleSession session, String value) throws IOException {
+				if (session.framer != null && "chunked".equalsIgnoreCase(value.trim())) {
+					session.current().writer.write("chunked\n");
+					session.instance.supportsTransfers = true;
+				}
+			}
+		});
+		// clients that can send back the changes to an edited file rather than the whole file
+		negotiations.put("Negotiate-Delta", new Negotiation() {
+			@Override
+			public void negotiate(ConsoleSession session, String value) throws IOException {
+				if (session.framer != null && "rolling".equalsIgnoreCase(value.trim())) {
+					session.current().writer.write("rolling\n");
+				}
+			}
+		});
+		// clients that can open additional connections for large transfers, the value is the maximum amount they want to open
+		negotiations.put("Negotiate-Parallel", new Negotiation() {
+			@Override
+			public void negotiate(ConsoleSession session, String value) throws IOException {
+				if (session.framer != null && session.instance.supportsTransfers) {
+					session.instance.parallelStreams = Math.max(0, Math.min(Integer.parseInt(value.trim()), ParallelTransfer.getMaxStreams()));
+					session.current().writer.write(session.instance.parallelStreams + "\n");
+				}
+			}
+		});
+		// clients that can show a file on the server page by page
+		negotiations.put("Negotiate-View", new Negotiation() {
+			@Override
+			public void negotiate(ConsoleSession session, String value) throws IOException {
+				if (session.framer != null && "paged".equalsIgnoreCase(value.trim())) {
+					session.current().writer.write("paged\n");
+					session.instance.supportsPaging = true;
+				}
+			}
+		});
+		// an additional connection for a transfer that was started on another console, once accepted, the connection only carries that transfer
+		negotiations.put("Join-Transfer", new Negotiation() {
+			@Override
+			public void negotiate(ConsoleSession session, String value) throws IOException {
+				session.joined = session.framer == null ? ParallelTransfer.accept(value.trim(), ParallelTransfer.getIdentity(session.source)) : null;
+				session.current().writer.write(session.joined == null ? "refused\n" : "ok\n");
+			}
+		});
+		// the value is the amount of lines that follow, they are run as a single script
+		negotiations.put("Submit-Script", new Negotiation() {
+			@Override
+			public void negotiate(ConsoleSession session, String value) throws IOException, ParseException {
+				session.submitScript(Integer.parseInt(value));
+			}
+		});
+		// every command starts with an id (followed by a space), every line of output and the end of the response are tagged with it
+		// because nothing can be asked of the user, commands can be sent without waiting for the response of the previous one
+		negotiations.put("Negotiate-Sequence", new Negotiation() {
+			@Override
+			public void negotiate(ConsoleSession session, String value) {
+				session.sequenced = "true".equals(value);
+				if (session.sequenced) {
+					session.interactive = false;
+				}
+			}
+		});
+		negotiations.put("Interact-Ping", new Negotiation() {
+			@Override
+			public void negotiate(ConsoleSession session, String value) throws IOException {
+				session.current().writer.write("Interact-Pong: " + value);
+			}
+		});
+		negotiations.put("Fetch-Meta", new Negotiation() {
+			@Override
+			public void negotiate(ConsoleSession session, String value) throws IOException {
+				if ("name".equalsIgnoreCase(value)) {
+					session.current().writer.write(getName() + "\n");
+				}
+			}
+		});
+		negotiations.put("Suggest-Method", new Negotiation() {
+			@Override
+			public void negotiate(ConsoleSession session, String value) throws IOException {
+				session.suggestMethods(value);
+			}
+		});
+		// the value is the version of the catalogue the client already has, if any
+		negotiations.put("Fetch-Methods", new Negotiation() {
+			@Override
+			public void negotiate(ConsoleSession session, String value) throws IOException {
+				session.fetchMethods(value);
+			}
+		});
+		negotiations.put("Suggest-File", new Negotiation() {
+			@Override
+			public void negotiate(ConsoleSession session, String value) throws IOException {
+				session.suggestFiles(value, 0, false);
+			}
+		});
+		// the value is "<offset>;<sort>;<what was typed so far>", the sort is either "name" or "recent"
+		negotiations.put("Suggest-File-Page", new Negotiation() {
+			@Override
+			public void negotiate(ConsoleSession session, String value) throws IOException {
+				String[] parts = value.split(";", 3);
+				if (parts.length == 3) {
+					session.suggestFiles(parts[2], Integer.parseInt(parts[0]), "recent".equals(parts[1]));
+				}
+			}
+		});
+	}
 	
 	public class TritonConsoleInstance implements AutoCloseable {
 		private Token token;
@@ -121,11 +401,24 @@ public class TritonLocalConsole {
 		private Date connected = new Date();
 		private InputProvider inputProvider;
 		private String responseEnd, inputEnd, passwordEnd, fileEditEnd;
+		private long idleTimeout, sessionTimeout;
+		// the pending timeout in the reaper
+		private volatile HashedTimerWheel.Timeout<TritonConsoleInstance> reaperTimeout;
+		// whether the console is currently executing something
+		private volatile boolean busy;
+		// set once the console switches to the framed protocol
+		private ConsoleFramer framer;
+		private ConsoleSession session;
+		private boolean supportsTransfers;
+		private int parallelStreams;
+		private boolean supportsPaging;
+		// the channel of the command that is running on the current thread
+		private ThreadLocal<Integer> channel = new ThreadLocal<Integer>();
 		
 		TritonConsoleInstance(ConsoleSource source, ScriptRuntime rootRuntime) {
 			this.source = source;
 			this.rootRuntime = rootRuntime;
-			this.id = consoleInstanceId++;
+			this.id = consoleInstanceId.getAndIncrement();
 		}
 		@Override
 		public void close() throws Exception {
@@ -143,7 +436,9 @@ public class TritonLocalConsole {
 			return token;
 		}
 		public void setToken(Token token) {
+			String previousAlias = this.token == null ? null : this.token.getName();
 			this.token = token;
+			registry.realias(this, previousAlias);
 		}
 		public ConsoleSource getSource() {
 			return source;
@@ -155,7 +450,7 @@ public class TritonLocalConsole {
 			this.inputProvider = inputProvider;
 		}
 		public boolean isSupportsFileEditing() {
-			return fileEditEnd != null;
+			return fileEditEnd != null || framer != null;
 		}
 		public String getResponseEnd() {
 			return responseEnd;
@@ -181,20 +476,115 @@ public class TritonLocalConsole {
 		public void setFileEditEnd(String fileEditEnd) {
 			this.fileEditEnd = fileEditEnd;
 		}
+		public Date getConnected() {
+			return connected;
+		}
+		public long getIdleTimeout() {
+			return idleTimeout;
+		}
+		public void setIdleTimeout(long idleTimeout) {
+			this.idleTimeout = idleTimeout;
+		}
+		public long getSessionTimeout() {
+			return sessionTimeout;
+		}
+		public void setSessionTimeout(long sessionTimeout) {
+			this.sessionTimeout = sessionTimeout;
+		}
+		public boolean isBusy() {
+			return busy;
+		}
+		public ConsoleFramer getFramer() {
+			return framer;
+		}
+		/**
+		 * Send all pending output of the current command, this must be done before writing to the source directly
+		 */
+		public void flush() throws IOException {
+			if (session != null) {
+				session.current().flush();
+			}
+		}
+		public boolean isSupportsTransfers() {
+			return supportsTransfers && framer != null;
+		}
+		public boolean isSupportsPaging() {
+			return supportsPaging && framer != null;
+		}
+		/**
+		 * The amount of additional connections the client can open for a large transfer
+		 */
+		public int getParallelStreams() {
+			return isSupportsTransfers() ? parallelStreams : 0;
+		}
+		/**
+		 * A large transfer can spread its chunks over additional connections of the same identity
+		 */
+		public ParallelTransfer newParallelTransfer() {
+			return getParallelStreams() > 0 ? new ParallelTransfer(ParallelTransfer.getIdentity(source), parallelStreams) : null;
+		}
+		public ConsoleCompressionStatistics getCompression() {
+			return framer == null ? null : framer.getStatistics();
+		}
+		public int getChannel() {
+			Integer channel = this.channel.get();
+			return channel == null ? 0 : channel;
+		}
 	}
 	
 	public TritonLocalConsole(Integer unsecurePort, Integer securePort, TritonGlueEngine engine, int maxConcurrentConsoles) {
 		this.unsecurePort = unsecurePort;
 		this.securePort = securePort;
 		this.engine = engine;
-		threadPool = Executors.newFixedThreadPool(maxConcurrentConsoles, new ThreadFactory() {
+		this.maxConcurrentConsoles = maxConcurrentConsoles;
+		threadPool = newVirtualThreadExecutor();
+		if (threadPool == null) {
+			threadPool = Executors.newFixedThreadPool(maxConcurrentConsoles, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread newThread = Executors.defaultThreadFactory().newThread(r);
+					newThread.setName("triton-console-instance");
+					return newThread;
+				}
+			});
+		}
+		else {
+			logger.info("Running triton consoles on virtual threads");
+		}
+		// the session thread of a framed session is always reading, the channels can't share the bounded pool with it
+		channelPool = threadPool instanceof ThreadPoolExecutor ? Executors.newCachedThreadPool(new ThreadFactory() {
 			@Override
 			public Thread newThread(Runnable r) {
 				Thread newThread = Executors.defaultThreadFactory().newThread(r);
-				newThread.setName("triton-console-instance");
+				newThread.setName("triton-console-channel");
 				return newThread;
 			}
-		});
+		}) : threadPool;
+		// with virtual threads the amount of threads is no longer what limits us
+		int maxActive = Integer.parseInt(System.getProperty("triton.console.maxActive", "" + (threadPool instanceof ThreadPoolExecutor ? maxConcurrentConsoles : 1000)));
+		int maxQueued = Integer.parseInt(System.getProperty("triton.console.maxQueued", "50"));
+		long queueTimeout = Long.parseLong(System.getProperty("triton.console.queueTimeout", "30000"));
+		long retryAfter = Long.parseLong(System.getProperty("triton.console.retryAfter", "5"));
+		admission = new ConsoleAdmissionControl(maxActive, maxQueued, queueTimeout, retryAfter);
+	}
+	
+	// sessions spend almost all their time blocked on input or on child processes, on newer jdks we give each one a virtual thread
+	// this is done through reflection so we can still run on java 8, where we fall back to the fixed pool
+	private static ExecutorService newVirtualThreadExecutor() {
+		if (!Boolean.parseBoolean(System.getProperty("triton.virtual", "true"))) {
+			return null;
+		}
+		try {
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "triton-console-instance-", 0l);
+			ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+			return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class).invoke(null, factory);
+		}
+		// either an older jdk or one where virtual threads are still a preview feature
+		catch (Exception e) {
+			return null;
+		}
 	}
 	
 	public static boolean isLocal(InetAddress address) {
@@ -211,26 +601,37 @@ public class TritonLocalConsole {
 	}
 	
 	public void start() {
+		boolean background = pregenerate && securePort != null && !hasPrivateKey(getProfile());
+		// start generating before the warmup so the two overlap
+		if (background) {
+			ProfileKeys.pregenerate(ProfileKeys.getKeyType(getProfile()));
+		}
 		runWarmup();
 		
 		running = true;
-		Thread unsecureThread = new Thread(new Runnable() {
+		try {
+			selector = Selector.open();
+			// because we don't require authentication, the unsecure listener is only for local addresses
+			if (unsecurePort != null) {
+				listen(unsecurePort, false);
+			}
+			if (securePort != null && background) {
+				startSecureInBackground();
+			}
+			else if (securePort != null) {
+				secureContext = newSecureContext();
+				listen(securePort, true);
+			}
+		}
+		catch (IOException e) {
+			logger.error("Could not start triton console server", e);
+			throw new RuntimeException(e);
+		}
+		Thread acceptorThread = new Thread(new Runnable() {
 			@Override
 			public void run() {
 				try {
-					try (ServerSocket socket = new ServerSocket(unsecurePort)) {
-						while (running) {
-							Socket accept = socket.accept();
-							// because we don't require authentication, it _must_ come from a local address to ensure you have access
-							// in the future we can expand upon this with some authentication scheme
-							if (!isLocal(accept.getInetAddress())) {
-								accept.close();
-							}
-							else {
-								start(new ConsoleSocketSource(accept, charset));
-							}
-						}
-					}
+					select();
 				}
 				catch (Exception e) {
 					logger.error("Triton console server stopped", e);
@@ -238,108 +639,257 @@ public class TritonLocalConsole {
 			}
 		});
 //		thread.setDaemon(true);
-		unsecureThread.setName("triton-cli-unsecure");
-		if (unsecurePort != null) {
-			unsecureThread.start();
-		}
+		acceptorThread.setName("triton-cli-acceptor");
+		acceptorThread.start();
 		
-		startSecureThread();
-		
-		startTimeoutChecker();
+		startReaper();
 	}
 	
-	private void startTimeoutChecker() {
+	private void startSecureInBackground() {
 		Thread thread = new Thread(new Runnable() {
 			@Override
 			public void run() {
-				List<TritonConsoleInstance> connections = getInstances();
-				if (!connections.isEmpty()) {
-					Date date = new Date();
-					for (TritonConsoleInstance source : connections) {
-						if (source.getSource().getLastRead().getTime() < date.getTime() - timeout) {
-							logger.info("Disconnecting inactive host #" + source.getId());
+				try {
+					secureContext = newSecureContext();
+					pendingRegistrations.add(new Runnable() {
+						@Override
+						public void run() {
 							try {
-								source.close();
+								listen(securePort, true);
+								logger.info("Secure console available on port " + securePort);
 							}
-							catch (Exception e) {
-								e.printStackTrace();
+							catch (IOException e) {
+								logger.error("Could not start the secure console", e);
 							}
 						}
-					}
+					});
+					selector.wakeup();
+				}
+				catch (Exception e) {
+					logger.error("Could not start the secure console", e);
 				}
 			}
 		});
+		thread.setName("triton-secure-start");
 		thread.setDaemon(true);
-		thread.setName("triton-timeout-checker");
 		thread.start();
 	}
-
-	public void restartSecureThread() {
-		startSecureThread();
+	
+	private static boolean hasPrivateKey(String profile) {
+		try {
+			return getAuthenticationKeystore().getPrivateKeyAliases().contains(profile);
+		}
+		catch (KeyStoreException e) {
+			return false;
+		}
 	}
 	
-	private void startSecureThread() {
-		if (sslSocket != null) {
-			try {
-				sslSocket.close();
+	private void listen(int port, boolean secure) throws IOException {
+		ServerSocketChannel server = ServerSocketChannel.open();
+		server.socket().bind(new InetSocketAddress(port));
+		server.configureBlocking(false);
+		server.register(selector, SelectionKey.OP_ACCEPT, secure);
+	}
+	
+	private void select() throws IOException {
+		// shared by all the sessions, data is copied into the session buffer immediately
+		ByteBuffer scratch = ByteBuffer.allocateDirect(16384);
+		while (running) {
+			selector.select();
+			Runnable registration;
+			while ((registration = pendingRegistrations.poll()) != null) {
+				registration.run();
 			}
-			catch (IOException e) {
-				// ignore
+			Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+			while (iterator.hasNext()) {
+				SelectionKey key = iterator.next();
+				iterator.remove();
+				try {
+					if (!key.isValid()) {
+						continue;
+					}
+					else if (key.isAcceptable()) {
+						accept((ServerSocketChannel) key.channel(), (Boolean) key.attachment());
+					}
+					else if (key.isReadable()) {
+						((ConsoleChannelSource) key.attachment()).fill(scratch);
+					}
+				}
+				catch (Exception e) {
+					logger.warn("Could not process selected key", e);
+					if (key.attachment() instanceof ConsoleChannelSource) {
+						try {
+							((ConsoleChannelSource) key.attachment()).close();
+						}
+						catch (Exception e1) {
+							// ignore
+						}
+					}
+				}
 			}
 		}
-		if (secureThread != null) {
-			try {
-				secureThread.join();
-			}
-			catch (Exception e) {
-				e.printStackTrace();
-				// ignore
+	}
+	
+	private void accept(ServerSocketChannel server, boolean secure) throws IOException {
+		SocketChannel channel = server.accept();
+		if (channel == null) {
+			return;
+		}
+		Socket socket = channel.socket();
+		// because we don't require authentication, it _must_ come from a local address to ensure you have access
+		// in the future we can expand upon this with some authentication scheme
+		if ((!secure || !clientAuth) && !isLocal(socket.getInetAddress())) {
+			channel.close();
+		}
+		else if (secure) {
+			// the handshake itself happens when the session starts, not on the selector thread
+			SSLSocket sslSocket = (SSLSocket) secureContext.getSocketFactory().createSocket(socket, socket.getInetAddress().getHostAddress(), socket.getPort(), true);
+			sslSocket.setUseClientMode(false);
+			sslSocket.setNeedClientAuth(clientAuth);
+			start(new ConsoleSocketSource(sslSocket, charset));
+		}
+		else if (nio) {
+			channel.configureBlocking(false);
+			ConsoleChannelSource source = new ConsoleChannelSource(channel, charset);
+			source.setKey(channel.register(selector, SelectionKey.OP_READ, source));
+			start(source);
+		}
+		else {
+			start(new ConsoleSocketSource(socket, charset));
+		}
+	}
+	
+	private void startReaper() {
+		// one second granularity is plenty for timeouts expressed in minutes or hours
+		reaper = new HashedTimerWheel<TritonConsoleInstance>(512, 1000, new HashedTimerWheel.TimeoutHandler<TritonConsoleInstance>() {
+			@Override
+			public void expired(TritonConsoleInstance instance) {
+				reap(instance);
 			}
-			secureThread = null;
+		});
+		reaper.start("triton-session-reaper");
+	}
+	
+	// the idle and session timeouts can be configured per user, e.g. "timeout.idle.admin" and "timeout.session.admin"
+	private void scheduleReaper(TritonConsoleInstance instance) {
+		String alias = instance.getToken() == null ? null : instance.getToken().getName();
+		instance.setIdleTimeout(getTimeout("timeout.idle", alias, timeout));
+		instance.setSessionTimeout(getTimeout("timeout.session", alias, sessionTimeout));
+		long deadline = getDeadline(instance, System.currentTimeMillis());
+		// without any timeout there is nothing to reap
+		if (deadline != Long.MAX_VALUE) {
+			instance.reaperTimeout = reaper.schedule(instance, deadline);
+		}
+	}
+	
+	private static long getTimeout(String key, String alias, long defaultValue) {
+		String value = Triton.getSetting(key, null);
+		if (alias != null) {
+			value = Triton.getSetting(key + "." + alias, value);
+		}
+		return value == null ? defaultValue : Long.parseLong(value);
+	}
+	
+	private static long getDeadline(TritonConsoleInstance instance, long now) {
+		// while something is running, the console is not idle
+		long idle = instance.getIdleTimeout() <= 0 ? Long.MAX_VALUE : (instance.isBusy() ? now : instance.getSource().getLastRead().getTime()) + instance.getIdleTimeout();
+		long session = instance.getSessionTimeout() <= 0 ? Long.MAX_VALUE : instance.getConnected().getTime() + instance.getSessionTimeout();
+		return Math.min(idle, session);
+	}
+	
+	private void reap(TritonConsoleInstance instance) {
+		if (instance.getSource().isClosed()) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		long deadline = getDeadline(instance, now);
+		if (deadline == Long.MAX_VALUE) {
+			return;
+		}
+		else if (deadline > now) {
+			instance.reaperTimeout = reaper.schedule(instance, deadline);
 		}
-		if (securePort != null) {
-			secureThread = new Thread(new Runnable() {
+		else {
+			logger.info("Disconnecting inactive host #" + instance.getId());
+			// closing can block (e.g. a tls close that the peer does not read), that should not hold up the other timeouts
+			channelPool.execute(new Runnable() {
 				@Override
 				public void run() {
 					try {
-						sslSocket = (SSLServerSocket) getContext().getServerSocketFactory().createServerSocket(securePort);
-						sslSocket.setNeedClientAuth(clientAuth);
-						while (running && !sslSocket.isClosed()) {
-							SSLSocket accept = (SSLSocket) sslSocket.accept();
-							// because we don't require authentication, it _must_ come from a local address to ensure you have access
-							// in the future we can expand upon this with some authentication scheme
-							if (!clientAuth && !isLocal(accept.getInetAddress())) {
-								accept.close();
-							}
-							else {
-								ConsoleSocketSource source = new ConsoleSocketSource(accept, charset);
-								// if we want client auth and don't get one, we don't even start this up
-								if (!clientAuth || source.getCertificate() != null) {
-									start(source);
-								}
-								else {
-									accept.close();
-								}
-							}
-						}
+						instance.close();
 					}
 					catch (Exception e) {
-						logger.error("Triton console server stopped: " + e.getMessage());
+						e.printStackTrace();
 					}
-					finally {
-						try {
-							sslSocket.close();
-						}
-						catch (Exception e) {
-							// ignore
+				}
+			});
+		}
+	}
+
+	private SSLContext newSecureContext() {
+		try {
+			secureKeyManager = new ReloadableKeyManager(getKeyManager(getProfile(), getDefaultKeyPassword(), true, getName()));
+			secureTrustManager = new ReloadableTrustManager(getTrustManager(getAuthenticationKeystore()));
+			SSLContext context = SSLContext.getInstance(SSLContextType.TLS.toString());
+			context.init(new KeyManager[] { secureKeyManager }, new TrustManager[] { secureTrustManager }, new SecureRandom());
+			configureSessions(context.getServerSessionContext());
+			return context;
+		}
+		catch (Exception e) {
+			logger.error("Could not get ssl context", e);
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/**
+	 * Schedules a reload of the key and trust material of the secure listener.
+	 * The listener and the context stay as they are, the next handshake simply uses the new material.
+	 */
+	public void reloadSecureContext() {
+		if (securePort == null || secureContext == null) {
+			return;
+		}
+		// if a reload is already pending, it will pick up this change as well
+		if (reloadPending.compareAndSet(false, true)) {
+			getReloader().schedule(new Runnable() {
+				@Override
+				public void run() {
+					reloadPending.set(false);
+					try {
+						secureKeyManager.setDelegate(getKeyManager(getProfile(), getDefaultKeyPassword(), true, getName()));
+						secureTrustManager.setDelegate(getTrustManager(getAuthenticationKeystore()));
+						// drop the cached sessions, session tickets are not in this cache but those are checked again when the console starts
+						SSLSessionContext sessions = secureContext.getServerSessionContext();
+						Enumeration<byte[]> ids = sessions.getIds();
+						while (ids.hasMoreElements()) {
+							SSLSession session = sessions.getSession(ids.nextElement());
+							if (session != null) {
+								session.invalidate();
+							}
 						}
+						logger.info("Reloaded the key and trust material of the secure console");
 					}
+					catch (Exception e) {
+						logger.error("Could not reload the key and trust material of the secure console", e);
+					}
+				}
+			}, reloadDelay, TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	private synchronized ScheduledExecutorService getReloader() {
+		if (reloader == null) {
+			reloader = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r);
+					thread.setName("triton-secure-reload");
+					thread.setDaemon(true);
+					return thread;
 				}
 			});
-	//		thread.setDaemon(true);
-			secureThread.setName("triton-cli-secure");
-			secureThread.start();
 		}
+		return reloader;
 	}
 	
 	public static String getProfile() {
@@ -404,11 +954,75 @@ public class TritonLocalConsole {
 	}
 	
 	public static SSLContext getContext() {
+		return getContext(getProfile(), getDefaultKeyPassword(), true);
+	}
+	
+	/**
+	 * The context used to connect to triton servers. It is created once, reusing it allows the sessions to be resumed on subsequent connections to the same host.
+	 * Unknown servers fail the handshake unless the socket is deferred with {@link #getClientTrustManager()}, in that case check it after the handshake.
+	 */
+	public static synchronized SSLContext getClientContext() {
+		if (clientContext == null) {
+			try {
+				DeferredTrustManager trustManager = new DeferredTrustManager(getTrustManager(getAuthenticationKeystore()));
+				SSLContext context = SSLContext.getInstance(SSLContextType.TLS.toString());
+				context.init(new KeyManager[] { getKeyManager(getProfile(), getDefaultKeyPassword(), true, getName()) }, new TrustManager[] { trustManager }, new SecureRandom());
+				configureSessions(context.getClientSessionContext());
+				clientTrustManager = trustManager;
+				clientContext = context;
+			}
+			catch (Exception e) {
+				logger.error("Could not get ssl context", e);
+				throw new RuntimeException(e);
+			}
+		}
+		return clientContext;
+	}
+	
+	public static synchronized DeferredTrustManager getClientTrustManager() {
+		return clientTrustManager;
+	}
+	
+	/**
+	 * A context that only trusts the given server certificate, use it for additional connections to a server we are already connected to
+	 */
+	public static SSLContext getPinnedClientContext(X509Certificate server) {
+		try {
+			SSLContext context = SSLContext.getInstance(SSLContextType.TLS.toString());
+			context.init(new KeyManager[] { getKeyManager(getProfile(), getDefaultKeyPassword(), true, getName()) }, new TrustManager[] { new PinnedTrustManager(server) }, new SecureRandom());
+			configureSessions(context.getClientSessionContext());
+			return context;
+		}
+		catch (Exception e) {
+			logger.error("Could not get ssl context", e);
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/**
+	 * Should be called when a server was added to the trusted certificates, otherwise the next connection to it would not trust it yet
+	 */
+	public static synchronized void refreshClientTrust() {
+		if (clientTrustManager != null) {
+			try {
+				clientTrustManager.setDelegate(getTrustManager(getAuthenticationKeystore()));
+			}
+			catch (Exception e) {
+				logger.error("Could not refresh the client trust material", e);
+			}
+		}
+	}
+	
+	private static void configureSessions(SSLSessionContext sessions) {
+		sessions.setSessionCacheSize(sslSessionCacheSize);
+		sessions.setSessionTimeout(sslSessionCacheTimeout);
+	}
+	
+	private static String getDefaultKeyPassword() {
 		// in server mode, we don't force a password
 		String defaultKeyPassword = Main.SERVER_MODE ? "triton-password" : null;
 		// it's too annoying to force clients to use a password every time?
-		String keyPassword = getKeyPassword(defaultKeyPassword);
-		return getContext(getProfile(), keyPassword, true);
+		return getKeyPassword(defaultKeyPassword);
 	}
 	
 	public static SSLContext getContext(String profile, String keyPassword, boolean authentication) {
@@ -417,13 +1031,27 @@ public class TritonLocalConsole {
 	
 	public static SSLContext getContext(String profile, String keyPassword, boolean authentication, String name) {
 		try {
+			SSLContext context = SSLContext.getInstance(SSLContextType.TLS.toString());
 			KeyStoreHandler keystore = authentication ? getAuthenticationKeystore() : getPackagingKeystore();
-			PrivateKey privateKey = keystore.getPrivateKey(profile, keyPassword);
+			context.init(new KeyManager[] { getKeyManager(profile, keyPassword, authentication, name) }, new TrustManager[] { getTrustManager(keystore) }, new SecureRandom());
+			return context;
+		}
+		catch (Exception e) {
+			logger.error("Could not get ssl context", e);
+			throw new RuntimeException(e);
+		}
+	}
+	
+	private static X509KeyManager getKeyManager(String profile, String keyPassword, boolean authentication, String name) {
+		try {
+			KeyStoreHandler keystore = authentication ? getAuthenticationKeystore() : getPackagingKeystore();
+			PrivateKey privateKey = keystore.getPrivateKey(profile, keyPassword);
 			// if we don't have a key yet, generate a self signed set
 			if (privateKey == null) {
-				KeyPair pair = SecurityUtils.generateKeyPair(KeyPairType.RSA, 4096);
+				keystore = authentication ? editAuthenticationKeystore() : editPackagingKeystore();
+				KeyPair pair = ProfileKeys.generate(ProfileKeys.getKeyType(profile));
 				X500Principal principal = SecurityUtils.createX500Principal(name, getOrganisation(), getOrganisationalUnit(), getLocality(), getState(), getCountry());
-				X509Certificate certificate = BCSecurityUtils.generateSelfSignedCertificate(pair, new Date(new Date().getTime() + (1000l * 60 * 60 * 24 * 365 * 100)), principal, principal);
+				X509Certificate certificate = ProfileKeys.generateSelfSignedCertificate(pair, principal, new Date(new Date().getTime() + (1000l * 60 * 60 * 24 * 365 * 100)));
 				keystore.set(profile, pair.getPrivate(), new X509Certificate[] { certificate }, keyPassword);
 				if (authentication) {
 					saveAuthentication(keystore);
@@ -439,44 +1067,12 @@ public class TritonLocalConsole {
 			KeyStoreHandler singleKey = KeyStoreHandler.create("test", StoreType.JKS);
 			singleKey.set(profile, privateKey, keystore.getPrivateKeys().get(profile), keyPassword);
 			
-			KeyManager[] keyManagers = singleKey.getKeyManagers(keyPassword);
-			for (int i = 0; i < keyManagers.length; i++) {
-				if (keyManagers[i] instanceof X509KeyManager) {
-					keyManagers[i] = new AliasKeyManager((X509KeyManager) keyManagers[i], profile);
-				}
-			}
-			SSLContext context = SSLContext.getInstance(SSLContextType.TLS.toString());
-			TrustManager[] trustManagers = keystore.getTrustManagers();
-			for (int i = 0; i < trustManagers.length; i++) {
-				if (trustManagers[i] instanceof X509TrustManager) {
-					trustManagers[i] = new RememberingTrustManager((X509TrustManager) trustManagers[i], new UntrustedHandler() {
-						@Override
-						public void handle(X509Certificate[] chain, boolean client, String authType) {
-							if (client) {
-								boolean store = Boolean.parseBoolean(Triton.getSetting("store.untrusted", "true"));
-								if (store) {
-									File folder = new File(Triton.getFolder(), "untrusted");
-									String fileName = chain[0].getSubjectX500Principal().toString().replaceAll("[^\\w]+", "_");
-									if (!folder.exists()) {
-										folder.mkdirs();
-									}
-									File file = new File(folder, fileName + ".crt");
-									try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
-										OutputStreamWriter outputStreamWriter = new OutputStreamWriter(out, "ASCII");
-										SecurityUtils.encodeCertificate(chain[0], outputStreamWriter);
-										outputStreamWriter.flush();
-									}
-									catch (Exception e) {
-										e.printStackTrace();
-									}
-								}
-							}
-						}
-					});
+			for (KeyManager keyManager : singleKey.getKeyManagers(keyPassword)) {
+				if (keyManager instanceof X509KeyManager) {
+					return new AliasKeyManager((X509KeyManager) keyManager, profile);
 				}
 			}
-			context.init(keyManagers, trustManagers, new SecureRandom());
-			return context;
+			throw new IllegalStateException("No X509 key manager available");
 		}
 		catch (UnrecoverableKeyException e) {
 			System.out.println("Could not unlock the key, did you provide the correct password?");
@@ -484,25 +1080,48 @@ public class TritonLocalConsole {
 			throw new RuntimeException(e);
 		}
 		catch (Exception e) {
-			logger.error("Could not get ssl context", e);
+			logger.error("Could not get key manager", e);
 			throw new RuntimeException(e);
 		}
 	}
 	
-	// doubtful that this is useful, this assumes the cert itself is installed, rather than for example a parent cert
-	public static String getValidatedAlias(X509Certificate certificate) {
-		if (certificate != null) {
-			try {
-				for (Map.Entry<String, X509Certificate> entry : TritonLocalConsole.getAuthenticationKeystore().getCertificates().entrySet()) {
-					if (entry.getValue().equals(certificate)) {
-						return getAlias(entry.getValue());
+	private static X509TrustManager getTrustManager(KeyStoreHandler keystore) throws KeyStoreException, NoSuchAlgorithmException {
+		for (TrustManager trustManager : keystore.getTrustManagers()) {
+			if (trustManager instanceof X509TrustManager) {
+				return new RememberingTrustManager((X509TrustManager) trustManager, new UntrustedHandler() {
+					@Override
+					public void handle(X509Certificate[] chain, boolean client, String authType) {
+						if (client) {
+							boolean store = Boolean.parseBoolean(Triton.getSetting("store.untrusted", "true"));
+							if (store) {
+								File folder = new File(Triton.getFolder(), "untrusted");
+								String fileName = chain[0].getSubjectX500Principal().toString().replaceAll("[^\\w]+", "_");
+								if (!folder.exists()) {
+									folder.mkdirs();
+								}
+								File file = new File(folder, fileName + ".crt");
+								try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+									OutputStreamWriter outputStreamWriter = new OutputStreamWriter(out, "ASCII");
+									SecurityUtils.encodeCertificate(chain[0], outputStreamWriter);
+									outputStreamWriter.flush();
+								}
+								catch (Exception e) {
+									e.printStackTrace();
+								}
+							}
+						}
 					}
-				}
-			}
-			catch (Exception e) {
-				throw new RuntimeException(e);
+				});
 			}
 		}
+		throw new IllegalStateException("No X509 trust manager available");
+	}
+	
+	// doubtful that this is useful, this assumes the cert itself is installed, rather than for example a parent cert
+	public static String getValidatedAlias(X509Certificate certificate) {
+		if (certificate != null && TrustIndex.getIndex(getAuthenticationKeystore()).getTrustedAlias(certificate) != null) {
+			return getAlias(certificate);
+		}
 		return null;
 	}
 
@@ -511,6 +1130,19 @@ public class TritonLocalConsole {
 		return parts.get("CN");
 	}
 	
+	// the parsed keystores are shared until the file on disk changes
+	private static Map<String, CachedKeystore> keystores = new ConcurrentHashMap<String, CachedKeystore>();
+	
+	private static class CachedKeystore {
+		private KeyStoreHandler handler;
+		private long lastModified, length;
+		CachedKeystore(KeyStoreHandler handler, long lastModified, long length) {
+			this.handler = handler;
+			this.lastModified = lastModified;
+			this.length = length;
+		}
+	}
+	
 	public static KeyStoreHandler getAuthenticationKeystore() {
 		return getKeystore("authentication");
 	}
@@ -519,9 +1151,39 @@ public class TritonLocalConsole {
 		return getKeystore("packaging");
 	}
 	
+	public static KeyStoreHandler editAuthenticationKeystore() {
+		return editKeystore("authentication");
+	}
+	
+	public static KeyStoreHandler editPackagingKeystore() {
+		return editKeystore("packaging");
+	}
+	
+	/**
+	 * The keystore returned here is shared and must not be modified, use {@link #editKeystore(String)} if you want to make changes.
+	 */
 	public static KeyStoreHandler getKeystore(String type) {
+		File store = new File(Triton.getFolder(), type + ".jks");
+		// we check the file before we read it, if it changes while we are reading, the next call will pick it up
+		long lastModified = store.lastModified();
+		long length = store.length();
+		CachedKeystore cached = keystores.get(type);
+		if (cached == null || cached.lastModified != lastModified || cached.length != length) {
+			cached = new CachedKeystore(loadKeystore(store), lastModified, length);
+			keystores.put(type, cached);
+		}
+		return cached.handler;
+	}
+	
+	/**
+	 * Returns a private copy of the keystore, changes become visible to everyone else once it is saved.
+	 */
+	public static KeyStoreHandler editKeystore(String type) {
+		return loadKeystore(new File(Triton.getFolder(), type + ".jks"));
+	}
+	
+	private static KeyStoreHandler loadKeystore(File store) {
 		try {
-			File store = new File(Triton.getFolder(), type + ".jks");
 			String password = getKeystorePassword();
 			KeyStoreHandler handler;
 			if (!store.exists()) {
@@ -548,12 +1210,14 @@ public class TritonLocalConsole {
 		save("packaging", keystore);
 	}
 	
-	public static void save(String name, KeyStoreHandler keystore) {
+	public static synchronized void save(String name, KeyStoreHandler keystore) {
 		try {
 			File store = new File(Triton.getFolder(), name + ".jks");
 			try (OutputStream output = new BufferedOutputStream(new FileOutputStream(store))) {
 				keystore.save(output, getKeystorePassword());
 			}
+			// the saved keystore becomes the shared one, no need to parse it again
+			keystores.put(name, new CachedKeystore(keystore, store.lastModified(), store.length()));
 		}
 		catch (Exception e) {
 			throw new RuntimeException(e);
@@ -593,356 +1257,863 @@ public class TritonLocalConsole {
 	// TODO: we probably need a way to negotiate non-interaction mode
 	// you want to be able to run unsupervised management scripts
 	public void start(ConsoleSource source) {
-		threadPool.submit(new Runnable() {
-			// these are deprecated and should be replaced with the values in the instance
-			private String responseEnd, inputEnd, passwordEnd, fileEditEnd;
-			
-			// whether or not this is an interactive session
-			private boolean interactive = true;
-
+		ConsoleSession session = new ConsoleSession(source);
+		if (source instanceof ConsoleChannelSource) {
+			// a parked session does not hold on to its slot, it needs a new one to continue
+			((ConsoleChannelSource) source).setResumer(new Runnable() {
+				@Override
+				public void run() {
+					admission.resume(source, new Runnable() {
+						@Override
+						public void run() {
+							threadPool.submit(session);
+						}
+					});
+				}
+			});
+		}
+		admission.admit(source, new Runnable() {
 			@Override
 			public void run() {
-				console.set(null);
-				// if we write the "input", our response does not stop with a linefeed
-				// anyone listening to end of line won't pick it up
-				ScriptRuntime runtime = null;
-				TritonConsoleInstance instance = null;
-				try {
-					SimpleExecutionEnvironment environment = new SimpleExecutionEnvironment("default");
-					environment.getParameters().put(EvaluateExecutor.DEFAULT_VARIABLE_NAME_PARAMETER, "$tmp");
-					DynamicScript dynamicScript = new DynamicScript(
-						engine.getRepository(), 
-						engine.getRepository().getParserProvider().newParser(engine.getRepository(), "dynamic.glue"));
-
-					runtime = new ScriptRuntime(dynamicScript, 
-						environment, 
-						false, 
-						null
-					);
-					instance = new TritonConsoleInstance(source, runtime);
-					console.set(instance);
-					logger.info("Triton console #" + instance.getId() + " connected");
-					instances.add(instance);
-					
-					// if you used a client certificate to gain access, we already established your identity
-					if (source instanceof ConsoleSocketSource) {
-						X509Certificate certificate = ((ConsoleSocketSource) source).getCertificate();
-						if (certificate != null) {
-							String alias = getAlias(certificate);
-							if (alias != null) {
-								instance.setToken(new BasicPrincipalImpl(alias, null));
-							}
-						}
-						// if you are local, you get admin powers 
-						else if (isLocal(((ConsoleSocketSource) source).getSocket().getInetAddress())) {
-							instance.setToken(new BasicPrincipalImpl("admin", null));
-						}
+				threadPool.submit(session);
+			}
+		});
+	}
+	
+	// a session is run on a thread from the pool until there is nothing left to read
+	// blocking sources keep their thread for the duration of the session, selector-driven sources park the session instead and give the thread back
+	private class ConsoleSession implements Runnable {
+		private ConsoleSource source;
+		// these are deprecated and should be replaced with the values in the instance
+		private String responseEnd = "", inputEnd = "", passwordEnd = "", fileEditEnd;
+		
+		// whether or not this is an interactive session
+		private boolean interactive = true;
+		// whether every command starts with a sequence id that is used to tag its output
+		private boolean sequenced;
+		
+		private boolean initialized;
+		// holds the variables of the session, commands run on a runtime of their channel
+		private ScriptRuntime runtime;
+		// the channels take turns reading and updating the variables of the session
+		private Lock pipelineLock = new ReentrantLock();
+		private TritonConsoleInstance instance;
+		private DynamicScript dynamicScript;
+		// TODO: token?
+		private BufferedReader reader;
+		private InputProvider inputProvider;
+		private StreamProvider streamProvider;
+		// once we have negotiated the framed protocol, all communication goes through this
+		private ConsoleFramer framer;
+		private boolean upgrade;
+		// set if this connection joined a transfer of another console
+		private ParallelTransfer joined;
+		// the line-based protocol only has this channel, on the framed protocol it is channel 0
+		private CommandChannel main;
+		// the channels opened on the framed protocol
+		private Map<Integer, CommandChannel> channels = new ConcurrentHashMap<Integer, CommandChannel>();
+		// the channel the current thread is running a command for
+		private ThreadLocal<CommandChannel> current = new ThreadLocal<CommandChannel>();
+		// the amount of channels that are running a command
+		private AtomicInteger active = new AtomicInteger();
+		
+		ConsoleSession(ConsoleSource source) {
+			this.source = source;
+		}
+		
+		@Override
+		public void run() {
+			console.set(instance);
+			// if we write the "input", our response does not stop with a linefeed
+			// anyone listening to end of line won't pick it up
+			boolean parked = false;
+			// whether the connection was handed to another thread that cleans up after it
+			boolean handedOff = false;
+			try {
+				if (!initialized) {
+					initialized = true;
+					if (!initialize()) {
+						source.close();
+						return;
 					}
-					
-					runtime.registerInThread();
-					
-					InputStream main = source.getInputStream();
-					
-					// TODO: token?
-					StringBuilder buffered = new StringBuilder();
-					StringBuilder script = new StringBuilder();
-					BufferedReader reader = new BufferedReader(new InputStreamReader(main));
-					BufferedWriter writer = new BufferedWriter(source.getWriter());
-					
-					// because this is run synchronously, it shouldn't interfere with regular interaction
-					// if you ever request input asynchronously, this will...not work well :|
-					InputProvider inputProvider = new InputProvider() {
-						@Override
-						public String input(String message, boolean secret, String defaultValue) throws IOException {
-							if (!interactive) {
-								return defaultValue;
-							}
-							if (message != null) {
-								writer.write(message);
-								// if we have a specific marker for password input, use that
-								if (secret && !passwordEnd.isEmpty()) {
-									writer.write(passwordEnd + "\n");
-								}
-								// if we don't have a password marker but a generic input marker, use that
-								else if (!inputEnd.isEmpty()) {
-									writer.write(inputEnd + "\n");
-								}
-								// if we don't have a specific marker for input end, we use the response end marker
-								// note that all structured communication uses linefeeds and the response-end specifically is expected to be on a separate line
-								// if you use telnet, you set neither input nor response end and you will get inline prompt which is what you would expect
-								else if (!responseEnd.isEmpty()) {
-									writer.write("\n");
-									writer.write(responseEnd + "\n");
-								}
-								writer.flush();
-							}
-							String result = reader.readLine();
-							if (result == null || result.trim().isEmpty()) {
-								result = defaultValue;
-							}
-							return result;
-						}
-					};
-					instance.setInputProvider(inputProvider);
-					
-					StreamProvider streamProvider = new StreamProvider() {
-						@Override
-						public OutputStream getErrorStream() {
-							return source.getOutputStream();
-						}
-						@Override
-						public OutputStream getOutputStream() {
-							return source.getOutputStream();
-						}
-						@Override
-						public InputStream getInputStream() {
-							return ((ConsoleSocketSource) source).getDeblockingInput().newInputStream();
-						}
-						@Override
-						public boolean isBlocking() {
-							return true;
-						}
-					};
-					
-					responseEnd = "";
-					inputEnd = "";
-					passwordEnd = "";
+				}
+				runtime.registerInThread();
+				// a framed session that was parked picks up reading frames where it left off
+				if (framer != null) {
+					parked = dispatch();
+				}
+				else {
 					String line;
-					while ((line = reader.readLine()) != null) {
+					while (!(parked = park()) && (line = readLine()) != null) {
 						source.setLastRead(new Date());
 						if (runtime.isAborted()) {
 							break;
 						}
-						SimpleOutputFormatter simpleOutputFormatter = new SimpleOutputFormatter(writer, true);
+						instance.busy = true;
 						try {
-							String trimmed = line.trim();
-							if (trimmed.isEmpty()) {
-								continue;
-							}
-							else if (trimmed.startsWith("#")) {
-								// want comments to appear in resulting script
-								script.append(line + "\n");
-								continue;
-							}
-							// if without trimming, you still typed exit (so no whitespace etc), we stop
-							else if (line.equals("exit")) {
-								source.close();
+							if (!handle(line)) {
 								break;
 							}
-							else if (line.equals("show")) {
-								writer.write(script.toString() + "\n");
-							}
-							else if (line.equals("version")) {
-								writer.write(Main.VERSION + "\n");
-							}
-							else if (line.equals("clear")) {
-								buffered.delete(0, buffered.toString().length());
-								script.delete(0, script.toString().length());
-								runtime.getExecutionContext().getPipeline().clear();
-							}
-							else if (line.equals("state")) {
-								writer.write(runtime.getExecutionContext().getPipeline().toString() + "\n");
-							}
-							else if (line.startsWith("Negotiate-Response-End:")) {
-								responseEnd = line.substring("Negotiate-Response-End:".length()).trim();
-								instance.setResponseEnd(responseEnd);
-							}
-							else if (line.startsWith("Negotiate-File-Edit-End:")) {
-								fileEditEnd = line.substring("Negotiate-File-Edit-End:".length()).trim();
-								instance.setFileEditEnd(fileEditEnd);
-							}
-							else if (line.startsWith("Interact-Ping:")) {
-								String content = line.substring("Interact-Ping: ".length()).trim();
-								writer.write("Interact-Pong: " + content);
-							}
-							// turn on or off interactive mode
-							else if (line.startsWith("Negotiate-Interactive:")) {
-								interactive = "true".equals(line.substring("Negotiate-Interactive:".length()).trim());
-							}
-							else if (line.startsWith("Negotiate-Input-End:")) {
-								inputEnd = line.substring("Negotiate-Input-End:".length()).trim();
-								instance.setInputEnd(inputEnd);
-							}
-							else if (line.startsWith("Negotiate-Password-End:")) {
-								passwordEnd = line.substring("Negotiate-Password-End:".length()).trim();
-								instance.setPasswordEnd(passwordEnd);
-							}
-							else if (line.startsWith("Fetch-Meta:")) {
-								String meta = line.substring("Fetch-Meta:".length()).trim();
-								if ("name".equalsIgnoreCase(meta)) {
-									writer.write(getName() + "\n");
-								}
-							}
-							else if (line.startsWith("Suggest-Method:")) {
-								String soFar = line.substring("Suggest-Method:".length()).trim().toLowerCase();
-								StringBuilder builder = new StringBuilder();
-								boolean first = true;
-								boolean namespaced = soFar.contains(".");
-								for (MethodProvider provider : engine.getMethodProviders()) {
-									for (MethodDescription description : provider.getAvailableMethods()) {
-										boolean matches = false;
-										if (namespaced && description.getNamespace() != null && (description.getNamespace() + "." + description.getName()).startsWith(soFar)) {
-											matches = true;
-										}
-										else if (!namespaced && description.getName().startsWith(soFar)) {
-											matches = true;
-										}
-										if (matches) {
-											if (first) {
-												first = false;
-											}
-											else {
-												builder.append(";");
-											}
-											String desc = "";
-											List<ParameterDescription> parameters = description.getParameters();
-											if (parameters != null && !parameters.isEmpty()) {
-												for (ParameterDescription parameter : parameters) {
-													if (!desc.isEmpty()) {
-														desc += ", ";
-													}
-													desc += parameter.getName();
-												}
-											}
-											if (namespaced) {
-												builder.append(description.getNamespace() + "." + description.getName());
-											}
-											else {
-												builder.append(description.getName());
-											}
-											if (!desc.isEmpty()) {
-												builder.append("::" + desc);
-											}
-										}
+						}
+						finally {
+							instance.busy = false;
+							// idle time starts counting once we are done
+							source.setLastRead(new Date());
+						}
+						// on the framed protocol this thread only reads frames, the commands are run by the channels
+						if (framer != null) {
+							parked = dispatch();
+							break;
+						}
+						// the rest of the connection is raw transfer data, it does not count as a console so it gives back its slot and thread
+						else if (joined != null) {
+							instance.busy = true;
+							channelPool.execute(new Runnable() {
+								@Override
+								public void run() {
+									try {
+										joined.attach(source);
 									}
-								}
-								writer.write(builder.toString());
-							}
-							else if (line.startsWith("Suggest-File:")) {
-								String soFar = line.substring("Suggest-File:".length()).trim().toLowerCase();
-								StringBuilder builder = new StringBuilder();
-								boolean first = true;
-								File folder = new File(SystemMethodProvider.getDirectory());
-								int lastIndexOf = soFar.lastIndexOf('/');
-								String prefix = "";
-								if (lastIndexOf > 0) {
-									// include trailing /
-									prefix = soFar.substring(0, lastIndexOf + 1);
-									folder = new File(folder, prefix);
-									soFar = soFar.substring(lastIndexOf + 1);
-								}
-								if (folder.exists()) {
-									for (File child : folder.listFiles()) {
-										if (soFar.isEmpty() || child.getName().toLowerCase().startsWith(soFar)) {
-											if (first) {
-												first = false;
-											}
-											else {
-												builder.append(";");
-											}
-											String description = "";
-											if (child.isFile()) {
-												if (child.length() > 1024l * 1024 * 1024) {
-													description = Math.round((1.0 * child.length()) / (1024l*1024*1024)) + "gb";
-												}
-												else if (child.length() > 1024l * 1024) {
-													description = Math.round((1.0 * child.length()) / (1024l*1024)) + "mb";
-												}
-												else if (child.length() > 1024) {
-													description = Math.round((1.0 * child.length()) / (1024l)) + "kb";
-												}
-												else {
-													description = child.length() + "b";
-												}
-											}
-											builder.append(prefix + child.getName() + (child.isDirectory() ? "/" : "") + (description.isEmpty() ? "" : "::" + description));
-										}
+									finally {
+										logger.info("Triton console #" + instance.getId() + " disconnected");
+										disconnect();
 									}
 								}
-								writer.write(builder.toString());
-							}
-							// make sure we are future proof
-							// if a newer triton client connects to an older server and it has new negotiating features, we don't want the server to fail
-							else if (line.matches("^[\\s]*[\\w-]+[\\s]*:.*")) {
-								logger.warn("Unknown negotiation: " + line);
-							}
-							else if (line.equals("refresh")) {
-								engine.refresh();
-							}
-							// signal for multiline...
-							else if (trimmed.endsWith("\\")) {
-								buffered.append(line.replaceAll("[\\\\\\s]+$", "")).append("\n");
-							}
-							else {
-								buffered.append(line);
-								VirtualScript virtualScript = new VirtualScript(dynamicScript, buffered.toString());
-								ScriptRuntime scriptRuntime = new ScriptRuntime(virtualScript, runtime.getExecutionContext(), null);
-								scriptRuntime.setFormatter(simpleOutputFormatter);
-								scriptRuntime.setInputProvider(inputProvider);
-								scriptRuntime.setStreamProvider(streamProvider);
-								scriptRuntime.run();
-								script.append(buffered).append("\n");
-								buffered.delete(0, buffered.toString().length());
+							});
+							handedOff = true;
+							break;
+						}
+					}
+				}
+				if (!parked && !handedOff) {
+					logger.info("Triton console #" + instance.getId() + " disconnected");
+				}
+			}
+			catch (Throwable e) {
+				parked = false;
+				logger.info("Triton console #" + (instance == null ? "?" : instance.getId()) + " disconnected: " + e.getMessage());
+				e.printStackTrace();
+			}
+			finally {
+				console.set(null);
+				if (!parked && !handedOff) {
+					disconnect();
+				}
+				// the slot is available for the next console, a parked console gets a new one when it resumes
+				admission.release();
+				if (runtime != null) {
+					runtime.unregisterInThread();
+				}
+			}
+		}
+		
+		private void disconnect() {
+			if (instance != null) {
+				registry.unregister(instance);
+				try {
+					instance.close();
+				}
+				catch (Exception e) {
+					e.printStackTrace();
+				}
+				// no need to keep it in the wheel until its deadline
+				reaper.cancel(instance.reaperTimeout);
+			}
+		}
+		
+		// only selector-driven sources can be parked, the framed protocol parks in between frames
+		private boolean park() throws IOException {
+			return framer == null && source instanceof ConsoleChannelSource && (reader == null || !reader.ready()) && ((ConsoleChannelSource) source).park();
+		}
+		
+		private String readLine() throws IOException {
+			return reader == null ? ((ConsoleChannelSource) source).readLine() : reader.readLine();
+		}
+		
+		private CommandChannel current() {
+			CommandChannel channel = current.get();
+			return channel == null ? main : channel;
+		}
+		
+		// a framed session can only be parked if no channel needs the frames we read and the next frame is not there yet
+		private boolean parkFramed() throws IOException {
+			if (!(source instanceof ConsoleChannelSource)) {
+				return false;
+			}
+			for (CommandChannel channel : channels.values()) {
+				if (channel.running || !channel.commands.isEmpty()) {
+					return false;
+				}
+			}
+			// we check what is buffered first, anything that arrives in between only makes us resume sooner
+			int buffered = ((ConsoleChannelSource) source).getBuffered();
+			int missing = framer.getMissing();
+			return missing > 0 && ((ConsoleChannelSource) source).park(buffered + missing);
+		}
+		
+		// reads all the frames of the connection and hands them to the channel they are meant for, returns true if the session was parked until the next frame arrives
+		private boolean dispatch() throws IOException {
+			boolean parked = false;
+			try {
+				ConsoleFrame frame;
+				while (!(parked = parkFramed()) && (frame = framer.receive()) != null) {
+					source.setLastRead(new Date());
+					CommandChannel channel = channels.get(frame.getChannel());
+					if (frame.getType() == FrameType.COMMAND) {
+						if (channel == null) {
+							if (channels.size() >= maxChannels) {
+								framer.write(FrameType.OUTPUT, frame.getChannel(), "Too many channels, at most " + maxChannels + " are allowed\n");
+								framer.write(FrameType.END, frame.getChannel(), (String) null);
+								continue;
 							}
+							channel = new CommandChannel(frame.getChannel(), newRuntime());
+							channels.put(channel.id, channel);
 						}
-						catch (Exception e) {
-							e.printStackTrace(new PrintWriter(writer));
-							writer.write("\n");
-							writer.flush();
-							// always delete buffered, even in case of failure, you can't fix it...
-							buffered.delete(0, buffered.toString().length());
+						channel.submit(new String(frame.getPayload(), source.getCharset()));
+					}
+					// input for a command that has not started yet is kept for it, signals and input that arrive when nothing is running or queued on the channel are of no use to anyone
+					else if (channel != null && (channel.running || (frame.getType() == FrameType.INPUT && !channel.commands.isEmpty()))) {
+						// a signal stops whatever runs on that channel, the other channels are not affected
+						// it is still passed along so a running process can get it as well
+						if (frame.getType() == FrameType.SIGNAL) {
+							channel.signal(new String(frame.getPayload(), source.getCharset()));
+						}
+						// a channel that does not keep up gets its command stopped, the other channels are not held up by it
+						if (!framer.deliver(frame)) {
+							channel.overflow();
+						}
+					}
+				}
+			}
+			finally {
+				if (!parked) {
+					for (CommandChannel channel : channels.values()) {
+						channel.abort();
+					}
+					framer.end();
+				}
+			}
+			return parked;
+		}
+		
+		// switch to the framed protocol, this happens after the response to the negotiation has been sent in the old format
+		private void startFraming() {
+			framer = new ConsoleFramer(source.getInputStream(), source.getOutputStream(), source.getCharset());
+			instance.framer = framer;
+			main.setOutput(framer.newOutputStream(main.id));
+			channels.put(main.id, main);
+			logger.info("Triton console #" + instance.getId() + " switched to the framed protocol");
+		}
+		
+		/**
+		 * A logical channel within the session, commands on a channel are run in order but channels run independently of one another.
+		 * A channel shares the variables of the session unless it is isolated: a command starts with a copy of them and what it changed is merged back once it is done.
+		 * This way channels that run at the same time don't clobber each other's result and the variables of the session are never changed by two threads at once.
+		 */
+		private class CommandChannel implements Runnable {
+			private int id;
+			// everything written to the channel ends up here, so a lot of small writes are sent together
+			private CoalescingOutputStream output;
+			// tags the output with the sequence id of the command, if any
+			private TaggingOutputStream tagged;
+			private BufferedWriter writer;
+			private StringBuilder buffered = new StringBuilder();
+			private StringBuilder script = new StringBuilder();
+			// the runtime that owns the pipeline of this channel
+			private ScriptRuntime runtime;
+			private boolean isolated;
+			// the runtime of the command that is currently running
+			private volatile ScriptRuntime executing;
+			// the formatter for the output of the command that is currently being handled
+			private SimpleOutputFormatter formatter;
+			private volatile boolean running;
+			private Queue<String> commands = new ConcurrentLinkedQueue<String>();
+			private AtomicBoolean scheduled = new AtomicBoolean();
+			
+			CommandChannel(int id, ScriptRuntime runtime) {
+				this.id = id;
+				this.runtime = runtime;
+				if (framer != null) {
+					setOutput(framer.newOutputStream(id));
+				}
+			}
+			
+			private void setOutput(OutputStream output) {
+				this.output = new CoalescingOutputStream(output, channelPool);
+				this.tagged = new TaggingOutputStream(this.output, source.getCharset());
+				this.writer = new BufferedWriter(new OutputStreamWriter(this.tagged, source.getCharset()));
+			}
+			
+			// send everything that was written so far, we do this when we hand control to the other side
+			void flush() throws IOException {
+				writer.flush();
+				output.drain();
+			}
+			
+			void submit(String command) {
+				commands.add(command);
+				schedule();
+			}
+			
+			// a channel only holds on to a thread while it has commands to run
+			private void schedule() {
+				if (scheduled.compareAndSet(false, true)) {
+					channelPool.submit(this);
+				}
+			}
+			
+			@Override
+			public void run() {
+				console.set(instance);
+				current.set(this);
+				instance.channel.set(id);
+				runtime.registerInThread();
+				try {
+					String command;
+					while (!source.isClosed()) {
+						// we are running before we take the command, so input that arrives in between is not dropped
+						running = true;
+						if ((command = commands.poll()) == null) {
+							break;
+						}
+						active.incrementAndGet();
+						instance.busy = true;
+						try {
+							if (!handle(command)) {
+								break;
+							}
 						}
 						finally {
-							if (!source.isClosed()) {
-								Map<String, Object> pipeline = runtime.getExecutionContext().getPipeline();
-								Object remove = pipeline.remove("$tmp");
-								// if we don't have an echo, use the $tmp one
-								// calling glue scripts will always return the full pipeline, so combining that with echo is not good :(
-								if (!simpleOutputFormatter.isOutputted() && remove != null) {
-									writer.write(remove.toString().trim());
-									// after the echo we want a line feed
-									writer.write("\n");
-								}
-								if (!responseEnd.isEmpty()) {
-									writer.write(responseEnd + "\n");
-								}
-								// invite more typing
-//								writer.write(input);
-								writer.flush();
+							running = false;
+							instance.busy = active.decrementAndGet() > 0;
+							// input that arrived early is meant for the next command
+							if (commands.isEmpty()) {
+								framer.discard(id);
 							}
+							source.setLastRead(new Date());
 						}
 					}
-					logger.info("Triton console #" + instance.getId() + " disconnected");
 				}
 				catch (Throwable e) {
-					logger.info("Triton console #" + instance.getId() + " disconnected: " + e.getMessage());
-					e.printStackTrace();
+					logger.warn("Triton console #" + instance.getId() + " channel " + id + " failed", e);
 				}
 				finally {
+					running = false;
+					runtime.unregisterInThread();
+					instance.channel.remove();
+					current.remove();
 					console.set(null);
-					if (instance != null) {
-						instances.remove(instance);
-						try {
-							instance.close();
+					scheduled.set(false);
+					// a command might have come in after we stopped looking
+					if (!commands.isEmpty() && !source.isClosed()) {
+						schedule();
+					}
+				}
+			}
+			
+			// give this channel a pipeline of its own
+			void isolate() {
+				if (!isolated) {
+					isolated = true;
+					runtime.getExecutionContext().getPipeline().clear();
+				}
+			}
+			
+			// copies the variables of the session into the pipeline of this channel, returns what they were so we know what the command changed
+			Map<String, Object> enter() {
+				if (isolated) {
+					return null;
+				}
+				Map<String, Object> pipeline = runtime.getExecutionContext().getPipeline();
+				pipelineLock.lock();
+				try {
+					pipeline.clear();
+					pipeline.putAll(ConsoleSession.this.runtime.getExecutionContext().getPipeline());
+				}
+				finally {
+					pipelineLock.unlock();
+				}
+				return new HashMap<String, Object>(pipeline);
+			}
+			
+			// merges what the command changed back into the variables of the session
+			void leave(Map<String, Object> before) {
+				if (before == null || isolated) {
+					return;
+				}
+				Map<String, Object> pipeline = runtime.getExecutionContext().getPipeline();
+				pipelineLock.lock();
+				try {
+					Map<String, Object> shared = ConsoleSession.this.runtime.getExecutionContext().getPipeline();
+					for (String key : before.keySet()) {
+						if (!pipeline.containsKey(key)) {
+							shared.remove(key);
 						}
-						catch (Exception e) {
-							e.printStackTrace();
+					}
+					for (Map.Entry<String, Object> entry : pipeline.entrySet()) {
+						if (!before.containsKey(entry.getKey()) || before.get(entry.getKey()) != entry.getValue()) {
+							shared.put(entry.getKey(), entry.getValue());
 						}
 					}
-					if (runtime != null) {
-						runtime.unregisterInThread();
+				}
+				finally {
+					pipelineLock.unlock();
+				}
+			}
+			
+			void signal(String signal) {
+				ScriptRuntime executing = this.executing;
+				if ("INT".equals(signal) && executing != null) {
+					executing.abort();
+				}
+			}
+			
+			void overflow() {
+				ScriptRuntime executing = this.executing;
+				if (executing != null && !executing.isAborted()) {
+					logger.warn("Triton console #" + instance.getId() + " channel " + id + " does not keep up with its input, stopping the command");
+					executing.abort();
+				}
+			}
+			
+			void abort() {
+				ScriptRuntime executing = this.executing;
+				if (executing != null) {
+					executing.abort();
+				}
+				runtime.abort();
+			}
+		}
+		
+		private ScriptRuntime newRuntime() {
+			SimpleExecutionEnvironment environment = new SimpleExecutionEnvironment("default");
+			environment.getParameters().put(EvaluateExecutor.DEFAULT_VARIABLE_NAME_PARAMETER, "$tmp");
+			return new ScriptRuntime(dynamicScript, 
+				environment, 
+				false, 
+				null
+			);
+		}
+		
+		private boolean initialize() throws IOException {
+			// if we want client auth and don't get one, we don't even start this up
+			// note that this triggers the handshake, we want this in the session and not on the acceptor
+			if (clientAuth && source instanceof ConsoleSocketSource && ((ConsoleSocketSource) source).getSocket() instanceof SSLSocket) {
+				if (((ConsoleSocketSource) source).getCertificate() == null) {
+					return false;
+				}
+			}
+			// a resumed ssl session skips the trust manager, so we check the certificate against the current trust material for every session
+			if (source instanceof ConsoleSocketSource) {
+				X509Certificate[] chain = ((ConsoleSocketSource) source).getCertificateChain();
+				try {
+					if (chain != null && !TrustIndex.getIndex(getAuthenticationKeystore()).isTrusted(chain)) {
+						logger.warn("Refusing " + source + ", the certificate is no longer trusted");
+						return false;
+					}
+				}
+				catch (GeneralSecurityException e) {
+					logger.warn("Refusing " + source + ", the certificate could not be validated", e);
+					return false;
+				}
+			}
+			SimpleExecutionEnvironment environment = new SimpleExecutionEnvironment("default");
+			environment.getParameters().put(EvaluateExecutor.DEFAULT_VARIABLE_NAME_PARAMETER, "$tmp");
+			dynamicScript = new DynamicScript(
+				engine.getRepository(), 
+				engine.getRepository().getParserProvider().newParser(engine.getRepository(), "dynamic.glue"));
+
+			runtime = new ScriptRuntime(dynamicScript, 
+				environment, 
+				false, 
+				null
+			);
+			main = new CommandChannel(0, newRuntime());
+			instance = new TritonConsoleInstance(source, runtime);
+			instance.session = this;
+			console.set(instance);
+			logger.info("Triton console #" + instance.getId() + " connected");
+			registry.register(instance);
+			
+			// if you used a client certificate to gain access, we already established your identity
+			if (source instanceof ConsoleSocketSource) {
+				X509Certificate certificate = ((ConsoleSocketSource) source).getCertificate();
+				if (certificate != null) {
+					String alias = getAlias(certificate);
+					if (alias != null) {
+						instance.setToken(new BasicPrincipalImpl(alias, null));
 					}
 				}
+				// if you are local, you get admin powers 
+				else if (isLocal(((ConsoleSocketSource) source).getSocket().getInetAddress())) {
+					instance.setToken(new BasicPrincipalImpl("admin", null));
+				}
 			}
-		});
+			// the selector-driven sources are always local
+			else if (source instanceof ConsoleChannelSource && isLocal(((ConsoleChannelSource) source).getSocket().getInetAddress())) {
+				instance.setToken(new BasicPrincipalImpl("admin", null));
+			}
+			scheduleReaper(instance);
+			
+			// the selector-driven source does its own line parsing, no need to keep a reader buffer around for an idle session
+			if (!(source instanceof ConsoleChannelSource)) {
+				InputStream main = source.getInputStream();
+				reader = new BufferedReader(new InputStreamReader(main));
+			}
+			main.setOutput(source.getOutputStream());
+			
+			// because this is run synchronously, it shouldn't interfere with regular interaction
+			// if you ever request input asynchronously, this will...not work well :|
+			inputProvider = new InputProvider() {
+				@Override
+				public String input(String message, boolean secret, String defaultValue) throws IOException {
+					if (!interactive) {
+						return defaultValue;
+					}
+					CommandChannel channel = current();
+					BufferedWriter writer = channel.writer;
+					if (framer != null) {
+						channel.flush();
+						framer.write(secret ? FrameType.PROMPT_SECRET : FrameType.PROMPT, channel.id, message == null ? "" : message);
+						ConsoleFrame frame = framer.read(channel.id, FrameType.INPUT);
+						String result = frame == null ? null : new String(frame.getPayload(), source.getCharset());
+						return result == null || result.trim().isEmpty() ? defaultValue : result;
+					}
+					if (message != null) {
+						writer.write(message);
+						// if we have a specific marker for password input, use that
+						if (secret && !passwordEnd.isEmpty()) {
+							writer.write(passwordEnd + "\n");
+						}
+						// if we don't have a password marker but a generic input marker, use that
+						else if (!inputEnd.isEmpty()) {
+							writer.write(inputEnd + "\n");
+						}
+						// if we don't have a specific marker for input end, we use the response end marker
+						// note that all structured communication uses linefeeds and the response-end specifically is expected to be on a separate line
+						// if you use telnet, you set neither input nor response end and you will get inline prompt which is what you would expect
+						else if (!responseEnd.isEmpty()) {
+							writer.write("\n");
+							writer.write(responseEnd + "\n");
+						}
+						channel.flush();
+					}
+					String result = readLine();
+					if (result == null || result.trim().isEmpty()) {
+						result = defaultValue;
+					}
+					return result;
+				}
+			};
+			instance.setInputProvider(inputProvider);
+			
+			streamProvider = new StreamProvider() {
+				@Override
+				public OutputStream getErrorStream() {
+					return getOutputStream();
+				}
+				@Override
+				public OutputStream getOutputStream() {
+					return current().tagged;
+				}
+				@Override
+				public InputStream getInputStream() {
+					if (framer != null) {
+						return framer.newInputStream(current().id);
+					}
+					return source instanceof ConsoleSocketSource ? ((ConsoleSocketSource) source).getDeblockingInput().newInputStream() : source.getInputStream();
+				}
+				@Override
+				public boolean isBlocking() {
+					return true;
+				}
+			};
+			return true;
+		}
+		
+		private void negotiateProtocol(String version) throws IOException {
+			// we only answer with the version we will actually switch to, an older client will not ask
+			if ("2".equals(version) && framer == null) {
+				current().writer.write("2\n");
+				upgrade = true;
+			}
+		}
+		
+		// the index is only rebuilt when the available methods change, not for every key stroke
+		private void suggestMethods(String soFar) throws IOException {
+			StringBuilder builder = new StringBuilder();
+			for (String suggestion : engine.getMethodIndex().suggest(soFar)) {
+				if (builder.length() > 0) {
+					builder.append(";");
+				}
+				builder.append(suggestion);
+			}
+			current().writer.write(builder.toString());
+		}
+		
+		// the first line is the version of the catalogue, the catalogue itself is only sent if the client does not have that version yet
+		private void fetchMethods(String known) throws IOException {
+			MethodCompletionIndex index = engine.getMethodIndex();
+			current().writer.write(index.getVersion() + "\n");
+			if (!index.getVersion().equals(known == null ? null : known.trim())) {
+				current().writer.write(index.getCatalogue());
+			}
+		}
+		
+		// the listing comes from a cache and at most one page is sent, if there is more the last suggestion is "::more=<offset of the next page>"
+		private void suggestFiles(String soFar, int offset, boolean recent) throws IOException {
+			File folder = new File(SystemMethodProvider.getDirectory());
+			int lastIndexOf = soFar.lastIndexOf('/');
+			String prefix = "";
+			if (lastIndexOf > 0) {
+				// include trailing /
+				prefix = soFar.substring(0, lastIndexOf + 1);
+				folder = new File(folder, prefix);
+				soFar = soFar.substring(lastIndexOf + 1);
+			}
+			soFar = soFar.toLowerCase();
+			StringBuilder builder = new StringBuilder();
+			if (folder.isDirectory()) {
+				List<FileEntry> matches = new ArrayList<FileEntry>();
+				for (FileEntry child : getDirectoryListings().list(folder.toPath())) {
+					if (soFar.isEmpty() || child.getName().toLowerCase().startsWith(soFar)) {
+						matches.add(child);
+					}
+				}
+				if (recent) {
+					Collections.sort(matches, new Comparator<FileEntry>() {
+						@Override
+						public int compare(FileEntry o1, FileEntry o2) {
+							return Long.compare(o2.getLastModified(), o1.getLastModified());
+						}
+					});
+				}
+				int end = Math.min(matches.size(), offset + maxFileSuggestions);
+				for (int i = Math.max(0, offset); i < end; i++) {
+					FileEntry child = matches.get(i);
+					if (builder.length() > 0) {
+						builder.append(";");
+					}
+					String description = "";
+					if (!child.isDirectory()) {
+						if (child.getSize() > 1024l * 1024 * 1024) {
+							description = Math.round((1.0 * child.getSize()) / (1024l*1024*1024)) + "gb";
+						}
+						else if (child.getSize() > 1024l * 1024) {
+							description = Math.round((1.0 * child.getSize()) / (1024l*1024)) + "mb";
+						}
+						else if (child.getSize() > 1024) {
+							description = Math.round((1.0 * child.getSize()) / (1024l)) + "kb";
+						}
+						else {
+							description = child.getSize() + "b";
+						}
+					}
+					builder.append(prefix + child.getName() + (child.isDirectory() ? "/" : "") + (description.isEmpty() ? "" : "::" + description));
+				}
+				if (end < matches.size()) {
+					builder.append(";::more=" + end);
+				}
+			}
+			current().writer.write(builder.toString());
+		}
+		
+		private boolean hasPendingLine() throws IOException {
+			return reader == null ? ((ConsoleChannelSource) source).isLineAvailable() : reader.ready();
+		}
+		
+		// runs whatever was buffered so far with the given code as a single script
+		private void execute(CommandChannel channel, String code) throws IOException, ParseException {
+			channel.buffered.append(code);
+			VirtualScript virtualScript = new VirtualScript(dynamicScript, channel.buffered.toString());
+			ScriptRuntime scriptRuntime = new ScriptRuntime(virtualScript, channel.runtime.getExecutionContext(), null);
+			scriptRuntime.setFormatter(channel.formatter);
+			scriptRuntime.setInputProvider(inputProvider);
+			scriptRuntime.setStreamProvider(streamProvider);
+			channel.executing = scriptRuntime;
+			try {
+				scriptRuntime.run();
+			}
+			finally {
+				channel.executing = null;
+			}
+			channel.script.append(channel.buffered).append("\n");
+			channel.buffered.delete(0, channel.buffered.toString().length());
+		}
+		
+		// the line-based protocol can't send multiple lines as one command, instead the client announces how many lines will follow
+		private void submitScript(int lines) throws IOException, ParseException {
+			if (framer != null) {
+				throw new IllegalStateException("On the framed protocol the script should be sent as a single command");
+			}
+			StringBuilder builder = new StringBuilder();
+			for (int i = 0; i < lines; i++) {
+				String line = readLine();
+				if (line == null) {
+					throw new IOException("Connection closed in the middle of a script");
+				}
+				builder.append(line).append("\n");
+			}
+			execute(current(), builder.toString());
+		}
+		
+		// handles a single line, returns false if the session should stop
+		private boolean handle(String line) throws IOException {
+			CommandChannel channel = current();
+			// in sequenced mode the line starts with the id of the command
+			String sequence = null;
+			if (sequenced) {
+				int index = line.indexOf(' ');
+				sequence = index < 0 ? line : line.substring(0, index);
+				line = index < 0 ? "" : line.substring(index + 1);
+				channel.tagged.setTag(sequence + " ");
+			}
+			BufferedWriter writer = channel.writer;
+			StringBuilder buffered = channel.buffered;
+			StringBuilder script = channel.script;
+			ScriptRuntime runtime = channel.runtime;
+			SimpleOutputFormatter simpleOutputFormatter = new SimpleOutputFormatter(writer, true);
+			channel.formatter = simpleOutputFormatter;
+			Map<String, Object> before = channel.enter();
+			try {
+				String trimmed = line.trim();
+				if (trimmed.isEmpty()) {
+					return true;
+				}
+				// on the framed protocol a single command can contain an entire script, it is run as a whole
+				else if (line.indexOf('\n') >= 0) {
+					execute(channel, line);
+				}
+				else if (trimmed.startsWith("#")) {
+					// want comments to appear in resulting script
+					script.append(line + "\n");
+					return true;
+				}
+				// if without trimming, you still typed exit (so no whitespace etc), we stop
+				else if (line.equals("exit")) {
+					source.close();
+					return false;
+				}
+				else if (line.equals("show")) {
+					writer.write(script.toString() + "\n");
+				}
+				else if (line.equals("version")) {
+					writer.write(Main.VERSION + "\n");
+				}
+				else if (line.equals("clear")) {
+					buffered.delete(0, buffered.toString().length());
+					script.delete(0, script.toString().length());
+					runtime.getExecutionContext().getPipeline().clear();
+				}
+				else if (line.equals("state")) {
+					writer.write(runtime.getExecutionContext().getPipeline().toString() + "\n");
+				}
+				// all the "key: value" lines are negotiations or requests for meta information
+				else if (HEADER.matcher(line).matches()) {
+					int index = line.indexOf(':');
+					Negotiation negotiation = negotiations.get(line.substring(0, index).trim());
+					// make sure we are future proof
+					// if a newer triton client connects to an older server and it has new negotiating features, we don't want the server to fail
+					if (negotiation == null) {
+						logger.warn("Unknown negotiation: " + line);
+					}
+					else {
+						negotiation.negotiate(this, line.substring(index + 1).trim());
+					}
+				}
+				else if (line.equals("refresh")) {
+					engine.refresh();
+				}
+				// signal for multiline...
+				else if (trimmed.endsWith("\\")) {
+					buffered.append(line.replaceAll("[\\\\\\s]+$", "")).append("\n");
+				}
+				else {
+					execute(channel, line);
+				}
+			}
+			catch (Exception e) {
+				e.printStackTrace(new PrintWriter(writer));
+				writer.write("\n");
+				writer.flush();
+				// always delete buffered, even in case of failure, you can't fix it...
+				buffered.delete(0, buffered.toString().length());
+			}
+			finally {
+				if (!source.isClosed()) {
+					Map<String, Object> pipeline = runtime.getExecutionContext().getPipeline();
+					Object remove = pipeline.remove("$tmp");
+					channel.leave(before);
+					// if we don't have an echo, use the $tmp one
+					// calling glue scripts will always return the full pipeline, so combining that with echo is not good :(
+					if (!simpleOutputFormatter.isOutputted() && remove != null) {
+						writer.write(remove.toString().trim());
+						// after the echo we want a line feed
+						writer.write("\n");
+					}
+					// the end marker must be on a line of its own to be tagged
+					if (sequence != null) {
+						writer.flush();
+						channel.tagged.endLine();
+					}
+					if (framer != null) {
+						channel.flush();
+						framer.write(FrameType.END, channel.id, sequence);
+					}
+					else if (!responseEnd.isEmpty()) {
+						writer.write(responseEnd + "\n");
+					}
+					// invite more typing
+//								writer.write(input);
+					// if the client already sent the next command, there is no need to send this response separately
+					if (sequence != null && framer == null && hasPendingLine()) {
+						writer.flush();
+					}
+					else {
+						channel.flush();
+					}
+					if (sequence != null) {
+						channel.tagged.setTag(null);
+					}
+					if (upgrade) {
+						upgrade = false;
+						startFraming();
+					}
+				}
+			}
+			return true;
+		}
 	}
 
+	private synchronized DirectoryListingCache getDirectoryListings() {
+		if (directoryListings == null) {
+			directoryListings = new DirectoryListingCache();
+		}
+		return directoryListings;
+	}
+	
 	public List<TritonConsoleInstance> getInstances() {
-		return new ArrayList<TritonConsoleInstance>(instances);
+		return registry.snapshot();
+	}
+	
+	public TritonConsoleInstance getInstance(long id) {
+		return registry.get(id);
+	}
+	
+	public Collection<TritonConsoleInstance> getInstancesByAlias(String alias) {
+		return registry.getByAlias(alias);
+	}
+	
+	public Collection<TritonConsoleInstance> getInstancesByAddress(String address) {
+		return registry.getByAddress(address);
 	}
 
 	public int getMaxConcurrentConsoles() {
 		return maxConcurrentConsoles;
 	}
 	
+	public ConsoleStatistics getStatistics() {
+		return admission.getStatistics();
+	}
+	
 }
@@ -18,12 +18,11 @@
 package be.nabu.libs.triton;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -33,6 +32,7 @@ import java.io.StringWriter;
 import java.net.Socket;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.charset.Charset;
 import java.security.KeyStoreException;
 import java.security.cert.CertificateEncodingException;
 import java.security.cert.X509Certificate;
@@ -44,14 +44,14 @@ import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Pattern;
 
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
 
-import org.jline.builtins.Less;
 import org.jline.builtins.Nano;
 import org.jline.builtins.Nano.SyntaxHighlighter;
-import org.jline.builtins.Source;
 import org.jline.reader.Candidate;
 import org.jline.reader.Completer;
 import org.jline.reader.Highlighter;
@@ -69,9 +69,19 @@ import org.jline.utils.AttributedStyle;
 import org.jline.utils.InfoCmp.Capability;
 
 import be.nabu.glue.impl.StandardInputProvider;
+import be.nabu.libs.triton.impl.ChunkedTransfer;
+import be.nabu.libs.triton.impl.CompletionCache;
+import be.nabu.libs.triton.impl.ConsoleFrame;
+import be.nabu.libs.triton.impl.ConsoleFrame.FrameType;
+import be.nabu.libs.triton.impl.ConsoleFramer;
+import be.nabu.libs.triton.impl.FileDelta;
+import be.nabu.libs.triton.impl.FileDelta.Signature;
+import be.nabu.libs.triton.impl.FileTransfer;
+import be.nabu.libs.triton.impl.PagedViewer;
+import be.nabu.libs.triton.impl.SideConnector;
+import be.nabu.libs.triton.impl.TransferStatistics;
 import be.nabu.utils.io.IOUtils;
 import be.nabu.utils.security.KeyStoreHandler;
-import be.nabu.utils.security.SSLContextType;
 import be.nabu.utils.security.SecurityUtils;
 
 // the shell is a thin wrapper around the triton console endpoint (that can also be used via telnet)
@@ -92,13 +102,55 @@ public class TritonShell {
 			}
 		}
 		if (line == null) {
+			// the server may have told us why it is closing the connection (e.g. because it is busy)
+			if (builder.length() > 0) {
+				System.out.print(builder.toString());
+			}
 			System.exit(1);
 		}
 		return builder.toString();
 	}
 	
+	// sends a command and returns the answer, on the framed protocol this is read from the output frames up to the end frame
+	private static String request(BufferedWriter writer, BufferedReader reader, String ending, String command) throws IOException {
+		if (framer != null) {
+			return request(0, command);
+		}
+		writer.write(command + "\n");
+		writer.flush();
+		return readAnswer(reader, ending);
+	}
+	
+	private static String request(int channel, String command) throws IOException {
+		framer.write(FrameType.COMMAND, channel, command);
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		ConsoleFrame frame;
+		while ((frame = framer.read(channel, FrameType.values())) != null && frame.getType() != FrameType.END) {
+			if (frame.getType() == FrameType.OUTPUT) {
+				output.write(frame.getPayload());
+			}
+		}
+		if (frame == null) {
+			System.exit(1);
+		}
+		return new String(output.toByteArray(), "UTF-8");
+	}
+	
 	private static boolean running;
 	private static int runningKill;
+	// set if the server supports the framed protocol
+	private static ConsoleFramer framer;
+	// the commands running in the background, by channel
+	private static Map<Integer, String> jobs = new ConcurrentHashMap<Integer, String>();
+	// completion has channels of its own so it never waits for a command that is running in the foreground
+	private static final int COMPLETION_CHANNEL = -1, CATALOGUE_CHANNEL = -2;
+	private static CompletionCache completion;
+	// whether the server accepts the changes to an edited file rather than the whole file
+	private static boolean delta;
+	// opens additional connections to the same server for large transfers
+	private static SideConnector connector;
+	// transfers of at least this many bytes are reported
+	private static long reportThreshold = Long.parseLong(System.getProperty("triton.transfer.report", "" + (1024 * 1024)));
 	
 	public static void main(String...args) throws URISyntaxException, IOException {
 		Main.systemPropertify(args);
@@ -130,35 +182,66 @@ public class TritonShell {
 			if (url.getScheme() == null || "sts".equals(url.getScheme())) {
 				// always generate the ssl context so we have the key
 				// we might need the key to install it
-				SSLContext context = TritonLocalConsole.getContext();
-				// make sure we already trust the target server
+				SSLContext context = TritonLocalConsole.getClientContext();
 				// if you do something like "host=target" without the scheme, the "target" value will be in the path, not in the host
 				String host = url.getHost() == null ? url.getPath() : url.getHost();
 				int port = url.getPort() < 0 ? securePort : url.getPort();
-				X509Certificate[] chain = SecurityUtils.getChain(host, port, SSLContextType.TLS);
-				KeyStoreHandler keystore = TritonLocalConsole.getAuthenticationKeystore();
-				if (!Triton.isTrusted(chain, keystore)) {
-					Map<String, X509Certificate> certificates = keystore.getCertificates();
-					StandardInputProvider inputProvider = new StandardInputProvider();
-					String result = inputProvider.input("Connecting to unknown server '" + TritonLocalConsole.getAlias(chain[0]) + "' (" + host + "), do you trust this server? [Y/n]: ", false, null);
-					if (result != null && result.equalsIgnoreCase("n")) {
-						System.exit(0);
-					}
-					String key = "server-" + host;
-					String keyAttempt = key;
-					int counter = 1;
-					while (certificates.containsKey(keyAttempt)) {
-						keyAttempt = key + counter++;
-					}
-					keystore.set(keyAttempt, chain[0]);
-					TritonLocalConsole.saveAuthentication(keystore);
-					// renew context with the cert installed
-					context = TritonLocalConsole.getContext();
+				SSLSocket sslSocket = (SSLSocket) context.getSocketFactory().createSocket(host, port);
+				// the trust check is part of the handshake, for this connection an unknown server is remembered rather than refused so we can ask you about it
+				// the handshake (including our client certificate) is done by then, but no console traffic is sent before you have accepted it
+				TritonLocalConsole.getClientTrustManager().defer(sslSocket);
+				sslSocket.startHandshake();
+				X509Certificate[] chain = TritonLocalConsole.getClientTrustManager().getUntrusted(sslSocket);
+				if (chain != null) {
+					KeyStoreHandler keystore = TritonLocalConsole.editAuthenticationKeystore();
+					if (!Triton.isTrusted(chain, keystore)) {
+						Map<String, X509Certificate> certificates = keystore.getCertificates();
+						StandardInputProvider inputProvider = new StandardInputProvider();
+						String result = inputProvider.input("Connecting to unknown server '" + TritonLocalConsole.getAlias(chain[0]) + "' (" + host + "), do you trust this server? [Y/n]: ", false, null);
+						if (result != null && result.equalsIgnoreCase("n")) {
+							sslSocket.close();
+							System.exit(0);
+						}
+						String key = "server-" + host;
+						String keyAttempt = key;
+						int counter = 1;
+						while (certificates.containsKey(keyAttempt)) {
+							keyAttempt = key + counter++;
+						}
+						keystore.set(keyAttempt, chain[0]);
+						TritonLocalConsole.saveAuthentication(keystore);
+						// later connections in this process must trust it without asking
+						TritonLocalConsole.refreshClientTrust();
+					}
 				}
-				socket = context.getSocketFactory().createSocket(host, port);
+				socket = sslSocket;
+				// additional connections must end up at the very same server, they only trust the certificate it presented here
+				SSLContext sideContext = TritonLocalConsole.getPinnedClientContext((X509Certificate) sslSocket.getSession().getPeerCertificates()[0]);
+				connector = new SideConnector() {
+					@Override
+					public Socket connect() throws IOException {
+						SSLSocket sslSocket = (SSLSocket) sideContext.getSocketFactory().createSocket(host, port);
+						try {
+							sslSocket.startHandshake();
+						}
+						catch (IOException e) {
+							sslSocket.close();
+							throw e;
+						}
+						return sslSocket;
+					}
+				};
 			}
 			else if ("ts".equals(url.getScheme())) {
-				socket = new Socket(url.getHost() == null ? "localhost" : url.getHost(), url.getPort() < 0 ? plainPort : url.getPort());
+				String host = url.getHost() == null ? "localhost" : url.getHost();
+				int port = url.getPort() < 0 ? plainPort : url.getPort();
+				socket = new Socket(host, port);
+				connector = new SideConnector() {
+					@Override
+					public Socket connect() throws IOException {
+						return new Socket(host, port);
+					}
+				};
 			}
 			else {
 				throw new RuntimeException("Invalid scheme: " + url);
@@ -199,8 +282,13 @@ public class TritonShell {
 									// don't want to trigger on like resize signals etc
 									if (arg0 == Signal.INT) {
 										try {
-											writer.write("^SIGINT\n");
-											writer.flush();
+											if (framer != null) {
+												framer.write(FrameType.SIGNAL, 0, "INT");
+											}
+											else {
+												writer.write("^SIGINT\n");
+												writer.flush();
+											}
 										}
 										catch (IOException e) {
 											e.printStackTrace();
@@ -281,6 +369,37 @@ public class TritonShell {
 				// an answer will always come
 				String serverName = readAnswer(reader, ending).trim();
 				
+				// if the server supports it, we switch to the framed protocol, an older server will not answer with a version
+				if (Integer.parseInt(System.getProperty("triton.protocol", "2")) >= 2) {
+					writer.write("Negotiate-Protocol: 2\n");
+					writer.flush();
+					if ("2".equals(readAnswer(reader, ending).trim())) {
+						framer = new ConsoleFramer(inputStream, outputStream, Charset.forName("UTF-8"));
+						startReceiving();
+						// over slow links compression makes a big difference, on a local connection it mostly costs cpu
+						if (Boolean.parseBoolean(System.getProperty("triton.compression", "true")) && "deflate".equals(request(writer, reader, ending, "Negotiate-Compression: deflate").trim())) {
+							framer.setCompression(true);
+						}
+						// we can answer upload and download requests
+						request(writer, reader, ending, "Negotiate-Transfer: chunked");
+						delta = "rolling".equals(request(writer, reader, ending, "Negotiate-Delta: rolling").trim());
+						// large transfers can be spread over multiple connections, this helps a lot on links with a lot of latency
+						request(writer, reader, ending, "Negotiate-Parallel: " + System.getProperty("triton.transfer.streams", "4"));
+						// we can show files on the server page by page
+						request(writer, reader, ending, "Negotiate-View: paged");
+					}
+				}
+				
+				// methods are completed locally from the catalogue of the server, we only fetch it if it changed since the last time we connected
+				completion = new CompletionCache(new File(Triton.getFolder("completion"), tritonHost.replaceAll("[^\\w.-]+", "_") + ".catalogue"));
+				if (framer != null) {
+					revalidateCompletion();
+				}
+				// without channels we can't do it in the background
+				else if (completion.startValidation()) {
+					completion.update(request(writer, reader, ending, "Fetch-Methods: " + (completion.getVersion() == null ? "" : completion.getVersion())));
+				}
+				
 				terminal.puts(Capability.clear_screen);
                 terminal.flush();
                 terminal.writer().println("_______________________________________________________________\n");
@@ -295,6 +414,11 @@ public class TritonShell {
 				terminal.writer().println("- allow			Add client cert to server to connect securely");
 				terminal.writer().println("- self(ie)		Print client cert for installation with or without the addUser wrapper");
 				terminal.writer().println("- (un)supervised	Toggle between supervised and unsupervised mode");
+				if (framer != null) {
+					terminal.writer().println("- &command		Run a command in the background");
+					terminal.writer().println("- jobs			List the commands running in the background");
+					terminal.writer().println("- cancel n		Cancel background command n");
+				}
 				terminal.writer().println("_______________________________________________________________\n");
 				
 				// we unset the escape characters so we can send them to the backend, otherwise they get stripped
@@ -325,25 +449,55 @@ public class TritonShell {
 											// otherwise it won't complete
 											String starter = null;
 											String soFar;
+											String request;
+											String suggestions = null;
 											if (count % 2 == 0) {
 												soFar = arg1.line().replaceAll("^.*?([\\w.]+$)", "$1");
-												writer.write("Suggest-Method: " + soFar + "\n");
-												writer.flush();
+												request = "Suggest-Method: " + soFar;
+												List<String> local = completion.suggestMethods(soFar);
+												if (local != null) {
+													suggestions = join(local);
+													if (framer != null) {
+														revalidateCompletion();
+													}
+												}
 											}
 											// we are in a string, we probably want to suggest a filename
 											// presumably we already typed a bit of the filename, so let's start it off with that!
 											else {
 												int lastIndexOf = arg1.line().lastIndexOf('"');
 												soFar = arg1.line().substring(lastIndexOf + 1);
-												writer.write("Suggest-File: " + soFar + "\n");
-												writer.flush();
+												// the server sorts by name unless we want the most recent files first
+												request = "recent".equals(System.getProperty("triton.completion.fileSort")) ? "Suggest-File-Page: 0;recent;" + soFar : "Suggest-File: " + soFar;
+												// pressing tab a few times in a row should not ask the server every time
+												suggestions = completion.getFiles(request);
 											}
 											starter = arg1.word().substring(0, arg1.word().length() - soFar.length());
-											String readLine = reader.readLine();
-											if (!readLine.endsWith(ending)) {
+											if (suggestions == null) {
+												if (framer != null) {
+													suggestions = request(COMPLETION_CHANNEL, request);
+												}
+												else {
+													writer.write(request + "\n");
+													writer.flush();
+													String readLine = reader.readLine();
+													if (!readLine.endsWith(ending)) {
+														return;
+													}
+													suggestions = readLine.substring(0, readLine.length() - ending.length());
+												}
+												if (count % 2 != 0) {
+													completion.putFiles(request, suggestions);
+												}
+											}
+											if (suggestions.isEmpty()) {
 												return;
 											}
-											for (String single : readLine.substring(0, readLine.length() - ending.length()).split(";")) {
+											for (String single : suggestions.split(";")) {
+												// there are more files than the server sends at once, you will have to type a bit more
+												if (single.startsWith("::more=")) {
+													continue;
+												}
 												// allow for a description to be passed along
 												String[] split = single.split("::");
 												arg2.add(new Candidate(starter + split[0], split[0], null, split.length == 2 ? split[1] : null, null, null, false));
@@ -419,15 +573,29 @@ public class TritonShell {
 						continue;
 					}
 					if (line.equals("unsupervised")) {
-						writer.write("Negotiate-Interactive: false\n");
-						writer.flush();
-						readAnswer(reader, ending);
+						request(writer, reader, ending, "Negotiate-Interactive: false");
 						continue;
 					}
 					if (line.equals("supervised")) {
-						writer.write("Negotiate-Interactive: true\n");
-						writer.flush();
-						readAnswer(reader, ending);
+						request(writer, reader, ending, "Negotiate-Interactive: true");
+						continue;
+					}
+					if (line.equals("jobs")) {
+						for (Map.Entry<Integer, String> job : jobs.entrySet()) {
+							terminal.writer().println("[" + job.getKey() + "] " + job.getValue());
+						}
+						terminal.writer().flush();
+						continue;
+					}
+					if (line.matches("^cancel[\\s]+[0-9]+$") && framer != null) {
+						int channel = Integer.parseInt(line.replaceAll("^cancel[\\s]+", ""));
+						if (jobs.containsKey(channel)) {
+							framer.write(FrameType.SIGNAL, channel, "INT");
+						}
+						else {
+							terminal.writer().println("No background command " + channel);
+							terminal.writer().flush();
+						}
 						continue;
 					}
 					// you want to define an alias
@@ -454,20 +622,6 @@ public class TritonShell {
 						}
 						continue;
 					}
-					// experimental tests
-					if (line.equals("less")) {
-						try {
-							Less less = new Less(terminal, new File(".").toPath());
-							// does not work (yet!)
-							less.run(new Source.PathSource(new File("test.txt"), "test.txt"));
-							continue;
-						}
-						catch (Exception e) {
-							e.printStackTrace();
-							continue;
-						}
-					}
-					
 					// install the cert
 					if (line.equals("allow")) {
 						// force generation of the key (not clean!)
@@ -486,14 +640,33 @@ public class TritonShell {
 						break;
 					}
 					
+					boolean background = line.startsWith("&");
+					if (background) {
+						line = line.substring(1).trim();
+					}
 					// if its an alias, we run it
 					if (aliases.keySet().contains(line.trim())) {
 						line = aliases.get(line.trim());
 					}
+					if (background) {
+						if (framer == null) {
+							terminal.writer().println("The triton agent does not support background commands");
+							terminal.writer().flush();
+						}
+						else {
+							background(consoleReader, line);
+						}
+						continue;
+					}
 					
 					running = true;
-					// we need to send line by line so we can read the response
-					String[] split = line.split("\n");
+					// on the framed protocol we send the whole script at once, the other end parses and runs it as a single script
+					String[] split = framer != null ? new String[0] : line.split("\n");
+					if (framer != null) {
+						framer.write(FrameType.COMMAND, 0, line);
+						readFramedResponse(terminal, consoleReader, line);
+					}
+					// otherwise we need to send line by line so we can read the response
 					for (int i = 0; i < split.length; i++) {
 						// if we are not at the end yet, add the \ to signal that more is coming
 						writer.write(split[i] + (i == split.length - 1 ? "" : "\\") + "\n");
@@ -525,12 +698,12 @@ public class TritonShell {
 								File tmpFolder = Triton.getNewTmpFolder();
 								writer.write("ok\n");
 								writer.flush();
-								File file;
+								File file = new File(tmpFolder, fileName);
+								TransferStatistics received = null;
 								if (size > 0) {
-									file = copyInFile(tmpFolder, size, fileName, inputStream);
+									received = FileTransfer.receive(inputStream, size, file);
 								}
 								else {
-									file = new File(tmpFolder, fileName);
 									file.createNewFile();
 								}
 								Nano nano = new Nano(terminal, tmpFolder);
@@ -540,15 +713,16 @@ public class TritonShell {
 								// we could do some MD5 hashing to double check that you actually changed something, but then we still have to read through the file
 								// given that we are likely to only edit small files, we will skip it for now and simply stream it back
 								// we first write the same line as the server sent us
-								writer.write(file.length() + ";" + file.getName() + fileEditEnding + "\n");
+								long editedSize = file.length();
+								writer.write(editedSize + ";" + file.getName() + fileEditEnding + "\n");
 								// flush it cause we are directly using the outputstream next!
 								writer.flush();
 								// we wait for the go ahead of the server
 								String readLine = reader.readLine();
 								if (readLine.equalsIgnoreCase("ok")) {
-									if (file.length() > 0) {
+									if (editedSize > 0) {
 										// then we stream back the file
-										copyOutFile(file, outputStream);
+										report(terminal, received, copyOutFile(file, editedSize, outputStream));
 									}
 									// delete temporary files
 									file.delete();
@@ -589,6 +763,284 @@ public class TritonShell {
 		}
 	}
 	
+	// on the framed protocol we don't need to look for markers in the output, everything is in a frame of the correct type
+	private static void readFramedResponse(Terminal terminal, LineReader consoleReader, String command) throws IOException {
+		ConsoleFrame frame;
+		while ((frame = framer.read(0, FrameType.values())) != null) {
+			switch (frame.getType()) {
+				case END:
+					return;
+				case OUTPUT:
+					// we write the raw bytes, a multibyte character may be split over frames
+					terminal.writer().flush();
+					terminal.output().write(frame.getPayload());
+					terminal.output().flush();
+				break;
+				case PROMPT:
+				case PROMPT_SECRET:
+					String message = new String(frame.getPayload(), "UTF-8");
+					String content = frame.getType() == FrameType.PROMPT_SECRET ? consoleReader.readLine(message, '*') : consoleReader.readLine(message);
+					framer.write(FrameType.INPUT, frame.getChannel(), content);
+				break;
+				case FILE_EDIT:
+					// the payload is structured as follows:
+					// size_in_bytes;filename
+					String[] parts = new String(frame.getPayload(), "UTF-8").split(";", 2);
+					long size = Long.parseLong(parts[0]);
+					File tmpFolder = Triton.getNewTmpFolder();
+					InputStream data = framer.newDataInputStream(frame.getChannel());
+					File file = new File(tmpFolder, parts[1]);
+					TransferStatistics received = null;
+					if (size > 0) {
+						received = FileTransfer.receive(data, size, file);
+					}
+					else {
+						file.createNewFile();
+					}
+					// read up to the end of the data
+					byte [] buffer = new byte[1024];
+					while (data.read(buffer) >= 0) {
+						// skip
+					}
+					Signature signature = delta ? FileDelta.signature(file) : null;
+					Nano nano = new Nano(terminal, tmpFolder);
+					nano.open(file.getName());
+					nano.run();
+					// once we are done, we send back the file
+					report(terminal, received, sendEdited(frame.getChannel(), file, signature));
+					// delete temporary files
+					file.delete();
+					tmpFolder.delete();
+				break;
+				case TRANSFER:
+					// the server reports the result, we only mention problems at our end
+					try {
+						String request = new String(frame.getPayload(), "UTF-8");
+						// the pages are fetched while you are looking at the file
+						if (request.startsWith("view;")) {
+							new PagedViewer(terminal, framer, frame.getChannel(), request).run();
+						}
+						// the server can start a transfer from anywhere in a script, if you did not ask for it yourself we check first
+						else if (!isRequested(command, request) && !consoleReader.readLine("The server wants to " + ChunkedTransfer.describe(request) + ", allow it? [y/N] ").trim().equalsIgnoreCase("y")) {
+							ChunkedTransfer.refuse(framer, frame.getChannel(), "Not allowed by the user");
+						}
+						else {
+							ChunkedTransfer.answer(framer, frame.getChannel(), request, new File(System.getProperty("user.dir")), Triton.getFolder("sync"), connector);
+						}
+					}
+					catch (IOException e) {
+						terminal.writer().println("Transfer failed: " + e.getMessage());
+						terminal.flush();
+					}
+				break;
+				default:
+					// ignore
+			}
+		}
+		// the connection was closed
+		System.exit(1);
+	}
+	
+	// whether the command you typed starts the transfer the server asks for, anything that is not the start of a transfer is left to the transfer itself
+	private static boolean isRequested(String command, String request) {
+		String method = ChunkedTransfer.getMethod(request);
+		return method == null || command.matches("(?s).*\\b" + method + "[\\s]*\\(.*");
+	}
+	
+	// sends back an edited file, if the server understands deltas we only send what changed (or nothing at all)
+	private static TransferStatistics sendEdited(int channel, File file, Signature signature) throws IOException {
+		long started = System.nanoTime();
+		// an empty file is always sent as such, the server removes it
+		if (signature != null && file.length() > 0) {
+			String hash = FileDelta.hash(file);
+			if (file.length() == signature.getSize() && hash.equals(signature.getHash())) {
+				framer.write(FrameType.FILE_EDIT, channel, "unchanged");
+				framer.newDataStream(channel).close();
+				return null;
+			}
+			byte [] difference = FileDelta.delta(signature, file);
+			// if most of the file changed, we might as well send it all
+			if (difference.length < file.length()) {
+				framer.write(FrameType.FILE_EDIT, channel, "delta;" + signature.getBlockSize() + ";" + file.length() + ";" + hash + ";" + file.getName());
+				try (OutputStream output = framer.newDataStream(channel, ConsoleFramer.isCompressible(file.getName()))) {
+					output.write(difference);
+				}
+				return new TransferStatistics(file.getName() + " (delta)", difference.length, System.nanoTime() - started, false);
+			}
+		}
+		long size = file.length();
+		framer.write(FrameType.FILE_EDIT, channel, size + ";" + file.getName());
+		try (OutputStream output = framer.newDataStream(channel, ConsoleFramer.isCompressible(file.getName()))) {
+			if (size > 0) {
+				return copyOutFile(file, size, output);
+			}
+		}
+		return null;
+	}
+	
+	// checks in the background whether the catalogue has changed, at most once per interval
+	private static void revalidateCompletion() {
+		if (completion.startValidation()) {
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						completion.update(request(CATALOGUE_CHANNEL, "Fetch-Methods: " + (completion.getVersion() == null ? "" : completion.getVersion())));
+					}
+					catch (Exception e) {
+						completion.abandon();
+					}
+				}
+			});
+			thread.setDaemon(true);
+			thread.setName("triton-shell-completion");
+			thread.start();
+		}
+	}
+	
+	private static String join(List<String> values) {
+		StringBuilder builder = new StringBuilder();
+		for (String value : values) {
+			if (builder.length() > 0) {
+				builder.append(";");
+			}
+			builder.append(value);
+		}
+		return builder.toString();
+	}
+	
+	// background commands run on channels of their own, so a single thread reads all the frames and hands them to whoever is waiting for that channel
+	private static void startReceiving() {
+		Thread receiver = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					ConsoleFrame frame;
+					while ((frame = framer.receive()) != null) {
+						framer.deliver(frame);
+					}
+				}
+				catch (IOException e) {
+					if (Triton.DEBUG) {
+						e.printStackTrace();
+					}
+				}
+				finally {
+					framer.end();
+				}
+			}
+		});
+		receiver.setName("triton-shell-receiver");
+		receiver.setDaemon(true);
+		receiver.start();
+	}
+	
+	// runs the command on a new channel, the output is printed above the prompt as it comes in
+	// there is no one to answer questions in the background, prompts get the default value and edited files are sent back as they are
+	private static void background(LineReader consoleReader, String command) throws IOException {
+		// job numbers are reused so they stay short and the server does not keep creating new channels
+		int free = 1;
+		while (jobs.containsKey(free)) {
+			free++;
+		}
+		int channel = free;
+		String[] split = command.split("\n");
+		jobs.put(channel, split[0] + (split.length > 1 ? "..." : ""));
+		framer.write(FrameType.COMMAND, channel, command);
+		consoleReader.printAbove("[" + channel + "] started");
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				String prefix = "[" + channel + "] ";
+				ByteArrayOutputStream line = new ByteArrayOutputStream();
+				try {
+					ConsoleFrame frame;
+					while ((frame = framer.read(channel, FrameType.values())) != null && frame.getType() != FrameType.END) {
+						switch (frame.getType()) {
+							case OUTPUT:
+								for (byte single : frame.getPayload()) {
+									if (single == '\n') {
+										consoleReader.printAbove(prefix + new String(line.toByteArray(), "UTF-8"));
+										line.reset();
+									}
+									else {
+										line.write(single);
+									}
+								}
+							break;
+							case PROMPT:
+							case PROMPT_SECRET:
+								consoleReader.printAbove(prefix + new String(frame.getPayload(), "UTF-8") + "(default)");
+								framer.write(FrameType.INPUT, channel, "");
+							break;
+							case FILE_EDIT:
+								File tmpFolder = Triton.getNewTmpFolder();
+								String[] parts = new String(frame.getPayload(), "UTF-8").split(";", 2);
+								InputStream data = framer.newDataInputStream(channel);
+								long size = Long.parseLong(parts[0]);
+								File file;
+								if (size > 0) {
+									file = copyInFile(tmpFolder, size, parts[1], data);
+								}
+								else {
+									file = new File(tmpFolder, parts[1]);
+									file.createNewFile();
+								}
+								while (data.read() >= 0) {
+									// skip
+								}
+								// we send it back as it is, with deltas that means we don't send it back at all
+								sendEdited(channel, file, delta ? FileDelta.signature(file) : null);
+								file.delete();
+								tmpFolder.delete();
+							break;
+							case TRANSFER:
+								try {
+									String request = new String(frame.getPayload(), "UTF-8");
+									// there is no screen for a command in the background
+									if (request.startsWith("view;")) {
+										framer.write(FrameType.TRANSFER, channel, "quit");
+										consoleReader.printAbove(prefix + "files can not be viewed in the background");
+									}
+									// there is no one to ask either
+									else if (!isRequested(command, request)) {
+										ChunkedTransfer.refuse(framer, channel, "Not allowed in the background");
+										consoleReader.printAbove(prefix + "refused to " + ChunkedTransfer.describe(request));
+									}
+									else {
+										TransferStatistics transferred = ChunkedTransfer.answer(framer, channel, request, new File(System.getProperty("user.dir")), Triton.getFolder("sync"), connector);
+										if (transferred != null) {
+											consoleReader.printAbove(prefix + "transferred " + transferred);
+										}
+									}
+								}
+								// we keep reading up to the end of the command
+								catch (IOException e) {
+									consoleReader.printAbove(prefix + "transfer failed: " + e.getMessage());
+								}
+							break;
+							default:
+								// ignore
+						}
+					}
+					if (line.size() > 0) {
+						consoleReader.printAbove(prefix + new String(line.toByteArray(), "UTF-8"));
+					}
+					consoleReader.printAbove(prefix + "done");
+				}
+				catch (Exception e) {
+					consoleReader.printAbove(prefix + "failed: " + e.getMessage());
+				}
+				finally {
+					jobs.remove(channel);
+				}
+			}
+		});
+		thread.setName("triton-shell-channel-" + channel);
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
 	private static Map<String, String> loadAliases() {
 		Map<String, String> aliases = new HashMap<String, String>();
 		File folder = Triton.getFolder("alias");
@@ -610,14 +1062,9 @@ public class TritonShell {
 		}
 	}
 
-	public static void copyOutFile(File file, OutputStream outputStream) {
-		try (InputStream inputStream = new BufferedInputStream(new FileInputStream(file))) {
-			byte [] buffer = new byte[8096];
-			int read = 0;
-			while ((read = inputStream.read(buffer)) >= 0) {
-				outputStream.write(buffer, 0, read);
-				outputStream.flush();
-			}
+	public static TransferStatistics copyOutFile(File file, long size, OutputStream outputStream) {
+		try {
+			return FileTransfer.send(file, size, outputStream);
 		}
 		catch (Exception e) {
 			throw new RuntimeException(e);
@@ -627,16 +1074,8 @@ public class TritonShell {
 	public static File copyInFile(File targetFolder, long size, String fileName, InputStream inputStream) {
 		File file = new File(targetFolder, fileName);
 		// it is then followed by that exact amount in bytes
-		try (OutputStream output = new BufferedOutputStream(new FileOutputStream(file))) {
-			byte [] buffer = new byte[8096];
-			int read = 0;
-			while ((read = inputStream.read(buffer, 0, (int) Math.min(size, buffer.length))) >= 0) {
-				output.write(buffer, 0, read);
-				size -= read;
-				if (size == 0) {
-					break;
-				}
-			}
+		try {
+			FileTransfer.receive(inputStream, size, file);
 		}
 		catch (Exception e) {
 			throw new RuntimeException(e);
@@ -644,6 +1083,17 @@ public class TritonShell {
 		return file;
 	}
 	
+	// small files are not worth mentioning
+	private static void report(Terminal terminal, TransferStatistics downloaded, TransferStatistics uploaded) {
+		if (downloaded != null && downloaded.getBytes() >= reportThreshold) {
+			terminal.writer().println("Downloaded " + downloaded);
+		}
+		if (uploaded != null && uploaded.getBytes() >= reportThreshold) {
+			terminal.writer().println("Uploaded " + uploaded);
+		}
+		terminal.flush();
+	}
+	
 
 	private static String encodeCertWithWrapper() throws CertificateEncodingException, KeyStoreException, IOException {
 		String certWriter = encodeCert();
@@ -819,7 +1269,7 @@ public class TritonShell {
 		// choose a profile if not chosen
 		if (chosenProfile == null) {
 			StandardInputProvider standardInputProvider = new StandardInputProvider();
-			KeyStoreHandler authenticationKeystore = TritonLocalConsole.getAuthenticationKeystore();
+			KeyStoreHandler authenticationKeystore = TritonLocalConsole.editAuthenticationKeystore();
 			int i = 1;
 			try {
 				List<String> profiles = new ArrayList<String>();
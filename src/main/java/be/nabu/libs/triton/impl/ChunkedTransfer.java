@@ -0,0 +1,500 @@
+/*
+* Copyright (C) 2021 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.triton.impl;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+
+import be.nabu.libs.triton.impl.ConsoleFrame.FrameType;
+
+/**
+ * Resumable file transfers over the framed protocol. They run on the channel of the command that started them, no additional connection is needed.
+ * The sender cuts the file in chunks, every chunk is announced in a transfer frame "chunk;<offset>;<length>;<sha-256>" followed by a single data frame with the content.
+ * The receiver checks the hash, writes the chunk to a ".part" file next to the target and acknowledges it with "ack;<verified offset>".
+ * The verified offset is also kept in a ".transfer" file, if the transfer is interrupted, the next attempt resumes from there as long as the source has not changed.
+ * The sender only has a few unacknowledged chunks in flight so the receiver never has to buffer much.
+ * Once all chunks are sent, the sender sends "done" and waits for "complete", at that point the file is in place at the receiving end.
+ * Large transfers can send their chunks over additional connections instead, see {@link ParallelTransfer}.
+ * For a download the server offers them with "parallel;<token>;<streams>" instead of the first chunk, for an upload it appends them to the resume: "resume;<offset>;<token>;<streams>".
+ */
+public class ChunkedTransfer {
+	
+	// must fit in a single frame
+	private static int chunkSize = Integer.parseInt(System.getProperty("triton.transfer.chunkSize", "" + (1024 * 1024)));
+	// the amount of chunks that can be sent before we wait for an acknowledgement
+	private static int window = Integer.parseInt(System.getProperty("triton.transfer.window", "4"));
+	
+	/**
+	 * Sends a file on the server to the client, the target is where the client should store it
+	 */
+	public static TransferStatistics download(ConsoleFramer framer, int channel, File source, String target, ParallelTransfer parallel) throws IOException {
+		long size = source.length();
+		framer.write(FrameType.TRANSFER, channel, "download;" + size + ";" + source.lastModified() + ";" + target);
+		String reply = expect(framer, channel);
+		if (!reply.startsWith("resume;")) {
+			throw new IOException("The client refused the download: " + reply.replaceFirst("^refuse;", ""));
+		}
+		long offset = Long.parseLong(reply.substring("resume;".length()));
+		if (parallel != null && size - offset >= ParallelTransfer.getThreshold()) {
+			TransferStatistics statistics = sendParallel(framer, channel, source, size, offset, parallel);
+			if (statistics != null) {
+				return statistics;
+			}
+		}
+		return send(framer, channel, source, size, offset);
+	}
+	
+	/**
+	 * Asks the client to send a file, the source is a path on the client
+	 */
+	public static TransferStatistics upload(ConsoleFramer framer, int channel, String source, File target, ParallelTransfer parallel) throws IOException {
+		framer.write(FrameType.TRANSFER, channel, "upload;" + source);
+		String reply = expect(framer, channel);
+		if (!reply.startsWith("file;")) {
+			throw new IOException("The client refused the upload: " + reply.replaceFirst("^refuse;", ""));
+		}
+		// file;<size>;<last modified>
+		String[] parts = reply.split(";");
+		long size = Long.parseLong(parts[1]);
+		String identity = source + ";" + parts[1] + ";" + parts[2];
+		long offset = getResumeOffset(target, identity, size);
+		if (parallel == null || size - offset < ParallelTransfer.getThreshold()) {
+			framer.write(FrameType.TRANSFER, channel, "resume;" + offset);
+			return receive(framer, channel, target, identity, size, offset, null, null);
+		}
+		parallel.offer();
+		try {
+			framer.write(FrameType.TRANSFER, channel, "resume;" + offset + ";" + parallel.getToken() + ";" + parallel.getStreams());
+			return receive(framer, channel, target, identity, size, offset, parallel, null);
+		}
+		finally {
+			parallel.withdraw();
+		}
+	}
+	
+	/**
+	 * The client side of the above, paths are resolved against the given folder and may not point outside of it
+	 * The connector is used to open additional connections if the server offers them, it can be null
+	 * Returns null if the request was refused
+	 */
+	public static TransferStatistics answer(ConsoleFramer framer, int channel, String request, File folder, File cacheFolder, SideConnector connector) throws IOException {
+		if (request.startsWith("download;")) {
+			// download;<size>;<last modified>;<target>
+			String[] parts = request.split(";", 4);
+			long size = Long.parseLong(parts[1]);
+			File target = resolve(folder, parts[3]);
+			String identity = parts[1] + ";" + parts[2];
+			if (target == null) {
+				framer.write(FrameType.TRANSFER, channel, "refuse;Not allowed: " + parts[3]);
+				return null;
+			}
+			else if (target.isDirectory() || !target.getAbsoluteFile().getParentFile().isDirectory()) {
+				framer.write(FrameType.TRANSFER, channel, "refuse;Can not write to: " + target);
+				return null;
+			}
+			long offset = getResumeOffset(target, identity, size);
+			framer.write(FrameType.TRANSFER, channel, "resume;" + offset);
+			return receive(framer, channel, target, identity, size, offset, null, connector);
+		}
+		else if (request.startsWith("upload;")) {
+			File source = resolve(folder, request.substring("upload;".length()));
+			if (source == null) {
+				framer.write(FrameType.TRANSFER, channel, "refuse;Not allowed: " + request.substring("upload;".length()));
+				return null;
+			}
+			else if (!source.isFile()) {
+				framer.write(FrameType.TRANSFER, channel, "refuse;Not a file: " + source);
+				return null;
+			}
+			long size = source.length();
+			framer.write(FrameType.TRANSFER, channel, "file;" + size + ";" + source.lastModified());
+			String reply = expect(framer, channel);
+			if (!reply.startsWith("resume;")) {
+				throw new IOException("Unexpected reply: " + reply);
+			}
+			String[] parts = reply.split(";");
+			long offset = Long.parseLong(parts[1]);
+			if (parts.length >= 4) {
+				List<Socket> sockets = join(framer, channel, connector, parts[2], parts[3]);
+				if (!sockets.isEmpty()) {
+					return sendParallel(framer, channel, source, size, offset, sockets);
+				}
+			}
+			return send(framer, channel, source, size, offset);
+		}
+		else if (request.startsWith("sync;")) {
+			File source = resolve(folder, request.substring("sync;".length()));
+			if (source == null) {
+				framer.write(FrameType.TRANSFER, channel, "refuse;Not allowed: " + request.substring("sync;".length()));
+				return null;
+			}
+			return DirectorySync.answer(framer, channel, source, cacheFolder);
+		}
+		// chunks of a transfer that was aborted at our end may still arrive, they are of no use anymore
+		return null;
+	}
+	
+	/**
+	 * Describes what the server asks of the client, or returns null if it is not the start of a transfer
+	 */
+	public static String describe(String request) {
+		if (request.startsWith("download;")) {
+			return "write to " + request.split(";", 4)[3];
+		}
+		else if (request.startsWith("upload;")) {
+			return "read " + request.substring("upload;".length());
+		}
+		else if (request.startsWith("sync;")) {
+			return "read the folder " + request.substring("sync;".length());
+		}
+		return null;
+	}
+	
+	/**
+	 * The name of the method that starts the given request on the server, or null if it is not the start of a transfer
+	 */
+	public static String getMethod(String request) {
+		return describe(request) == null ? null : request.substring(0, request.indexOf(';'));
+	}
+	
+	/**
+	 * The client does not want to take part in a transfer the server asked for
+	 */
+	public static void refuse(ConsoleFramer framer, int channel, String reason) throws IOException {
+		framer.write(FrameType.TRANSFER, channel, "refuse;" + reason);
+	}
+	
+	private static TransferStatistics send(ConsoleFramer framer, int channel, File source, long size, long offset) throws IOException {
+		long started = System.nanoTime();
+		boolean compressible = ConsoleFramer.isCompressible(source.getName());
+		try (FileChannel file = FileChannel.open(source.toPath(), StandardOpenOption.READ)) {
+			byte [] buffer = new byte[chunkSize];
+			long position = offset;
+			int unacknowledged = 0;
+			while (position < size) {
+				int length = (int) Math.min(buffer.length, size - position);
+				ByteBuffer wrapped = ByteBuffer.wrap(buffer, 0, length);
+				while (wrapped.hasRemaining()) {
+					if (file.read(wrapped, position + wrapped.position()) < 0) {
+						throw fail(framer, channel, "The file was truncated during the transfer: " + source.getName());
+					}
+				}
+				framer.write(FrameType.TRANSFER, channel, "chunk;" + position + ";" + length + ";" + hash(buffer, length));
+				framer.write(FrameType.DATA, channel, buffer, 0, length, compressible);
+				position += length;
+				if (++unacknowledged >= window) {
+					acknowledge(framer, channel);
+					unacknowledged--;
+				}
+			}
+			while (unacknowledged-- > 0) {
+				acknowledge(framer, channel);
+			}
+			finish(framer, channel);
+		}
+		catch (IOException e) {
+			// for example the file can not be read, let the other end know so it is not left waiting for chunks
+			abort(framer, channel, e);
+			throw e;
+		}
+		return new TransferStatistics(source.getName(), size - offset, System.nanoTime() - started, false, offset);
+	}
+	
+	// the server sends over the connections that the client joined, returns null if it did not join any
+	private static TransferStatistics sendParallel(ConsoleFramer framer, int channel, File source, long size, long offset, ParallelTransfer parallel) throws IOException {
+		long started = System.nanoTime();
+		parallel.offer();
+		try (FileChannel file = FileChannel.open(source.toPath(), StandardOpenOption.READ)) {
+			framer.write(FrameType.TRANSFER, channel, "parallel;" + parallel.getToken() + ";" + parallel.getStreams());
+			int joined = getJoined(expect(framer, channel));
+			if (joined == 0) {
+				return null;
+			}
+			parallel.start(sender(file, offset, size));
+			parallel.await(joined);
+			finish(framer, channel);
+		}
+		catch (IOException e) {
+			abort(framer, channel, e);
+			throw e;
+		}
+		finally {
+			parallel.withdraw();
+		}
+		return new TransferStatistics(source.getName(), size - offset, System.nanoTime() - started, false, offset);
+	}
+	
+	// the client sends over the connections it opened
+	private static TransferStatistics sendParallel(ConsoleFramer framer, int channel, File source, long size, long offset, List<Socket> sockets) throws IOException {
+		long started = System.nanoTime();
+		try (FileChannel file = FileChannel.open(source.toPath(), StandardOpenOption.READ)) {
+			ParallelTransfer.run(sockets, sender(file, offset, size));
+			finish(framer, channel);
+		}
+		catch (IOException e) {
+			abort(framer, channel, e);
+			throw e;
+		}
+		return new TransferStatistics(source.getName(), size - offset, System.nanoTime() - started, false, offset);
+	}
+	
+	private static ParallelTransfer.Stripe sender(final FileChannel file, final long offset, final long size) {
+		final AtomicLong next = new AtomicLong();
+		return new ParallelTransfer.Stripe() {
+			@Override
+			public void run(InputStream input, OutputStream output) throws IOException {
+				ParallelTransfer.send(file, offset, size, next, output);
+			}
+		};
+	}
+	
+	private static ParallelTransfer.Stripe receiver(final FileChannel file, final ParallelTransfer.Progress progress) {
+		return new ParallelTransfer.Stripe() {
+			@Override
+			public void run(InputStream input, OutputStream output) throws IOException {
+				ParallelTransfer.receive(input, file, progress);
+			}
+		};
+	}
+	
+	// the client opens the additional connections the server offered and reports how many were accepted
+	private static List<Socket> join(ConsoleFramer framer, int channel, SideConnector connector, String token, String streams) throws IOException {
+		List<Socket> sockets = connector == null ? new ArrayList<Socket>() : ParallelTransfer.connect(connector, token, Integer.parseInt(streams));
+		framer.write(FrameType.TRANSFER, channel, "joined;" + sockets.size());
+		return sockets;
+	}
+	
+	private static int getJoined(String reply) throws IOException {
+		if (!reply.startsWith("joined;")) {
+			throw new TransferException("The transfer failed at the other end: " + reply.replaceFirst("^fail;", ""));
+		}
+		return Integer.parseInt(reply.substring("joined;".length()));
+	}
+	
+	private static void finish(ConsoleFramer framer, int channel) throws IOException {
+		framer.write(FrameType.TRANSFER, channel, "done");
+		String reply = expect(framer, channel);
+		if (!reply.equals("complete")) {
+			throw new TransferException("The transfer failed at the other end: " + reply.replaceFirst("^fail;", ""));
+		}
+	}
+	
+	private static TransferStatistics receive(ConsoleFramer framer, int channel, File target, String identity, long size, long offset, ParallelTransfer parallel, SideConnector connector) throws IOException {
+		long started = System.nanoTime();
+		File part = getPartFile(target);
+		try {
+			long verified = offset;
+			try (FileChannel file = FileChannel.open(part.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE)) {
+				// anything after the last verified chunk can not be trusted
+				file.truncate(offset);
+				String header;
+				while (!(header = expect(framer, channel)).equals("done")) {
+					if (header.startsWith("fail;")) {
+						throw new TransferException("The transfer failed at the other end: " + header.substring("fail;".length()));
+					}
+					String[] parts = header.split(";");
+					// the server offers additional connections for the rest of the download
+					if (parts.length == 3 && parts[0].equals("parallel")) {
+						List<Socket> sockets = join(framer, channel, connector, parts[1], parts[2]);
+						if (!sockets.isEmpty()) {
+							ParallelTransfer.Progress progress = new ParallelTransfer.Progress(target, identity, verified, size);
+							try {
+								ParallelTransfer.run(sockets, receiver(file, progress));
+							}
+							finally {
+								verified = progress.getVerified();
+							}
+						}
+						continue;
+					}
+					// the client joined the connections we offered for the upload
+					else if (parts.length == 2 && parts[0].equals("joined") && parallel != null) {
+						int joined = Integer.parseInt(parts[1]);
+						if (joined > 0) {
+							ParallelTransfer.Progress progress = new ParallelTransfer.Progress(target, identity, verified, size);
+							parallel.start(receiver(file, progress));
+							try {
+								parallel.await(joined);
+							}
+							finally {
+								verified = progress.getVerified();
+							}
+						}
+						continue;
+					}
+					if (parts.length != 4 || !parts[0].equals("chunk")) {
+						throw fail(framer, channel, "Unexpected transfer frame: " + header);
+					}
+					ConsoleFrame data = framer.read(channel, FrameType.DATA);
+					if (data == null) {
+						throw new IOException("Connection closed during the transfer of: " + target.getName());
+					}
+					byte [] payload = data.getPayload();
+					if (Long.parseLong(parts[1]) != verified || payload.length != Integer.parseInt(parts[2]) || !hash(payload, payload.length).equals(parts[3])) {
+						// what we have so far is kept, trying again resumes from the last verified chunk
+						throw fail(framer, channel, "The chunk at offset " + parts[1] + " of " + target.getName() + " is corrupt");
+					}
+					ByteBuffer wrapped = ByteBuffer.wrap(payload);
+					while (wrapped.hasRemaining()) {
+						file.write(wrapped, verified + wrapped.position());
+					}
+					verified += payload.length;
+					saveState(target, identity, verified);
+					framer.write(FrameType.TRANSFER, channel, "ack;" + verified);
+				}
+			}
+			if (verified != size) {
+				throw fail(framer, channel, "Received " + verified + " of " + size + " bytes for: " + target.getName());
+			}
+			Files.move(part.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			getStateFile(target).delete();
+			framer.write(FrameType.TRANSFER, channel, "complete");
+		}
+		catch (IOException e) {
+			// for example the disk is full
+			abort(framer, channel, e);
+			throw e;
+		}
+		return new TransferStatistics(target.getName(), size - offset, System.nanoTime() - started, false, offset);
+	}
+	
+	static void acknowledge(ConsoleFramer framer, int channel) throws IOException {
+		String reply = expect(framer, channel);
+		if (!reply.startsWith("ack;")) {
+			throw new TransferException("The transfer failed at the other end: " + reply.replaceFirst("^fail;", ""));
+		}
+	}
+	
+	static String expect(ConsoleFramer framer, int channel) throws IOException {
+		ConsoleFrame frame = framer.read(channel, FrameType.TRANSFER);
+		if (frame == null) {
+			throw new IOException("Connection closed during the transfer");
+		}
+		return new String(frame.getPayload(), framer.getCharset());
+	}
+	
+	// tells the other end that we are giving up
+	static TransferException fail(ConsoleFramer framer, int channel, String message) throws IOException {
+		framer.write(FrameType.TRANSFER, channel, "fail;" + message);
+		return new TransferException(message);
+	}
+	
+	static void abort(ConsoleFramer framer, int channel, IOException e) {
+		if (!(e instanceof TransferException)) {
+			try {
+				framer.write(FrameType.TRANSFER, channel, "fail;" + e.getMessage());
+			}
+			catch (IOException f) {
+				// the connection is gone
+			}
+		}
+	}
+	
+	// we only resume if we have part of exactly the same source
+	private static long getResumeOffset(File target, String identity, long size) {
+		File part = getPartFile(target);
+		File state = getStateFile(target);
+		if (part.exists() && state.exists()) {
+			Properties properties = new Properties();
+			try (InputStream input = new FileInputStream(state)) {
+				properties.load(input);
+				if (identity.equals(properties.getProperty("identity"))) {
+					return Math.min(size, Math.min(part.length(), Long.parseLong(properties.getProperty("offset", "0"))));
+				}
+			}
+			catch (Exception e) {
+				// start over
+			}
+		}
+		return 0;
+	}
+	
+	static void saveState(File target, String identity, long offset) throws IOException {
+		Properties properties = new Properties();
+		properties.setProperty("identity", identity);
+		properties.setProperty("offset", "" + offset);
+		try (OutputStream output = new FileOutputStream(getStateFile(target))) {
+			properties.store(output, null);
+		}
+	}
+	
+	private static File getPartFile(File target) {
+		return new File(target.getAbsoluteFile().getParentFile(), target.getName() + ".part");
+	}
+	
+	private static File getStateFile(File target) {
+		return new File(target.getAbsoluteFile().getParentFile(), target.getName() + ".transfer");
+	}
+	
+	// the path comes from the server, anything that ends up outside of the folder is refused (null)
+	static File resolve(File folder, String path) throws IOException {
+		File file = new File(path);
+		if (!file.isAbsolute()) {
+			file = new File(folder, path);
+		}
+		String canonicalFolder = folder.getCanonicalPath();
+		String canonicalFile = file.getCanonicalPath();
+		if (canonicalFile.equals(canonicalFolder) || canonicalFile.startsWith(canonicalFolder.endsWith(File.separator) ? canonicalFolder : canonicalFolder + File.separator)) {
+			return file;
+		}
+		return null;
+	}
+	
+	static int getChunkSize() {
+		return chunkSize;
+	}
+	
+	static String hash(byte [] bytes, int length) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(bytes, 0, length);
+			StringBuilder builder = new StringBuilder();
+			for (byte single : digest.digest()) {
+				builder.append(String.format("%02x", single));
+			}
+			return builder.toString();
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	// a failure that the other end already knows about
+	static class TransferException extends IOException {
+		private static final long serialVersionUID = 1L;
+		TransferException(String message) {
+			super(message);
+		}
+	}
+}
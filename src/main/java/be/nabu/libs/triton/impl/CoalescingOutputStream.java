@@ -0,0 +1,197 @@
+/*
+* Copyright (C) 2021 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.triton.impl;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Collects small writes so they go out as a few large writes rather than many tiny packets (and tls records).
+ * Buffered data is sent once the buffer is full, once nothing was written for a short while or once the oldest data has waited long enough.
+ * A regular flush is ignored, everyone that prints a line flushes it, the console drains the stream itself at the boundaries that matter (prompts and the end of a response).
+ * One scheduler keeps time for all the streams but it never writes itself: a timed flush is handed to the given executor, so a client that does not read can only block its own flush.
+ */
+public class CoalescingOutputStream extends OutputStream {
+
+	private static int maxBuffer = Integer.parseInt(System.getProperty("triton.output.maxBuffer", "32768"));
+	// how long (in ms) the output has to be idle before we send what we have
+	private static long idleDelay = Long.parseLong(System.getProperty("triton.output.idleDelay", "5"));
+	// how long (in ms) buffered output can wait at most, even if writes keep trickling in
+	private static long maxDelay = Long.parseLong(System.getProperty("triton.output.maxDelay", "50"));
+	
+	private static ScheduledExecutorService scheduler;
+	
+	private OutputStream parent;
+	private Executor flusher;
+	private byte [] buffer;
+	private int size;
+	// in nanoseconds
+	private long firstWrite, lastWrite;
+	private volatile boolean scheduled;
+	// a failure of a timed flush is reported to the next writer
+	private IOException failure;
+	private Lock lock = new ReentrantLock();
+	
+	public CoalescingOutputStream(OutputStream parent, Executor flusher) {
+		this.parent = parent;
+		this.flusher = flusher;
+	}
+	
+	private static synchronized ScheduledExecutorService getScheduler() {
+		if (scheduler == null) {
+			scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r);
+					thread.setName("triton-output-flusher");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return scheduler;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+	
+	@Override
+	public void write(byte[] bytes, int offset, int length) throws IOException {
+		lock.lock();
+		try {
+			if (failure != null) {
+				IOException failure = this.failure;
+				this.failure = null;
+				throw failure;
+			}
+			// no use copying large writes, we send what we have and pass it along
+			if (length >= maxBuffer) {
+				drain();
+				parent.write(bytes, offset, length);
+				parent.flush();
+				return;
+			}
+			if (size + length > maxBuffer) {
+				drain();
+			}
+			if (buffer == null) {
+				buffer = new byte[maxBuffer];
+			}
+			System.arraycopy(bytes, offset, buffer, size, length);
+			lastWrite = System.nanoTime();
+			if (size == 0) {
+				firstWrite = lastWrite;
+			}
+			size += length;
+			if (!scheduled) {
+				schedule(idleDelay);
+			}
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+	
+	private void schedule(long delay) {
+		scheduled = true;
+		getScheduler().schedule(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					flusher.execute(new Runnable() {
+						@Override
+						public void run() {
+							check();
+						}
+					});
+				}
+				// the console is shutting down
+				catch (RejectedExecutionException e) {
+					scheduled = false;
+				}
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+	
+	private void check() {
+		lock.lock();
+		try {
+			scheduled = false;
+			if (size == 0) {
+				return;
+			}
+			long now = System.nanoTime();
+			long idle = TimeUnit.NANOSECONDS.toMillis(now - lastWrite);
+			long waiting = TimeUnit.NANOSECONDS.toMillis(now - firstWrite);
+			if (idle >= idleDelay || waiting >= maxDelay) {
+				drain();
+				// an idle stream does not need to hold on to its buffer
+				buffer = null;
+			}
+			else {
+				schedule(Math.max(1, Math.min(idleDelay - idle, maxDelay - waiting)));
+			}
+		}
+		catch (IOException e) {
+			failure = e;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Send everything that is buffered right now
+	 */
+	public void drain() throws IOException {
+		lock.lock();
+		try {
+			if (size > 0) {
+				int amount = size;
+				size = 0;
+				parent.write(buffer, 0, amount);
+			}
+			parent.flush();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+	
+	// we decide for ourselves when to send
+	@Override
+	public void flush() throws IOException {
+		// do nothing
+	}
+
+	// the underlying stream is shared, it remains open
+	@Override
+	public void close() throws IOException {
+		drain();
+	}
+}
@@ -0,0 +1,166 @@
+/*
+* Copyright (C) 2021 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.triton.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The client side of completion: the method catalogue of a server is kept locally (and on disk per server) so methods can be completed without a round trip.
+ * File suggestions still come from the server but are remembered for a short while.
+ */
+public class CompletionCache {
+	
+	// how long file suggestions remain valid
+	private static long fileTimeout = Long.parseLong(System.getProperty("triton.completion.fileTimeout", "5000"));
+	private static int maxFileEntries = Integer.parseInt(System.getProperty("triton.completion.maxFileEntries", "100"));
+	// how long before we ask the server whether the catalogue is still up to date
+	private static long revalidateInterval = Long.parseLong(System.getProperty("triton.completion.revalidate", "60000"));
+	
+	private static Charset charset = Charset.forName("UTF-8");
+	
+	private Logger logger = LoggerFactory.getLogger(getClass());
+	private File file;
+	private volatile String version;
+	private volatile MethodCompletionIndex index;
+	private volatile long validated;
+	private AtomicBoolean validating = new AtomicBoolean();
+	
+	private Map<String, CachedFiles> files = new LinkedHashMap<String, CachedFiles>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, CachedFiles> eldest) {
+			return size() > maxFileEntries;
+		}
+	};
+	
+	public CompletionCache(File file) {
+		this.file = file;
+		load();
+	}
+	
+	// the persisted catalogue is used until the server tells us otherwise, it is not considered validated
+	private void load() {
+		if (file.exists()) {
+			try {
+				String content = new String(Files.readAllBytes(file.toPath()), charset);
+				int index = content.indexOf('\n');
+				if (index > 0) {
+					this.index = MethodCompletionIndex.fromCatalogue(content.substring(index + 1));
+					this.version = content.substring(0, index).trim();
+				}
+			}
+			catch (Exception e) {
+				logger.warn("Could not load completion catalogue: " + file, e);
+			}
+		}
+	}
+	
+	/**
+	 * Returns null if we have no catalogue, the caller should ask the server
+	 */
+	public List<String> suggestMethods(String soFar) {
+		MethodCompletionIndex index = this.index;
+		return index == null ? null : index.suggest(soFar);
+	}
+	
+	public String getVersion() {
+		return version;
+	}
+	
+	/**
+	 * Returns true if the caller should revalidate, only one caller at a time gets true, it must call update() or abandon() afterwards
+	 */
+	public boolean startValidation() {
+		if (System.currentTimeMillis() - validated < revalidateInterval) {
+			return false;
+		}
+		return validating.compareAndSet(false, true);
+	}
+	
+	public void abandon() {
+		validating.set(false);
+	}
+	
+	/**
+	 * Process the response to a Fetch-Methods, the first line is the version, the rest is the catalogue if it changed
+	 */
+	public void update(String response) {
+		try {
+			if (response == null || response.trim().isEmpty()) {
+				// a server that does not know the negotiation, we don't keep asking on every key stroke
+				return;
+			}
+			int index = response.indexOf('\n');
+			String version = (index < 0 ? response : response.substring(0, index)).trim();
+			String catalogue = index < 0 ? "" : response.substring(index + 1);
+			if (!version.equals(this.version) && !catalogue.trim().isEmpty()) {
+				this.index = MethodCompletionIndex.fromCatalogue(catalogue);
+				this.version = version;
+				save(version + "\n" + catalogue);
+			}
+		}
+		finally {
+			validated = System.currentTimeMillis();
+			validating.set(false);
+		}
+	}
+	
+	// write to a temporary file first so another shell for the same server never reads half a catalogue
+	private void save(String content) {
+		try {
+			File temporary = new File(file.getParentFile(), file.getName() + ".tmp");
+			Files.write(temporary.toPath(), content.getBytes(charset));
+			Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+		catch (IOException e) {
+			logger.warn("Could not persist completion catalogue: " + file, e);
+		}
+	}
+	
+	public synchronized String getFiles(String request) {
+		CachedFiles cached = files.get(request);
+		if (cached != null && System.currentTimeMillis() - cached.created > fileTimeout) {
+			files.remove(request);
+			cached = null;
+		}
+		return cached == null ? null : cached.suggestions;
+	}
+	
+	public synchronized void putFiles(String request, String suggestions) {
+		files.put(request, new CachedFiles(suggestions));
+	}
+	
+	private static class CachedFiles {
+		private long created = System.currentTimeMillis();
+		private String suggestions;
+		CachedFiles(String suggestions) {
+			this.suggestions = suggestions;
+		}
+	}
+}
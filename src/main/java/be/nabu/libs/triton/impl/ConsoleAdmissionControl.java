@@ -0,0 +1,222 @@
+/*
+* Copyright (C) 2021 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package be.nabu.libs.triton.impl;
+
+import java.net.Socket;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import be.nabu.libs.triton.api.ConsoleSource;
+
+/**
+ * Decides whether a new console can start, has to wait for a slot or is turned away.
+ * Anyone turned away gets an explicit busy message before the connection is closed so clients don't hang around.
+ */
+public class ConsoleAdmissionControl {
+	
+	private Logger logger = LoggerFactory.getLogger(getClass());
+	
+	private int maxActive, maxQueued;
+	// how long a console can wait in the queue (in ms) and how long we advise clients to wait before they retry (in seconds)
+	private long queueTimeout, retryAfter;
+	
+	private int active;
+	private LinkedList<Pending> queue = new LinkedList<Pending>();
+	// parked consoles that have something to do again, they go before new connections and are never turned away
+	private LinkedList<Pending> resumed = new LinkedList<Pending>();
+	private long accepted, rejected, timedOut, totalQueued, totalQueueTime, maxQueueTime;
+	private ScheduledExecutorService scheduler;
+	
+	private class Pending {
+		private ConsoleSource source;
+		private Runnable starter;
+		private Date created = new Date();
+		private ScheduledFuture<?> expiry;
+	}
+	
+	public ConsoleAdmissionControl(int maxActive, int maxQueued, long queueTimeout, long retryAfter) {
+		this.maxActive = maxActive;
+		this.maxQueued = maxQueued;
+		this.queueTimeout = queueTimeout;
+		this.retryAfter = retryAfter;
+		// also used to write the rejections, we don't want a slow client to hold up the acceptor
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = Executors.defaultThreadFactory().newThread(r);
+				thread.setName("triton-admission");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+	
+	/**
+	 * The starter is run once the console is admitted, either immediately or once a slot frees up
+	 */
+	public void admit(ConsoleSource source, Runnable starter) {
+		boolean start = false, reject = false;
+		synchronized(this) {
+			if (active < maxActive) {
+				active++;
+				accepted++;
+				start = true;
+			}
+			else if (queue.size() < maxQueued) {
+				final Pending pending = new Pending();
+				pending.source = source;
+				pending.starter = starter;
+				queue.add(pending);
+				pending.expiry = scheduler.schedule(new Runnable() {
+					@Override
+					public void run() {
+						expire(pending);
+					}
+				}, queueTimeout, TimeUnit.MILLISECONDS);
+			}
+			else {
+				rejected++;
+				reject = true;
+			}
+		}
+		if (start) {
+			starter.run();
+		}
+		else if (reject) {
+			logger.warn("Rejecting console connection from " + source + ", the server is busy");
+			reject(source);
+		}
+	}
+	
+	/**
+	 * A console that gave back its slot while it was parked needs one again, at worst it waits for a slot to free up
+	 */
+	public void resume(ConsoleSource source, Runnable starter) {
+		synchronized(this) {
+			if (active >= maxActive) {
+				Pending pending = new Pending();
+				pending.source = source;
+				pending.starter = starter;
+				resumed.add(pending);
+				return;
+			}
+			active++;
+		}
+		starter.run();
+	}
+	
+	/**
+	 * Must be called once for every admitted (or resumed) console when it stops or parks
+	 */
+	public void release() {
+		Pending next = null;
+		synchronized(this) {
+			active--;
+			// a resumed console must always run, even if it was closed in the meantime, it has to clean up after itself
+			if (!resumed.isEmpty()) {
+				active++;
+				next = resumed.removeFirst();
+			}
+			Iterator<Pending> iterator = queue.iterator();
+			while (next == null && iterator.hasNext()) {
+				Pending pending = iterator.next();
+				iterator.remove();
+				pending.expiry.cancel(false);
+				// it might have given up in the meantime
+				if (pending.source.isClosed()) {
+					continue;
+				}
+				long waited = new Date().getTime() - pending.created.getTime();
+				totalQueued++;
+				totalQueueTime += waited;
+				maxQueueTime = Math.max(maxQueueTime, waited);
+				active++;
+				accepted++;
+				next = pending;
+			}
+		}
+		if (next != null) {
+			next.starter.run();
+		}
+	}
+	
+	private void expire(Pending pending) {
+		synchronized(this) {
+			if (!queue.remove(pending)) {
+				return;
+			}
+			rejected++;
+			timedOut++;
+		}
+		logger.warn("Console connection from " + pending.source + " waited too long for a slot");
+		reject(pending.source);
+	}
+	
+	private void reject(final ConsoleSource source) {
+		scheduler.submit(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					// for ssl this may still trigger a handshake, we don't want to wait forever on it
+					if (source instanceof ConsoleSocketSource) {
+						Socket socket = ((ConsoleSocketSource) source).getSocket();
+						socket.setSoTimeout(5000);
+					}
+					source.getWriter().write("Server busy, retry after " + retryAfter + " seconds\n");
+					source.getWriter().flush();
+				}
+				catch (Exception e) {
+					// ignore, we are closing it anyway
+				}
+				finally {
+					try {
+						source.close();
+					}
+					catch (Exception e) {
+						// ignore
+					}
+				}
+			}
+		});
+	}
+	
+	public synchronized ConsoleStatistics getStatistics() {
+		ConsoleStatistics statistics = new ConsoleStatistics();
+		statistics.setActive(active);
+		statistics.setQueued(queue.size());
+		statistics.setMaxActive(maxActive);
+		statistics.setMaxQueued(maxQueued);
+		statistics.setAccepted(accepted);
+		statistics.setRejected(rejected);
+		statistics.setTimedOut(timedOut);
+		statistics.setTotalQueued(totalQueued);
+		statistics.setTotalQueueTime(totalQueueTime);
+		statistics.setMaxQueueTime(maxQueueTime);
+		return statistics;
+	}
+}
@@ -0,0 +1,480 @@
+/*
+* Copyright (C) 2021 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.triton.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.Date;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import be.nabu.libs.triton.Triton;
+import be.nabu.libs.triton.api.ConsoleSource;
+import be.nabu.utils.io.blocking.LoggingInputStream;
+import be.nabu.utils.io.blocking.LoggingOutputStream;
+
+/**
+ * A console source that is fed by the selector of the console server rather than by a dedicated reading thread.
+ * Incoming bytes are buffered here until the session picks them up, an idle session does not hold on to a thread at all.
+ */
+public class ConsoleChannelSource implements ConsoleSource {
+
+	// we don't want a single client to make us buffer indefinitely, if it gets too much we stop reading from the socket
+	private static int maxBuffered = Integer.parseInt(System.getProperty("triton.nio.maxBuffered", "" + (1024 * 1024)));
+	// the initial (and idle) size of the buffer, this is what an idle console costs us
+	private static int minBuffer = 512;
+
+	private SocketChannel channel;
+	private SelectionKey key;
+	private Charset charset;
+	private volatile Date lastRead = new Date();
+	private volatile boolean closed;
+	// whether we have reached the end of the stream
+	private boolean eof;
+	// whether the session is parked, waiting for a new line
+	private boolean parked;
+	// if set, the session is parked until this many bytes are buffered rather than until a new line
+	private int needed;
+	// whether we temporarily stopped reading because the buffer is full
+	private boolean suspended;
+	private byte[] buffer = new byte[minBuffer];
+	private int size;
+	// the amount of buffered bytes we already know don't contain a linefeed, so long lines are not scanned over and over
+	private int scanned;
+	// called when a parked session has something to do again
+	private Runnable resumer;
+	private Reader reader;
+	private Writer writer;
+	private Selector writeSelector;
+	private InputStream input = new ChannelInputStream();
+	private OutputStream output = new ChannelOutputStream();
+	// we use explicit locks rather than monitors so a waiting virtual thread does not pin its carrier
+	private Lock lock = new ReentrantLock();
+	private Condition available = lock.newCondition();
+	private Lock writeLock = new ReentrantLock();
+
+	public ConsoleChannelSource(SocketChannel channel, Charset charset) {
+		this.channel = channel;
+		this.charset = charset;
+	}
+
+	/**
+	 * Called by the selector when the channel is readable, returns false if the channel has reached the end of the stream
+	 */
+	public boolean fill(ByteBuffer scratch) throws IOException {
+		scratch.clear();
+		int read = channel.read(scratch);
+		boolean resume = false;
+		lock.lock();
+		try {
+			if (read < 0) {
+				eof = true;
+				key.cancel();
+			}
+			else if (read > 0) {
+				scratch.flip();
+				ensureCapacity(size + read);
+				scratch.get(buffer, size, read);
+				size += read;
+				// stop reading until the session catches up
+				if (size >= maxBuffered) {
+					suspended = true;
+					key.interestOps(0);
+				}
+			}
+			available.signalAll();
+			// a line that fills the entire buffer can never be completed, the session has to wake up to fail it
+			if (parked && (eof || suspended || (needed > 0 ? size >= needed : indexOfLinefeed() >= 0))) {
+				parked = false;
+				resume = true;
+			}
+		}
+		finally {
+			lock.unlock();
+		}
+		if (resume && resumer != null) {
+			resumer.run();
+		}
+		return read >= 0;
+	}
+
+	/**
+	 * Parks the session if there is no full line available, the resumer will be called once there is
+	 */
+	public boolean park() {
+		lock.lock();
+		try {
+			if (eof || closed || suspended || indexOfLinefeed() >= 0) {
+				return false;
+			}
+			parked = true;
+			needed = 0;
+			return true;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Parks the session until at least the given amount of bytes is buffered, this is used for protocols that know how much they need
+	 * If we would stop reading before that amount is reached, the session is not parked
+	 */
+	public boolean park(int needed) {
+		lock.lock();
+		try {
+			if (eof || closed || suspended || size >= needed || needed > maxBuffered) {
+				return false;
+			}
+			parked = true;
+			this.needed = needed;
+			return true;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * The amount of bytes that are buffered and not yet read
+	 */
+	public int getBuffered() {
+		lock.lock();
+		try {
+			return size;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Whether a full line can be read without waiting
+	 */
+	public boolean isLineAvailable() {
+		lock.lock();
+		try {
+			return indexOfLinefeed() >= 0;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	public String readLine() throws IOException {
+		lock.lock();
+		try {
+			int index;
+			while ((index = indexOfLinefeed()) < 0 && !eof && !closed) {
+				// we stopped reading because the buffer is full, there will be no linefeed
+				if (suspended) {
+					throw new IOException("The line exceeds the maximum of " + maxBuffered + " bytes");
+				}
+				await();
+			}
+			if (index < 0) {
+				// the last line may not be terminated
+				if (size == 0) {
+					return null;
+				}
+				index = size;
+			}
+			int length = index > 0 && buffer[index - 1] == '\r' ? index - 1 : index;
+			String line = new String(buffer, 0, length, charset);
+			consume(Math.min(index + 1, size));
+			return line;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+	
+	private void await() throws IOException {
+		try {
+			available.await();
+		}
+		catch (InterruptedException e) {
+			throw new IOException("Interrupted while waiting for input", e);
+		}
+	}
+
+	private int indexOfLinefeed() {
+		for (int i = scanned; i < size; i++) {
+			if (buffer[i] == '\n') {
+				scanned = i;
+				return i;
+			}
+		}
+		scanned = size;
+		return -1;
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (capacity > buffer.length) {
+			byte [] bigger = new byte[Math.max(capacity, buffer.length * 2)];
+			System.arraycopy(buffer, 0, bigger, 0, size);
+			buffer = bigger;
+		}
+	}
+
+	private void consume(int amount) {
+		size -= amount;
+		scanned = Math.max(0, scanned - amount);
+		// once we have read everything, we fall back to a small buffer so idle sessions stay cheap
+		if (size == 0 && buffer.length > minBuffer) {
+			buffer = new byte[minBuffer];
+		}
+		else if (size > 0) {
+			System.arraycopy(buffer, amount, buffer, 0, size);
+		}
+		if (suspended && size < maxBuffered / 2) {
+			suspended = false;
+			if (key.isValid()) {
+				key.interestOps(SelectionKey.OP_READ);
+				key.selector().wakeup();
+			}
+		}
+	}
+
+	@Override
+	public synchronized Reader getReader() {
+		if (reader == null) {
+			reader = new InputStreamReader(getInputStream(), charset);
+		}
+		return reader;
+	}
+
+	@Override
+	public synchronized Writer getWriter() {
+		if (writer == null) {
+			writer = new OutputStreamWriter(getOutputStream(), charset);
+		}
+		return writer;
+	}
+
+	@Override
+	public InputStream getInputStream() {
+		return Triton.DEBUG ? new LoggingInputStream(input) : input;
+	}
+
+	@Override
+	public OutputStream getOutputStream() {
+		return Triton.DEBUG ? new LoggingOutputStream(output) : output;
+	}
+
+	@Override
+	public boolean isClosed() {
+		return closed || !channel.isOpen();
+	}
+
+	@Override
+	public void close() throws Exception {
+		boolean resume = false;
+		lock.lock();
+		try {
+			closed = true;
+			available.signalAll();
+			if (parked) {
+				parked = false;
+				resume = true;
+			}
+		}
+		finally {
+			lock.unlock();
+		}
+		try {
+			channel.close();
+		}
+		finally {
+			writeLock.lock();
+			try {
+				if (writeSelector != null) {
+					writeSelector.close();
+				}
+			}
+			finally {
+				writeLock.unlock();
+			}
+		}
+		// a parked session must wake up to clean up after itself
+		if (resume && resumer != null) {
+			resumer.run();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "channel[" + getRemote() + "]";
+	}
+
+	public SocketAddress getRemote() {
+		return channel.socket().getRemoteSocketAddress();
+	}
+
+	public Socket getSocket() {
+		return channel.socket();
+	}
+
+	public SocketChannel getChannel() {
+		return channel;
+	}
+
+	public void setKey(SelectionKey key) {
+		this.key = key;
+	}
+
+	public void setResumer(Runnable resumer) {
+		this.resumer = resumer;
+	}
+
+	@Override
+	public void setLastRead(Date lastRead) {
+		this.lastRead = lastRead;
+	}
+
+	@Override
+	public Date getLastRead() {
+		return lastRead;
+	}
+
+	@Override
+	public Charset getCharset() {
+		return charset;
+	}
+
+	private class ChannelInputStream extends InputStream {
+		@Override
+		public int read() throws IOException {
+			byte [] single = new byte[1];
+			int read = read(single, 0, 1);
+			return read < 0 ? -1 : single[0] & 0xff;
+		}
+		@Override
+		public int read(byte[] bytes, int offset, int length) throws IOException {
+			if (length == 0) {
+				return 0;
+			}
+			lock.lock();
+			try {
+				while (size == 0 && !eof && !closed) {
+					await();
+				}
+				if (size == 0) {
+					return -1;
+				}
+				int amount = Math.min(length, size);
+				System.arraycopy(buffer, 0, bytes, offset, amount);
+				consume(amount);
+				return amount;
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+		@Override
+		public int available() throws IOException {
+			lock.lock();
+			try {
+				return size;
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+		// closing a stream handed out to for example a process should not close the console
+		@Override
+		public void close() throws IOException {
+			// do nothing
+		}
+	}
+
+	// the channel is non-blocking, if the socket buffer is full we wait on a private selector until we can write again
+	private void awaitWritable() throws IOException {
+		if (writeSelector == null) {
+			writeSelector = Selector.open();
+			channel.register(writeSelector, SelectionKey.OP_WRITE);
+		}
+		writeSelector.select(1000);
+		writeSelector.selectedKeys().clear();
+		if (!channel.isOpen()) {
+			throw new IOException("Channel closed");
+		}
+	}
+
+	private class ChannelOutputStream extends OutputStream implements ZeroCopyOutput {
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+		@Override
+		public void write(byte[] bytes, int offset, int length) throws IOException {
+			ByteBuffer wrapped = ByteBuffer.wrap(bytes, offset, length);
+			writeLock.lock();
+			try {
+				while (wrapped.hasRemaining()) {
+					if (channel.write(wrapped) == 0) {
+						awaitWritable();
+					}
+				}
+			}
+			finally {
+				writeLock.unlock();
+			}
+		}
+		@Override
+		public long transferFrom(FileChannel file, long position, long count) throws IOException {
+			long transferred = 0;
+			writeLock.lock();
+			try {
+				while (transferred < count) {
+					long written = file.transferTo(position + transferred, count - transferred, channel);
+					if (written == 0) {
+						// the file may have been truncated while we were sending it
+						if (position + transferred >= file.size()) {
+							break;
+						}
+						awaitWritable();
+					}
+					transferred += written;
+				}
+			}
+			finally {
+				writeLock.unlock();
+			}
+			return transferred;
+		}
+		@Override
+		public void close() throws IOException {
+			// do nothing
+		}
+	}
+}
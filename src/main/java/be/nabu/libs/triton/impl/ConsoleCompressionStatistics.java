@@ -0,0 +1,62 @@
+/*
+* Copyright (C) 2021 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.triton.impl;
+
+// a snapshot of the compression counters of a framed console session, the sizes are those of the frame payloads
+public class ConsoleCompressionStatistics {
+	private boolean enabled;
+	private long sent, sentOnWire, received, receivedOnWire;
+	
+	public boolean isEnabled() {
+		return enabled;
+	}
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+	public long getSent() {
+		return sent;
+	}
+	public void setSent(long sent) {
+		this.sent = sent;
+	}
+	public long getSentOnWire() {
+		return sentOnWire;
+	}
+	public void setSentOnWire(long sentOnWire) {
+		this.sentOnWire = sentOnWire;
+	}
+	public long getReceived() {
+		return received;
+	}
+	public void setReceived(long received) {
+		this.received = received;
+	}
+	public long getReceivedOnWire() {
+		return receivedOnWire;
+	}
+	public void setReceivedOnWire(long receivedOnWire) {
+		this.receivedOnWire = receivedOnWire;
+	}
+	// how many times smaller the traffic is on the wire, 1 if nothing was compressed
+	public double getSentRatio() {
+		return sentOnWire == 0 ? 1 : (1.0 * sent) / sentOnWire;
+	}
+	public double getReceivedRatio() {
+		return receivedOnWire == 0 ? 1 : (1.0 * received) / receivedOnWire;
+	}
+}
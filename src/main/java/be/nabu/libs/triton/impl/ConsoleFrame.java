@@ -0,0 +1,177 @@
+/*
+* Copyright (C) 2021 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package be.nabu.libs.triton.impl;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+
+/**
+ * A single frame of the framed console protocol (version 2).
+ * On the wire a frame is: the type (1 byte), the channel (4 bytes), the length of the payload (4 bytes) and the payload itself.
+ * Because every frame states its own length, nothing has to be scanned for markers and the payload can contain anything.
+ * The highest bit of the type indicates that the payload is compressed, it is up to the framer to inflate it.
+ */
+public class ConsoleFrame {
+	
+	// we don't want a broken or malicious peer to make us allocate huge buffers
+	private static int maxPayload = Integer.parseInt(System.getProperty("triton.protocol.maxFrame", "" + (16 * 1024 * 1024)));
+	// set on the type if the payload is compressed
+	private static final int COMPRESSED = 0x80;
+	
+	public enum FrameType {
+		// client to server: a command to execute
+		COMMAND(1),
+		// server to client: output of a command
+		OUTPUT(2),
+		// server to client: the command on this channel is done
+		END(3),
+		// server to client: we need input from the user, the payload is the message to show
+		PROMPT(4),
+		// same as above but the input is sensitive (e.g. passwords)
+		PROMPT_SECRET(5),
+		// client to server: input for the running command, either an answer to a prompt or data for a process
+		INPUT(6),
+		// either way: the payload is "size;filename" of a file to edit, the content follows in data frames
+		FILE_EDIT(7),
+		// either way: raw file content, an empty data frame ends the content
+		DATA(8),
+		// client to server: a signal for the command running on this channel, e.g. "INT"
+		SIGNAL(9),
+		// either way: the control messages of a chunked file transfer, the chunks themselves are sent in data frames
+		TRANSFER(10);
+		
+		private byte code;
+
+		private FrameType(int code) {
+			this.code = (byte) code;
+		}
+		
+		public byte getCode() {
+			return code;
+		}
+		
+		public static FrameType fromCode(byte code) {
+			for (FrameType type : values()) {
+				if (type.code == code) {
+					return type;
+				}
+			}
+			return null;
+		}
+	}
+	
+	private FrameType type;
+	private int channel;
+	private byte [] payload;
+	private boolean compressed;
+	
+	public ConsoleFrame(FrameType type, int channel, byte [] payload) {
+		this(type, channel, payload, false);
+	}
+	
+	public ConsoleFrame(FrameType type, int channel, byte [] payload, boolean compressed) {
+		this.type = type;
+		this.channel = channel;
+		this.payload = payload == null ? new byte[0] : payload;
+		this.compressed = compressed;
+	}
+
+	/**
+	 * Reads the next frame, returns null if the stream ends cleanly before a new frame starts
+	 */
+	public static ConsoleFrame read(DataInputStream input) throws IOException {
+		// unknown frame types are skipped rather than failing the connection, they may come from a newer peer
+		while (true) {
+			int code = input.read();
+			if (code < 0) {
+				return null;
+			}
+			try {
+				FrameType type = FrameType.fromCode((byte) (code & ~COMPRESSED));
+				int channel = input.readInt();
+				int length = input.readInt();
+				if (length < 0 || length > maxPayload) {
+					throw new IOException("Invalid frame length: " + length);
+				}
+				if (type == null) {
+					skip(input, length);
+					continue;
+				}
+				byte [] payload = new byte[length];
+				input.readFully(payload);
+				return new ConsoleFrame(type, channel, payload, (code & COMPRESSED) != 0);
+			}
+			catch (EOFException e) {
+				throw new IOException("Connection closed in the middle of a frame", e);
+			}
+		}
+	}
+	
+	private static void skip(DataInputStream input, int length) throws IOException {
+		while (length > 0) {
+			int skipped = input.skipBytes(length);
+			// skipping can stop short, only reading tells us whether the stream ended
+			if (skipped <= 0) {
+				if (input.read() < 0) {
+					throw new EOFException();
+				}
+				skipped = 1;
+			}
+			length -= skipped;
+		}
+	}
+	
+	public static void write(DataOutputStream output, FrameType type, int channel, byte [] payload, int offset, int length) throws IOException {
+		write(output, type, channel, payload, offset, length, false);
+	}
+	
+	public static void write(DataOutputStream output, FrameType type, int channel, byte [] payload, int offset, int length, boolean compressed) throws IOException {
+		output.writeByte(compressed ? type.getCode() | COMPRESSED : type.getCode());
+		output.writeInt(channel);
+		output.writeInt(length);
+		output.write(payload, offset, length);
+	}
+
+	public FrameType getType() {
+		return type;
+	}
+
+	public int getChannel() {
+		return channel;
+	}
+
+	public byte[] getPayload() {
+		return payload;
+	}
+	
+	public boolean isCompressed() {
+		return compressed;
+	}
+	
+	static int getMaxPayload() {
+		return maxPayload;
+	}
+	
+	@Override
+	public String toString() {
+		return type + "[" + channel + "]: " + payload.length + " bytes" + (compressed ? " (compressed)" : "");
+	}
+}
@@ -0,0 +1,551 @@
+/*
+* Copyright (C) 2021 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package be.nabu.libs.triton.impl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import be.nabu.libs.triton.impl.ConsoleFrame.FrameType;
+
+/**
+ * Reads and writes frames of the framed console protocol on top of a pair of streams, this is used on both ends of the connection.
+ * Writes can come from multiple threads, each frame is written atomically.
+ * Reading is done by whoever needs the next frame, frames that are read but not asked for are kept until someone does ask for them.
+ * Alternatively a single thread can take over all reading by receiving frames and delivering the ones that others are waiting for, this allows channels to be served concurrently.
+ * The frames that are kept are bounded in bytes per channel: if a channel falls behind, what is delivered to it is dropped and its reader gets an error, the other channels are not held up.
+ * Once compression is enabled, outgoing payloads are deflated with a single stream that is flushed at the end of every frame, so each frame can be inflated as soon as it arrives.
+ */
+public class ConsoleFramer {
+	
+	// the maximum amount of bytes per channel we keep around that no one asked for yet
+	private static long maxPending = Long.parseLong(System.getProperty("triton.framer.maxPending", "" + (4 * 1024 * 1024)));
+	// the type, the channel and the length of the payload
+	private static final int HEADER_SIZE = 9;
+	// large writes are split in frames of this size
+	private static int maxFrame = 65536;
+	// small payloads (like prompts and end frames) are not worth compressing
+	private static int minCompress = 64;
+	private static int compressionLevel = Integer.parseInt(System.getProperty("triton.compression.level", "" + Deflater.DEFAULT_COMPRESSION));
+	// data with these extensions is already compressed, deflating it again only costs time
+	private static List<String> compressedExtensions = Arrays.asList("gz", "tgz", "zip", "jar", "war", "ear", "bz2", "xz", "zst", "7z", "rar", "png", "jpg", "jpeg", "gif", "webp", "mp3", "mp4", "mkv", "docx", "xlsx");
+	
+	private DataInputStream input;
+	private DataOutputStream output;
+	private Charset charset;
+	private List<ConsoleFrame> pending = new LinkedList<ConsoleFrame>();
+	// the size of the pending frames per channel
+	private Map<Integer, Long> pendingBytes = new HashMap<Integer, Long>();
+	// the channels that received more than they could keep, until they are discarded
+	private Set<Integer> overflowed = new HashSet<Integer>();
+	private Lock readLock = new ReentrantLock(), writeLock = new ReentrantLock();
+	// signalled when a frame is delivered by the receiving thread
+	private Condition delivered = readLock.newCondition();
+	// whether a single thread does all the reading
+	private volatile boolean dispatched;
+	// whether the receiving thread has reached the end of the connection
+	private boolean ended;
+	// set once we compress what we send, what we receive is inflated whenever the peer compressed it
+	private volatile Deflater deflater;
+	private Inflater inflater;
+	private byte [] compressionBuffer = new byte[8192];
+	private ByteArrayOutputStream deflated = new ByteArrayOutputStream();
+	// the size of the payloads before compression and the size they actually had on the wire
+	private long sent, sentOnWire, received, receivedOnWire;
+	
+	public ConsoleFramer(InputStream input, OutputStream output, Charset charset) {
+		this.input = new DataInputStream(new BufferedInputStream(input));
+		this.output = new DataOutputStream(new BufferedOutputStream(output, 16384));
+		this.charset = charset;
+	}
+	
+	/**
+	 * Read the next frame, regardless of type or channel, returns null once the connection is closed
+	 */
+	public ConsoleFrame read() throws IOException {
+		readLock.lock();
+		try {
+			return pending.isEmpty() ? next() : removed(pending.remove(0));
+		}
+		finally {
+			readLock.unlock();
+		}
+	}
+	
+	/**
+	 * Receive the next frame from the connection without keeping it, once this is used only the receiving thread reads from the connection
+	 * Frames that someone else needs must be passed back through deliver(), returns null once the connection is closed
+	 */
+	public ConsoleFrame receive() throws IOException {
+		dispatched = true;
+		// we don't hold the lock while waiting on the connection, the readers need it to pick up delivered frames
+		return next();
+	}
+	
+	/**
+	 * How many more bytes must arrive before the next frame can be received without waiting, this is only valid for the receiving thread
+	 * A frame that claims to be larger than we allow returns 0, receiving it reports the problem
+	 */
+	public int getMissing() throws IOException {
+		int available = input.available();
+		if (available < HEADER_SIZE) {
+			return HEADER_SIZE - available;
+		}
+		// the header is buffered, so peeking at it does not block
+		input.mark(HEADER_SIZE);
+		try {
+			input.readByte();
+			input.readInt();
+			int length = input.readInt();
+			if (length < 0 || length > ConsoleFrame.getMaxPayload()) {
+				return 0;
+			}
+			return (int) Math.max(0, (long) HEADER_SIZE + length - available);
+		}
+		finally {
+			input.reset();
+		}
+	}
+	
+	/**
+	 * Make a received frame available to whoever reads that channel
+	 * If that channel already has too much waiting, the frame is dropped along with the rest of the channel and this returns false, the reader of the channel gets an error until the channel is discarded
+	 */
+	public boolean deliver(ConsoleFrame frame) {
+		readLock.lock();
+		try {
+			if (overflowed.contains(frame.getChannel()) || getPending(frame.getChannel()) >= maxPending) {
+				if (overflowed.add(frame.getChannel())) {
+					drop(frame.getChannel());
+				}
+				// the reader might be waiting for this frame
+				delivered.signalAll();
+				return false;
+			}
+			added(frame);
+			delivered.signalAll();
+			return true;
+		}
+		finally {
+			readLock.unlock();
+		}
+	}
+	
+	/**
+	 * Called by the receiving thread once nothing more will be delivered, anyone still waiting for a frame gets null
+	 */
+	public void end() {
+		readLock.lock();
+		try {
+			ended = true;
+			delivered.signalAll();
+		}
+		finally {
+			readLock.unlock();
+		}
+	}
+	
+	/**
+	 * Read the next frame for the given channel that has one of the given types, any other frames are kept for later
+	 */
+	public ConsoleFrame read(int channel, FrameType...types) throws IOException {
+		List<FrameType> accepted = Arrays.asList(types);
+		readLock.lock();
+		try {
+			checkOverflow(channel);
+			ConsoleFrame frame = take(channel, accepted);
+			if (frame != null) {
+				return frame;
+			}
+			// someone else is reading, we wait for them to deliver what we need
+			if (dispatched) {
+				while (!ended) {
+					try {
+						delivered.await();
+					}
+					catch (InterruptedException e) {
+						throw new IOException("Interrupted while waiting for a frame", e);
+					}
+					checkOverflow(channel);
+					frame = take(channel, accepted);
+					if (frame != null) {
+						return frame;
+					}
+				}
+				return null;
+			}
+			while ((frame = next()) != null) {
+				if (frame.getChannel() == channel && accepted.contains(frame.getType())) {
+					return frame;
+				}
+				// no one else can take frames while we read, so there is nothing to wait for
+				if (getPending(frame.getChannel()) >= maxPending) {
+					throw new IOException("Too many unhandled frames on channel " + frame.getChannel());
+				}
+				added(frame);
+			}
+			return null;
+		}
+		finally {
+			readLock.unlock();
+		}
+	}
+	
+	// the frames are read one at a time (either by the receiving thread or while holding the read lock) so they are inflated in the order they were deflated
+	private ConsoleFrame next() throws IOException {
+		ConsoleFrame frame = ConsoleFrame.read(input);
+		if (frame != null) {
+			receivedOnWire += frame.getPayload().length;
+			if (frame.isCompressed()) {
+				frame = new ConsoleFrame(frame.getType(), frame.getChannel(), inflate(frame.getPayload()));
+			}
+			received += frame.getPayload().length;
+		}
+		return frame;
+	}
+	
+	private byte [] inflate(byte [] payload) throws IOException {
+		if (inflater == null) {
+			inflater = new Inflater();
+		}
+		inflater.setInput(payload);
+		ByteArrayOutputStream output = new ByteArrayOutputStream(Math.max(payload.length * 4, 64));
+		byte [] buffer = new byte[8192];
+		try {
+			// the sender flushed at the end of the frame, everything we need is in this payload
+			int inflated;
+			while ((inflated = inflater.inflate(buffer)) > 0 || inflater.getRemaining() > 0) {
+				// input is left but nothing comes out, the stream ended or needs something we don't have
+				if (inflated == 0) {
+					throw new IOException("Invalid compressed frame");
+				}
+				output.write(buffer, 0, inflated);
+				if (output.size() > ConsoleFrame.getMaxPayload()) {
+					throw new IOException("Inflated frame is too large");
+				}
+			}
+		}
+		catch (DataFormatException e) {
+			throw new IOException("Invalid compressed frame", e);
+		}
+		return output.toByteArray();
+	}
+	
+	/**
+	 * From now on payloads we send are compressed, the peer must have agreed to this
+	 */
+	public void setCompression(boolean compression) {
+		writeLock.lock();
+		try {
+			if (compression && deflater == null) {
+				deflater = new Deflater(compressionLevel);
+			}
+			else if (!compression && deflater != null) {
+				deflater.end();
+				deflater = null;
+			}
+		}
+		finally {
+			writeLock.unlock();
+		}
+	}
+	
+	public boolean isCompression() {
+		return deflater != null;
+	}
+	
+	public ConsoleCompressionStatistics getStatistics() {
+		ConsoleCompressionStatistics statistics = new ConsoleCompressionStatistics();
+		statistics.setEnabled(deflater != null);
+		statistics.setSent(sent);
+		statistics.setSentOnWire(sentOnWire);
+		statistics.setReceived(received);
+		statistics.setReceivedOnWire(receivedOnWire);
+		return statistics;
+	}
+	
+	/**
+	 * Whether a file with this name is worth compressing
+	 */
+	public static boolean isCompressible(String fileName) {
+		int index = fileName == null ? -1 : fileName.lastIndexOf('.');
+		return index < 0 || !compressedExtensions.contains(fileName.substring(index + 1).toLowerCase());
+	}
+	
+	private void checkOverflow(int channel) throws IOException {
+		if (overflowed.contains(channel)) {
+			throw new IOException("Too many unhandled frames on channel " + channel + ", at most " + maxPending + " bytes can be kept");
+		}
+	}
+	
+	private ConsoleFrame take(int channel, List<FrameType> accepted) {
+		Iterator<ConsoleFrame> iterator = pending.iterator();
+		while (iterator.hasNext()) {
+			ConsoleFrame frame = iterator.next();
+			if (frame.getChannel() == channel && accepted.contains(frame.getType())) {
+				iterator.remove();
+				return removed(frame);
+			}
+		}
+		return null;
+	}
+	
+	private long getPending(int channel) {
+		Long bytes = pendingBytes.get(channel);
+		return bytes == null ? 0 : bytes;
+	}
+	
+	private void added(ConsoleFrame frame) {
+		pending.add(frame);
+		pendingBytes.put(frame.getChannel(), getPending(frame.getChannel()) + frame.getPayload().length);
+	}
+	
+	private ConsoleFrame removed(ConsoleFrame frame) {
+		long bytes = getPending(frame.getChannel()) - frame.getPayload().length;
+		if (bytes <= 0) {
+			pendingBytes.remove(frame.getChannel());
+		}
+		else {
+			pendingBytes.put(frame.getChannel(), bytes);
+		}
+		return frame;
+	}
+	
+	private void drop(int channel) {
+		Iterator<ConsoleFrame> iterator = pending.iterator();
+		while (iterator.hasNext()) {
+			ConsoleFrame frame = iterator.next();
+			if (frame.getChannel() == channel) {
+				iterator.remove();
+				removed(frame);
+			}
+		}
+	}
+	
+	/**
+	 * Drop any frames for the given channel that no one picked up, after this the channel can receive frames again
+	 */
+	public void discard(int channel) {
+		readLock.lock();
+		try {
+			drop(channel);
+			overflowed.remove(channel);
+		}
+		finally {
+			readLock.unlock();
+		}
+	}
+	
+	public void write(FrameType type, int channel, String payload) throws IOException {
+		write(type, channel, payload == null ? new byte[0] : payload.getBytes(charset));
+	}
+	
+	public void write(FrameType type, int channel, byte [] payload) throws IOException {
+		write(type, channel, payload, 0, payload.length);
+	}
+	
+	public void write(FrameType type, int channel, byte [] payload, int offset, int length) throws IOException {
+		write(type, channel, payload, offset, length, true);
+	}
+	
+	/**
+	 * Content that is already compressed should not be compressed again
+	 */
+	public void write(FrameType type, int channel, byte [] payload, int offset, int length, boolean compressible) throws IOException {
+		writeLock.lock();
+		try {
+			sent += length;
+			if (deflater != null && compressible && length >= minCompress) {
+				deflated.reset();
+				deflater.setInput(payload, offset, length);
+				int amount;
+				// a sync flush makes sure the peer can inflate everything in this frame without waiting for the next one
+				do {
+					amount = deflater.deflate(compressionBuffer, 0, compressionBuffer.length, Deflater.SYNC_FLUSH);
+					deflated.write(compressionBuffer, 0, amount);
+				}
+				while (amount == compressionBuffer.length);
+				sentOnWire += deflated.size();
+				ConsoleFrame.write(output, type, channel, deflated.toByteArray(), 0, deflated.size(), true);
+			}
+			else {
+				sentOnWire += length;
+				ConsoleFrame.write(output, type, channel, payload, offset, length);
+			}
+			output.flush();
+		}
+		finally {
+			writeLock.unlock();
+		}
+	}
+	
+	/**
+	 * An output stream that sends everything written to it as output frames on the given channel
+	 */
+	public OutputStream newOutputStream(int channel) {
+		return new FrameOutputStream(FrameType.OUTPUT, channel);
+	}
+	
+	/**
+	 * An output stream that sends everything written to it as data frames on the given channel, closing it sends the empty data frame that marks the end
+	 */
+	public OutputStream newDataStream(int channel) {
+		return newDataStream(channel, true);
+	}
+	
+	/**
+	 * A data stream for content that is already compressed (or otherwise not worth compressing) should not be compressed again
+	 */
+	public OutputStream newDataStream(int channel, boolean compressible) {
+		FrameOutputStream stream = new FrameOutputStream(FrameType.DATA, channel);
+		stream.compressible = compressible;
+		return stream;
+	}
+	
+	public Writer newWriter(int channel) {
+		return new OutputStreamWriter(newOutputStream(channel), charset);
+	}
+	
+	/**
+	 * An input stream with the input sent to the given channel, a signal is passed along in the same way as it is on the line-based protocol
+	 */
+	public InputStream newInputStream(int channel) {
+		return new FrameInputStream(channel, FrameType.INPUT, FrameType.SIGNAL);
+	}
+	
+	/**
+	 * An input stream with the content of the data frames for the given channel, it ends at the first empty data frame
+	 */
+	public InputStream newDataInputStream(int channel) {
+		return new FrameInputStream(channel, FrameType.DATA);
+	}
+	
+	public Charset getCharset() {
+		return charset;
+	}
+	
+	// every write is sent immediately, like on the raw socket, not everyone that writes output remembers to flush
+	private class FrameOutputStream extends OutputStream {
+		private FrameType type;
+		private int channel;
+		private boolean closed;
+		private boolean compressible = true;
+		
+		FrameOutputStream(FrameType type, int channel) {
+			this.type = type;
+			this.channel = channel;
+		}
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+		@Override
+		public void write(byte[] bytes, int offset, int length) throws IOException {
+			while (length > 0) {
+				int amount = Math.min(length, maxFrame);
+				ConsoleFramer.this.write(type, channel, bytes, offset, amount, compressible);
+				offset += amount;
+				length -= amount;
+			}
+		}
+		@Override
+		public void close() throws IOException {
+			if (!closed) {
+				closed = true;
+				// data is explicitly ended, output is simply ended by the end of the command
+				if (type == FrameType.DATA) {
+					ConsoleFramer.this.write(type, channel, new byte[0]);
+				}
+			}
+		}
+	}
+	
+	private class FrameInputStream extends InputStream {
+		private int channel;
+		private FrameType [] types;
+		private byte [] current;
+		private int offset;
+		private boolean ended;
+		
+		FrameInputStream(int channel, FrameType...types) {
+			this.channel = channel;
+			this.types = types;
+		}
+		@Override
+		public int read() throws IOException {
+			byte [] single = new byte[1];
+			int read = read(single, 0, 1);
+			return read < 0 ? -1 : single[0] & 0xff;
+		}
+		@Override
+		public int read(byte[] bytes, int off, int length) throws IOException {
+			if (length == 0) {
+				return 0;
+			}
+			while (current == null || offset >= current.length) {
+				if (ended) {
+					return -1;
+				}
+				ConsoleFrame frame = ConsoleFramer.this.read(channel, types);
+				if (frame == null || (frame.getType() == FrameType.DATA && frame.getPayload().length == 0)) {
+					ended = true;
+					return -1;
+				}
+				// a signal is translated to what the line-based protocol sends
+				current = frame.getType() == FrameType.SIGNAL ? ("^SIG" + new String(frame.getPayload(), charset) + "\n").getBytes(charset) : frame.getPayload();
+				offset = 0;
+			}
+			int amount = Math.min(length, current.length - offset);
+			System.arraycopy(current, offset, bytes, off, amount);
+			offset += amount;
+			return amount;
+		}
+		@Override
+		public int available() throws IOException {
+			return current == null ? 0 : current.length - offset;
+		}
+		// the underlying connection stays open
+		@Override
+		public void close() throws IOException {
+			ended = true;
+		}
+	}
+}
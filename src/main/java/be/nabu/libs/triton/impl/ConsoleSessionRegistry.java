@@ -0,0 +1,139 @@
+/*
+* Copyright (C) 2021 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package be.nabu.libs.triton.impl;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.BiFunction;
+
+import be.nabu.libs.triton.TritonLocalConsole.TritonConsoleInstance;
+import be.nabu.libs.triton.api.ConsoleSource;
+
+/**
+ * Keeps track of the connected consoles by id, by alias of the user and by remote address.
+ * All the indexes are concurrent maps, registering and unregistering does not require a global lock.
+ */
+public class ConsoleSessionRegistry {
+	
+	private ConcurrentMap<Long, TritonConsoleInstance> byId = new ConcurrentHashMap<Long, TritonConsoleInstance>();
+	private ConcurrentMap<String, Set<TritonConsoleInstance>> byAlias = new ConcurrentHashMap<String, Set<TritonConsoleInstance>>();
+	private ConcurrentMap<String, Set<TritonConsoleInstance>> byAddress = new ConcurrentHashMap<String, Set<TritonConsoleInstance>>();
+	
+	public void register(TritonConsoleInstance instance) {
+		byId.put(instance.getId(), instance);
+		add(byAlias, getAlias(instance), instance);
+		add(byAddress, getAddress(instance.getSource()), instance);
+	}
+	
+	public void unregister(TritonConsoleInstance instance) {
+		// only the first unregister has to clean up the other indexes
+		if (byId.remove(instance.getId(), instance)) {
+			remove(byAlias, getAlias(instance), instance);
+			remove(byAddress, getAddress(instance.getSource()), instance);
+		}
+	}
+	
+	/**
+	 * Should be called when the identity of a registered console changes
+	 */
+	public void realias(TritonConsoleInstance instance, String previousAlias) {
+		if (byId.get(instance.getId()) == instance) {
+			remove(byAlias, previousAlias, instance);
+			add(byAlias, getAlias(instance), instance);
+		}
+	}
+	
+	public TritonConsoleInstance get(long id) {
+		return byId.get(id);
+	}
+	
+	public Collection<TritonConsoleInstance> getByAlias(String alias) {
+		Set<TritonConsoleInstance> set = alias == null ? null : byAlias.get(alias);
+		return set == null ? Collections.<TritonConsoleInstance>emptySet() : Collections.unmodifiableSet(set);
+	}
+	
+	public Collection<TritonConsoleInstance> getByAddress(String address) {
+		Set<TritonConsoleInstance> set = address == null ? null : byAddress.get(address);
+		return set == null ? Collections.<TritonConsoleInstance>emptySet() : Collections.unmodifiableSet(set);
+	}
+	
+	/**
+	 * A live, weakly consistent view on all the consoles, iterating it does not copy anything
+	 */
+	public Collection<TritonConsoleInstance> getAll() {
+		return Collections.unmodifiableCollection(byId.values());
+	}
+	
+	public List<TritonConsoleInstance> snapshot() {
+		return new ArrayList<TritonConsoleInstance>(byId.values());
+	}
+	
+	public int size() {
+		return byId.size();
+	}
+	
+	private static String getAlias(TritonConsoleInstance instance) {
+		return instance.getToken() == null ? null : instance.getToken().getName();
+	}
+	
+	public static String getAddress(ConsoleSource source) {
+		InetAddress address = null;
+		if (source instanceof ConsoleSocketSource) {
+			address = ((ConsoleSocketSource) source).getSocket().getInetAddress();
+		}
+		else if (source instanceof ConsoleChannelSource) {
+			address = ((ConsoleChannelSource) source).getSocket().getInetAddress();
+		}
+		return address == null ? null : address.getHostAddress();
+	}
+	
+	// the set is created and removed within the atomic compute of the map so we never add to a set that was just dropped
+	private static void add(ConcurrentMap<String, Set<TritonConsoleInstance>> index, String key, final TritonConsoleInstance instance) {
+		if (key != null) {
+			index.compute(key, new BiFunction<String, Set<TritonConsoleInstance>, Set<TritonConsoleInstance>>() {
+				@Override
+				public Set<TritonConsoleInstance> apply(String key, Set<TritonConsoleInstance> set) {
+					if (set == null) {
+						set = ConcurrentHashMap.newKeySet();
+					}
+					set.add(instance);
+					return set;
+				}
+			});
+		}
+	}
+	
+	private static void remove(ConcurrentMap<String, Set<TritonConsoleInstance>> index, String key, final TritonConsoleInstance instance) {
+		if (key != null) {
+			index.computeIfPresent(key, new BiFunction<String, Set<TritonConsoleInstance>, Set<TritonConsoleInstance>>() {
+				@Override
+				public Set<TritonConsoleInstance> apply(String key, Set<TritonConsoleInstance> set) {
+					set.remove(instance);
+					return set.isEmpty() ? null : set;
+				}
+			});
+		}
+	}
+}
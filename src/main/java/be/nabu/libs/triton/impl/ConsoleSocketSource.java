@@ -96,6 +96,26 @@ public class ConsoleSocketSource implements ConsoleSource {
 		return socket;
 	}
 
+	public X509Certificate[] getCertificateChain() {
+		try {
+			if (socket instanceof SSLSocket) {
+				Certificate[] peerCertificates = ((SSLSocket) socket).getSession().getPeerCertificates();
+				X509Certificate[] chain = new X509Certificate[peerCertificates.length];
+				for (int i = 0; i < peerCertificates.length; i++) {
+					if (!(peerCertificates[i] instanceof X509Certificate)) {
+						return null;
+					}
+					chain[i] = (X509Certificate) peerCertificates[i];
+				}
+				return chain.length == 0 ? null : chain;
+			}
+		}
+		catch (Exception e) {
+			// ignore
+		}
+		return null;
+	}
+	
 	public X509Certificate getCertificate() {
 		try {
 			if (socket instanceof SSLSocket) {
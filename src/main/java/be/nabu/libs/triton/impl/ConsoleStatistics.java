@@ -0,0 +1,93 @@
+/*
+* Copyright (C) 2021 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package be.nabu.libs.triton.impl;
+
+// a snapshot of the admission counters of the console server
+public class ConsoleStatistics {
+	private int active, queued, maxActive, maxQueued;
+	private long accepted, rejected, timedOut, totalQueued, totalQueueTime, maxQueueTime;
+	
+	public int getActive() {
+		return active;
+	}
+	public void setActive(int active) {
+		this.active = active;
+	}
+	public int getQueued() {
+		return queued;
+	}
+	public void setQueued(int queued) {
+		this.queued = queued;
+	}
+	public int getMaxActive() {
+		return maxActive;
+	}
+	public void setMaxActive(int maxActive) {
+		this.maxActive = maxActive;
+	}
+	public int getMaxQueued() {
+		return maxQueued;
+	}
+	public void setMaxQueued(int maxQueued) {
+		this.maxQueued = maxQueued;
+	}
+	public long getAccepted() {
+		return accepted;
+	}
+	public void setAccepted(long accepted) {
+		this.accepted = accepted;
+	}
+	public long getRejected() {
+		return rejected;
+	}
+	public void setRejected(long rejected) {
+		this.rejected = rejected;
+	}
+	public long getTimedOut() {
+		return timedOut;
+	}
+	public void setTimedOut(long timedOut) {
+		this.timedOut = timedOut;
+	}
+	public long getTotalQueued() {
+		return totalQueued;
+	}
+	public void setTotalQueued(long totalQueued) {
+		this.totalQueued = totalQueued;
+	}
+	public long getTotalQueueTime() {
+		return totalQueueTime;
+	}
+	public void setTotalQueueTime(long totalQueueTime) {
+		this.totalQueueTime = totalQueueTime;
+	}
+	public long getMaxQueueTime() {
+		return maxQueueTime;
+	}
+	public void setMaxQueueTime(long maxQueueTime) {
+		this.maxQueueTime = maxQueueTime;
+	}
+	public long getAverageQueueTime() {
+		return totalQueued == 0 ? 0 : totalQueueTime / totalQueued;
+	}
+	@Override
+	public String toString() {
+		return "active: " + active + "/" + maxActive + ", queued: " + queued + "/" + maxQueued + ", accepted: " + accepted + ", rejected: " + rejected + " (" + timedOut + " timed out), average queue time: " + getAverageQueueTime() + "ms, max queue time: " + maxQueueTime + "ms";
+	}
+}
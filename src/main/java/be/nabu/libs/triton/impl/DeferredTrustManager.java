@@ -0,0 +1,115 @@
+/*
+* Copyright (C) 2021 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package be.nabu.libs.triton.impl;
+
+import java.net.Socket;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.X509ExtendedTrustManager;
+import javax.net.ssl.X509TrustManager;
+
+/**
+ * A client side trust manager that, for sockets that explicitly opted in, does not fail the handshake for an unknown server.
+ * Instead it remembers the chain so the caller can decide after the handshake whether to continue with the connection or not.
+ * This allows us to check trust as part of the actual handshake rather than doing a separate handshake up front.
+ * Note that the handshake is complete at that point, our client certificate has already been sent to the server. Only the console traffic waits for the decision.
+ * All other sockets fail the handshake for an unknown server as usual.
+ */
+public class DeferredTrustManager extends X509ExtendedTrustManager {
+
+	private volatile X509TrustManager delegate;
+	private Map<Socket, X509Certificate[]> untrusted = Collections.synchronizedMap(new WeakHashMap<Socket, X509Certificate[]>());
+	// the sockets for which the caller makes the decision
+	private Set<Socket> deferred = Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<Socket, Boolean>()));
+	
+	public DeferredTrustManager(X509TrustManager delegate) {
+		this.delegate = delegate;
+	}
+	
+	/**
+	 * Must be called before the handshake of the socket, an unknown server does not fail it and can be checked with {@link #getUntrusted(Socket)}
+	 */
+	public void defer(Socket socket) {
+		deferred.add(socket);
+	}
+	
+	/**
+	 * For example once a server is accepted, the trust material has to be reloaded for the next handshake
+	 */
+	public void setDelegate(X509TrustManager delegate) {
+		this.delegate = delegate;
+	}
+	
+	/**
+	 * Returns (and forgets) the chain the server on this socket presented if it was not trusted, null if it was trusted
+	 */
+	public X509Certificate[] getUntrusted(Socket socket) {
+		return untrusted.remove(socket);
+	}
+
+	@Override
+	public void checkServerTrusted(X509Certificate[] chain, String authType, Socket socket) throws CertificateException {
+		try {
+			delegate.checkServerTrusted(chain, authType);
+		}
+		catch (CertificateException e) {
+			// unless the caller asked to decide for itself, an unknown server is refused
+			if (socket == null || !deferred.remove(socket)) {
+				throw e;
+			}
+			untrusted.put(socket, chain);
+		}
+	}
+	
+	@Override
+	public void checkServerTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+		delegate.checkServerTrusted(chain, authType);
+	}
+	
+	@Override
+	public void checkServerTrusted(X509Certificate[] chain, String authType, SSLEngine engine) throws CertificateException {
+		delegate.checkServerTrusted(chain, authType);
+	}
+
+	@Override
+	public void checkClientTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+		delegate.checkClientTrusted(chain, authType);
+	}
+
+	@Override
+	public void checkClientTrusted(X509Certificate[] chain, String authType, Socket socket) throws CertificateException {
+		delegate.checkClientTrusted(chain, authType);
+	}
+
+	@Override
+	public void checkClientTrusted(X509Certificate[] chain, String authType, SSLEngine engine) throws CertificateException {
+		delegate.checkClientTrusted(chain, authType);
+	}
+
+	@Override
+	public X509Certificate[] getAcceptedIssuers() {
+		return delegate.getAcceptedIssuers();
+	}
+}
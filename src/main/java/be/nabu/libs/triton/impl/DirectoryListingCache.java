@@ -0,0 +1,192 @@
+/*
+* Copyright (C) 2021 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.triton.impl;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Caches directory listings (including the attributes we show) for file completion.
+ * A listing is dropped as soon as the watch service reports a change in that directory, if the directory can't be watched we check its modification time instead.
+ * Only a limited amount of directories is kept, each of them holds on to a watch.
+ */
+public class DirectoryListingCache {
+
+	private static Logger logger = LoggerFactory.getLogger(DirectoryListingCache.class);
+	private static int maxDirectories = Integer.parseInt(System.getProperty("triton.completion.maxDirectories", "32"));
+	
+	public static class FileEntry {
+		private String name;
+		private boolean directory;
+		private long size, lastModified;
+		
+		FileEntry(String name, BasicFileAttributes attributes) {
+			this.name = name;
+			this.directory = attributes.isDirectory();
+			this.size = attributes.size();
+			this.lastModified = attributes.lastModifiedTime().toMillis();
+		}
+		public String getName() {
+			return name;
+		}
+		public boolean isDirectory() {
+			return directory;
+		}
+		public long getSize() {
+			return size;
+		}
+		public long getLastModified() {
+			return lastModified;
+		}
+	}
+	
+	private static class Listing {
+		// sorted by name
+		private List<FileEntry> entries;
+		// null if we could not watch the directory
+		private WatchKey key;
+		private long lastModified;
+	}
+	
+	// the most recently used directories are kept
+	private Map<Path, Listing> listings = new LinkedHashMap<Path, Listing>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Path, Listing> eldest) {
+			if (size() > maxDirectories) {
+				if (eldest.getValue().key != null) {
+					eldest.getValue().key.cancel();
+				}
+				return true;
+			}
+			return false;
+		}
+	};
+	
+	private WatchService watcher;
+	
+	public DirectoryListingCache() {
+		try {
+			watcher = FileSystems.getDefault().newWatchService();
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					watch();
+				}
+			});
+			thread.setName("triton-directory-watcher");
+			thread.setDaemon(true);
+			thread.start();
+		}
+		catch (IOException e) {
+			logger.warn("Could not start directory watcher, falling back to modification times", e);
+		}
+	}
+	
+	private void watch() {
+		try {
+			while (true) {
+				WatchKey key = watcher.take();
+				// we don't care what changed, the listing is read again when needed
+				key.pollEvents();
+				key.cancel();
+				synchronized (listings) {
+					Listing listing = listings.get(key.watchable());
+					if (listing != null && listing.key == key) {
+						listings.remove(key.watchable());
+					}
+				}
+			}
+		}
+		catch (InterruptedException e) {
+			// stop watching
+		}
+		catch (ClosedWatchServiceException e) {
+			// stop watching
+		}
+	}
+	
+	/**
+	 * The entries of the directory sorted by name
+	 */
+	public List<FileEntry> list(Path directory) throws IOException {
+		long lastModified = Files.getLastModifiedTime(directory).toMillis();
+		synchronized (listings) {
+			Listing listing = listings.get(directory);
+			// a valid watch means nothing changed since we read it, otherwise we have to rely on the modification time of the directory
+			if (listing != null && ((listing.key != null && listing.key.isValid()) || listing.lastModified == lastModified)) {
+				return listing.entries;
+			}
+		}
+		Listing listing = new Listing();
+		listing.lastModified = lastModified;
+		// we start watching before we read so we don't miss anything that changes while reading
+		if (watcher != null) {
+			try {
+				listing.key = directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+			}
+			catch (Exception e) {
+				logger.debug("Could not watch directory: " + directory, e);
+			}
+		}
+		List<FileEntry> entries = new ArrayList<FileEntry>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+			for (Path child : stream) {
+				try {
+					// a single stat per file for everything we need
+					entries.add(new FileEntry(child.getFileName().toString(), Files.readAttributes(child, BasicFileAttributes.class)));
+				}
+				catch (IOException e) {
+					// deleted in the meantime or not accessible, either way we can't suggest it
+				}
+			}
+		}
+		Collections.sort(entries, new Comparator<FileEntry>() {
+			@Override
+			public int compare(FileEntry o1, FileEntry o2) {
+				return o1.name.compareToIgnoreCase(o2.name);
+			}
+		});
+		listing.entries = Collections.unmodifiableList(entries);
+		synchronized (listings) {
+			Listing previous = listings.put(directory, listing);
+			// the same key is returned when registering a directory twice, only cancel it if it is not reused
+			if (previous != null && previous.key != null && previous.key != listing.key) {
+				previous.key.cancel();
+			}
+		}
+		return listing.entries;
+	}
+}
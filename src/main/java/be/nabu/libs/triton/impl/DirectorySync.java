@@ -0,0 +1,288 @@
+/*
+* Copyright (C) 2021 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.triton.impl;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import be.nabu.libs.triton.impl.ConsoleFrame.FrameType;
+import be.nabu.libs.triton.impl.HashManifest.Entry;
+
+/**
+ * Makes a directory on the server the same as a directory on the client, using the transfer frames on the channel of the command.
+ * The server asks for the manifest of the client directory ("sync;<directory>"), compares it with its own and answers with the paths it needs ("send;<amount>" followed by the paths in data frames).
+ * The client then sends those files back to back: "file;<size>;<sha-256>;<path>" followed by the content in data frames of at most a chunk each.
+ * There is no round trip per file, the server acknowledges every frame it processed and the client only has a limited amount of unacknowledged frames in flight.
+ * Files are written next to their target and only moved into place once their hash is verified.
+ */
+public class DirectorySync {
+	
+	// the amount of frames (file headers and chunks) the client can send before it waits for an acknowledgement
+	private static int window = Integer.parseInt(System.getProperty("triton.sync.window", "16"));
+	
+	/**
+	 * Server side: the source is a directory on the client, the target a directory on the server
+	 */
+	public static SyncStatistics sync(ConsoleFramer framer, int channel, String source, File target, boolean delete, File cacheFolder) throws IOException {
+		long started = System.nanoTime();
+		SyncStatistics statistics = new SyncStatistics();
+		framer.write(FrameType.TRANSFER, channel, "sync;" + source);
+		String reply = ChunkedTransfer.expect(framer, channel);
+		if (!reply.equals("manifest")) {
+			throw new IOException("The client refused the sync: " + reply.replaceFirst("^refuse;", ""));
+		}
+		Map<String, Entry> wanted = HashManifest.read(framer.newDataInputStream(channel)).getEntries();
+		statistics.setFiles(wanted.size());
+		try {
+			if (!target.isDirectory() && !target.mkdirs()) {
+				throw ChunkedTransfer.fail(framer, channel, "Can not create directory: " + target);
+			}
+			// the paths come from the client, they must stay within the target, we check them before anything is sent
+			String canonicalTarget = target.getCanonicalPath() + File.separator;
+			for (String path : wanted.keySet()) {
+				if (!new File(target, path).getCanonicalPath().startsWith(canonicalTarget)) {
+					throw ChunkedTransfer.fail(framer, channel, "Not allowed: " + path);
+				}
+			}
+			Map<String, Entry> existing = HashManifest.build(target, getCacheFile(cacheFolder, target)).getEntries();
+			List<String> needed = new ArrayList<String>();
+			for (Entry entry : wanted.values()) {
+				Entry current = existing.get(entry.getPath());
+				if (current == null || current.getSize() != entry.getSize() || !current.getHash().equals(entry.getHash())) {
+					needed.add(entry.getPath());
+				}
+			}
+			framer.write(FrameType.TRANSFER, channel, "send;" + needed.size());
+			try (OutputStream output = framer.newDataStream(channel)) {
+				Writer writer = new OutputStreamWriter(output, framer.getCharset());
+				for (String path : needed) {
+					writer.write(path + "\n");
+				}
+				writer.flush();
+			}
+			long received = 0;
+			for (String path : needed) {
+				String header = ChunkedTransfer.expect(framer, channel);
+				if (header.startsWith("fail;")) {
+					throw new ChunkedTransfer.TransferException("The sync failed at the other end: " + header.substring("fail;".length()));
+				}
+				String[] parts = header.split(";", 4);
+				if (parts.length != 4 || !parts[0].equals("file") || !parts[3].equals(path)) {
+					throw ChunkedTransfer.fail(framer, channel, "Unexpected transfer frame: " + header);
+				}
+				framer.write(FrameType.TRANSFER, channel, "ack;" + path);
+				File file = new File(target, path);
+				received += receive(framer, channel, file, Long.parseLong(parts[1]), parts[2]);
+				statistics.setTransferred(statistics.getTransferred() + 1);
+			}
+			statistics.setBytes(received);
+			String end = ChunkedTransfer.expect(framer, channel);
+			if (!end.equals("done")) {
+				throw new ChunkedTransfer.TransferException("The sync failed at the other end: " + end.replaceFirst("^fail;", ""));
+			}
+			if (delete) {
+				statistics.setDeleted(deleteExtras(target, wanted.keySet(), existing.keySet()));
+			}
+		}
+		catch (IOException e) {
+			ChunkedTransfer.abort(framer, channel, e);
+			throw e;
+		}
+		statistics.setDuration(System.nanoTime() - started);
+		return statistics;
+	}
+	
+	private static long receive(ConsoleFramer framer, int channel, File file, long size, String hash) throws IOException {
+		File parent = file.getParentFile();
+		if (!parent.isDirectory() && !parent.mkdirs()) {
+			throw ChunkedTransfer.fail(framer, channel, "Can not create directory: " + parent);
+		}
+		File part = new File(parent, file.getName() + ".part");
+		MessageDigest digest = digest();
+		try {
+			try (FileChannel output = FileChannel.open(part.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+				long remaining = size;
+				while (remaining > 0) {
+					ConsoleFrame data = framer.read(channel, FrameType.DATA);
+					if (data == null) {
+						throw new IOException("Connection closed during the sync of: " + file);
+					}
+					byte [] payload = data.getPayload();
+					if (payload.length > remaining) {
+						throw ChunkedTransfer.fail(framer, channel, "Received more data than expected for: " + file.getName());
+					}
+					digest.update(payload);
+					ByteBuffer wrapped = ByteBuffer.wrap(payload);
+					while (wrapped.hasRemaining()) {
+						output.write(wrapped);
+					}
+					remaining -= payload.length;
+					framer.write(FrameType.TRANSFER, channel, "ack;" + file.getName());
+				}
+			}
+			if (!hex(digest.digest()).equals(hash)) {
+				throw ChunkedTransfer.fail(framer, channel, "The content of " + file.getName() + " does not match its hash, it may have changed during the sync");
+			}
+			Files.move(part.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+		finally {
+			part.delete();
+		}
+		return size;
+	}
+	
+	// removes the files the client does not have and the directories that are left empty
+	private static int deleteExtras(File target, Set<String> wanted, Set<String> existing) {
+		int deleted = 0;
+		Set<File> directories = new HashSet<File>();
+		for (String path : existing) {
+			if (!wanted.contains(path)) {
+				File file = new File(target, path);
+				if (file.delete()) {
+					deleted++;
+					directories.add(file.getParentFile());
+				}
+			}
+		}
+		for (File directory : directories) {
+			// only removes it if it is empty, the parents may be empty now as well
+			while (!directory.equals(target) && directory.delete()) {
+				directory = directory.getParentFile();
+			}
+		}
+		return deleted;
+	}
+	
+	/**
+	 * Client side: sends the manifest of the directory and then the files the server asks for
+	 */
+	public static TransferStatistics answer(ConsoleFramer framer, int channel, File source, File cacheFolder) throws IOException {
+		long started = System.nanoTime();
+		if (!source.isDirectory()) {
+			framer.write(FrameType.TRANSFER, channel, "refuse;Not a directory: " + source);
+			return null;
+		}
+		HashManifest manifest = HashManifest.build(source, getCacheFile(cacheFolder, source));
+		framer.write(FrameType.TRANSFER, channel, "manifest");
+		try (OutputStream output = framer.newDataStream(channel)) {
+			manifest.write(output);
+		}
+		String reply = ChunkedTransfer.expect(framer, channel);
+		if (!reply.startsWith("send;")) {
+			throw new IOException("The sync failed at the other end: " + reply.replaceFirst("^fail;", ""));
+		}
+		List<String> paths = new ArrayList<String>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(framer.newDataInputStream(channel), framer.getCharset()));
+		String line;
+		while ((line = reader.readLine()) != null) {
+			paths.add(line);
+		}
+		long sent = 0;
+		int unacknowledged = 0;
+		byte [] buffer = new byte[ChunkedTransfer.getChunkSize()];
+		try {
+			for (String path : paths) {
+				Entry entry = manifest.getEntries().get(path);
+				if (entry == null) {
+					throw ChunkedTransfer.fail(framer, channel, "Not in the manifest: " + path);
+				}
+				framer.write(FrameType.TRANSFER, channel, "file;" + entry.getSize() + ";" + entry.getHash() + ";" + path);
+				unacknowledged = sent(framer, channel, unacknowledged);
+				boolean compressible = ConsoleFramer.isCompressible(path);
+				try (FileChannel input = FileChannel.open(new File(source, path).toPath(), StandardOpenOption.READ)) {
+					long position = 0;
+					while (position < entry.getSize()) {
+						int length = (int) Math.min(buffer.length, entry.getSize() - position);
+						ByteBuffer wrapped = ByteBuffer.wrap(buffer, 0, length);
+						while (wrapped.hasRemaining()) {
+							if (input.read(wrapped, position + wrapped.position()) < 0) {
+								throw ChunkedTransfer.fail(framer, channel, "The file " + path + " was truncated during the sync");
+							}
+						}
+						framer.write(FrameType.DATA, channel, buffer, 0, length, compressible);
+						position += length;
+						sent += length;
+						unacknowledged = sent(framer, channel, unacknowledged);
+					}
+				}
+			}
+			while (unacknowledged-- > 0) {
+				ChunkedTransfer.acknowledge(framer, channel);
+			}
+			framer.write(FrameType.TRANSFER, channel, "done");
+		}
+		catch (IOException e) {
+			ChunkedTransfer.abort(framer, channel, e);
+			throw e;
+		}
+		return new TransferStatistics(source.getName() + " (" + paths.size() + " of " + manifest.getEntries().size() + " files)", sent, System.nanoTime() - started, false);
+	}
+	
+	// another frame was sent, if too many are unacknowledged we wait
+	private static int sent(ConsoleFramer framer, int channel, int unacknowledged) throws IOException {
+		unacknowledged++;
+		while (unacknowledged >= window) {
+			ChunkedTransfer.acknowledge(framer, channel);
+			unacknowledged--;
+		}
+		return unacknowledged;
+	}
+	
+	// one hash cache per directory
+	private static File getCacheFile(File cacheFolder, File directory) throws IOException {
+		if (cacheFolder == null) {
+			return null;
+		}
+		MessageDigest digest = digest();
+		return new File(cacheFolder, hex(digest.digest(directory.getCanonicalPath().getBytes("UTF-8"))).substring(0, 16) + ".manifest");
+	}
+	
+	private static MessageDigest digest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	private static String hex(byte [] bytes) {
+		StringBuilder builder = new StringBuilder();
+		for (byte single : bytes) {
+			builder.append(String.format("%02x", single));
+		}
+		return builder.toString();
+	}
+}
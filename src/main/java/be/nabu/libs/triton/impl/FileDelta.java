@@ -0,0 +1,341 @@
+/*
+* Copyright (C) 2021 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.triton.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends back only what changed in an edited file, the way rsync does it.
+ * Before editing, the client takes a signature of the original: for every block a weak rolling checksum and a strong hash.
+ * After editing, a window the size of a block slides over the new content, wherever the weak checksum (which can be rolled forward a byte at a time) and then the strong hash match a block of the original, we only send the index of that block.
+ * Everything in between is sent as is. Because the window slides a byte at a time, inserting a line does not invalidate all the blocks after it.
+ * The delta is a sequence of operations: 'C' followed by the index of the first block and the amount of consecutive blocks to copy, or 'L' followed by a length and that many literal bytes.
+ */
+public class FileDelta {
+	
+	private static Logger logger = LoggerFactory.getLogger(FileDelta.class);
+	
+	private static int blockSize = Integer.parseInt(System.getProperty("triton.delta.blockSize", "2048"));
+	// literals are written in pieces of at most this size
+	private static int maxLiteral = 64 * 1024;
+	
+	public static class Signature {
+		private int blockSize;
+		private long size;
+		private String hash;
+		private Map<Integer, List<Integer>> weak = new HashMap<Integer, List<Integer>>();
+		private List<byte[]> strong = new ArrayList<byte[]>();
+		
+		public long getSize() {
+			return size;
+		}
+		// the sha-256 of the complete original
+		public String getHash() {
+			return hash;
+		}
+		public int getBlockSize() {
+			return blockSize;
+		}
+	}
+	
+	public static Signature signature(File file) throws IOException {
+		Signature signature = new Signature();
+		signature.blockSize = blockSize;
+		MessageDigest complete = digest("SHA-256");
+		MessageDigest strong = digest("MD5");
+		byte [] block = new byte[blockSize];
+		try (InputStream input = Files.newInputStream(file.toPath())) {
+			int read;
+			while ((read = readFully(input, block)) > 0) {
+				complete.update(block, 0, read);
+				signature.size += read;
+				// a partial block at the end is never matched, it is sent as a literal if needed
+				if (read == blockSize) {
+					int index = signature.strong.size();
+					signature.strong.add(strong.digest(block));
+					int checksum = weak(block, 0, read);
+					List<Integer> indexes = signature.weak.get(checksum);
+					if (indexes == null) {
+						indexes = new ArrayList<Integer>(1);
+						signature.weak.put(checksum, indexes);
+					}
+					indexes.add(index);
+				}
+			}
+		}
+		signature.hash = hex(complete.digest());
+		return signature;
+	}
+	
+	/**
+	 * Returns the sha-256 of the given file
+	 */
+	public static String hash(File file) throws IOException {
+		MessageDigest complete = digest("SHA-256");
+		byte [] buffer = new byte[64 * 1024];
+		try (InputStream input = Files.newInputStream(file.toPath())) {
+			int read;
+			while ((read = input.read(buffer)) >= 0) {
+				complete.update(buffer, 0, read);
+			}
+		}
+		return hex(complete.digest());
+	}
+	
+	/**
+	 * Calculates the delta between the original (of which we have the signature) and the current content of the file
+	 */
+	public static byte [] delta(Signature signature, File file) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream output = new DataOutputStream(bytes);
+		int size = signature.blockSize;
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			if (channel.size() > Integer.MAX_VALUE) {
+				throw new IOException("File too large for a delta: " + file);
+			}
+			int length = (int) channel.size();
+			MappedByteBuffer content = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+			MessageDigest strong = digest("MD5");
+			byte [] window = new byte[size];
+			int position = 0, literal = 0;
+			// the last copy operation, consecutive blocks are merged into one operation
+			int copyFrom = -1, copyCount = 0;
+			int a = 0, b = 0;
+			if (length >= size) {
+				for (int i = 0; i < size; i++) {
+					int value = content.get(i) & 0xff;
+					a += value;
+					b += (size - i) * value;
+				}
+			}
+			while (position + size <= length) {
+				int match = -1;
+				List<Integer> candidates = signature.weak.get((a & 0xffff) | ((b & 0xffff) << 16));
+				if (candidates != null) {
+					content.position(position);
+					content.get(window);
+					byte [] digest = strong.digest(window);
+					for (int candidate : candidates) {
+						if (Arrays.equals(digest, signature.strong.get(candidate))) {
+							match = candidate;
+							break;
+						}
+					}
+				}
+				if (match >= 0) {
+					if (literal < position) {
+						copyCount = flushCopy(output, copyFrom, copyCount);
+						writeLiteral(output, content, literal, position);
+					}
+					if (copyCount > 0 && copyFrom + copyCount == match) {
+						copyCount++;
+					}
+					else {
+						flushCopy(output, copyFrom, copyCount);
+						copyFrom = match;
+						copyCount = 1;
+					}
+					position += size;
+					literal = position;
+					// start a new window
+					a = 0;
+					b = 0;
+					if (position + size <= length) {
+						for (int i = 0; i < size; i++) {
+							int value = content.get(position + i) & 0xff;
+							a += value;
+							b += (size - i) * value;
+						}
+					}
+				}
+				else {
+					// roll the window forward by one byte
+					if (position + size < length) {
+						int out = content.get(position) & 0xff;
+						int in = content.get(position + size) & 0xff;
+						a = a - out + in;
+						b = b - size * out + a;
+					}
+					position++;
+				}
+			}
+			if (literal < length) {
+				copyCount = flushCopy(output, copyFrom, copyCount);
+				writeLiteral(output, content, literal, length);
+			}
+			flushCopy(output, copyFrom, copyCount);
+		}
+		output.flush();
+		return bytes.toByteArray();
+	}
+	
+	/**
+	 * Rebuilds the new content from the original and the delta.
+	 * The original file is overwritten rather than replaced so it keeps its inode, owner and permissions.
+	 * This is not atomic: if the overwrite fails halfway, the verified result is left next to the original (name*.delta) so nothing is lost.
+	 */
+	public static void apply(File original, int blockSize, InputStream delta, long expectedSize, String expectedHash) throws IOException {
+		File result = File.createTempFile(original.getName(), ".delta", original.getAbsoluteFile().getParentFile());
+		boolean keep = false;
+		try {
+			DataInputStream input = new DataInputStream(delta);
+			try (FileChannel source = FileChannel.open(original.toPath(), StandardOpenOption.READ); FileChannel target = FileChannel.open(result.toPath(), StandardOpenOption.WRITE)) {
+				byte [] buffer = new byte[maxLiteral];
+				int operation;
+				while ((operation = input.read()) >= 0) {
+					if (operation == 'C') {
+						long from = (long) input.readInt() * blockSize;
+						long amount = (long) input.readInt() * blockSize;
+						// the delta comes from the other end, negative values would make the channel throw something other than an IOException
+						if (from < 0 || amount < 0) {
+							throw new IOException("Invalid copy in the delta: " + from + ", " + amount);
+						}
+						else if (from + amount > source.size()) {
+							throw new IOException("The delta refers to blocks beyond the end of the original");
+						}
+						while (amount > 0) {
+							long transferred = source.transferTo(from, amount, target);
+							from += transferred;
+							amount -= transferred;
+						}
+					}
+					else if (operation == 'L') {
+						int amount = input.readInt();
+						if (amount < 0) {
+							throw new IOException("Invalid literal length: " + amount);
+						}
+						else if (amount > buffer.length) {
+							throw new IOException("Literal too large: " + amount);
+						}
+						input.readFully(buffer, 0, amount);
+						ByteBuffer wrapped = ByteBuffer.wrap(buffer, 0, amount);
+						while (wrapped.hasRemaining()) {
+							target.write(wrapped);
+						}
+					}
+					else {
+						throw new IOException("Unknown delta operation: " + operation);
+					}
+				}
+			}
+			catch (EOFException e) {
+				throw new IOException("Incomplete delta", e);
+			}
+			if (result.length() != expectedSize || !hash(result).equals(expectedHash)) {
+				throw new IOException("The result of the delta does not match the edited file, was the original changed in the mean time?");
+			}
+			// we only truncate once the new content is written, if it is shorter
+			keep = true;
+			try (FileChannel source = FileChannel.open(result.toPath(), StandardOpenOption.READ); FileChannel target = FileChannel.open(original.toPath(), StandardOpenOption.WRITE)) {
+				long position = 0;
+				while (position < source.size()) {
+					position += source.transferTo(position, source.size() - position, target);
+				}
+				target.truncate(source.size());
+				target.force(false);
+			}
+			keep = false;
+		}
+		finally {
+			if (!keep) {
+				result.delete();
+			}
+			else {
+				logger.warn("Could not overwrite " + original + ", the edited content is in " + result);
+			}
+		}
+	}
+	
+	private static int flushCopy(DataOutputStream output, int from, int count) throws IOException {
+		if (count > 0) {
+			output.write('C');
+			output.writeInt(from);
+			output.writeInt(count);
+		}
+		return 0;
+	}
+	
+	private static void writeLiteral(DataOutputStream output, MappedByteBuffer content, int from, int to) throws IOException {
+		byte [] buffer = new byte[Math.min(maxLiteral, to - from)];
+		while (from < to) {
+			int amount = Math.min(buffer.length, to - from);
+			content.position(from);
+			content.get(buffer, 0, amount);
+			output.write('L');
+			output.writeInt(amount);
+			output.write(buffer, 0, amount);
+			from += amount;
+		}
+	}
+	
+	private static int weak(byte [] bytes, int offset, int length) {
+		int a = 0, b = 0;
+		for (int i = 0; i < length; i++) {
+			int value = bytes[offset + i] & 0xff;
+			a += value;
+			b += (length - i) * value;
+		}
+		return (a & 0xffff) | ((b & 0xffff) << 16);
+	}
+	
+	private static int readFully(InputStream input, byte [] buffer) throws IOException {
+		int total = 0, read;
+		while (total < buffer.length && (read = input.read(buffer, total, buffer.length - total)) >= 0) {
+			total += read;
+		}
+		return total;
+	}
+	
+	private static MessageDigest digest(String algorithm) {
+		try {
+			return MessageDigest.getInstance(algorithm);
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	private static String hex(byte [] bytes) {
+		StringBuilder builder = new StringBuilder();
+		for (byte single : bytes) {
+			builder.append(String.format("%02x", single));
+		}
+		return builder.toString();
+	}
+}
@@ -0,0 +1,112 @@
+/*
+* Copyright (C) 2021 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.triton.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Moves files between disk and a connection.
+ * If the output can take data from a file channel directly (a plain socket channel), the kernel does the copying. 
+ * Otherwise (tls, framed data) the file channel reads into one large buffer that is handed to the stream as is, there is no additional buffering and we only flush at the end.
+ */
+public class FileTransfer {
+	
+	private static int bufferSize = Integer.parseInt(System.getProperty("triton.transfer.bufferSize", "" + (256 * 1024)));
+	
+	// the buffers are large, we don't want to allocate one per transfer
+	private static ThreadLocal<byte[]> buffers = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[bufferSize];
+		}
+	};
+	
+	private static Logger logger = LoggerFactory.getLogger(FileTransfer.class);
+	
+	public static TransferStatistics send(File file, OutputStream output) throws IOException {
+		return send(file, file.length(), output);
+	}
+	
+	/**
+	 * Sends exactly the given amount of bytes (usually the size we announced to the other end), even if the file grows in the mean time
+	 */
+	public static TransferStatistics send(File file, long size, OutputStream output) throws IOException {
+		long started = System.nanoTime();
+		long transferred = 0;
+		boolean zeroCopy = output instanceof ZeroCopyOutput;
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			if (zeroCopy) {
+				transferred = ((ZeroCopyOutput) output).transferFrom(channel, 0, size);
+			}
+			else {
+				byte [] buffer = buffers.get();
+				ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+				int read;
+				wrapped.limit((int) Math.min(buffer.length, size));
+				while (transferred < size && (read = channel.read(wrapped)) >= 0) {
+					output.write(buffer, 0, read);
+					transferred += read;
+					wrapped.clear();
+					wrapped.limit((int) Math.min(buffer.length, size - transferred));
+				}
+			}
+			output.flush();
+		}
+		if (transferred < size) {
+			throw new IOException("The file was truncated after " + transferred + " of " + size + " bytes: " + file.getName());
+		}
+		return log(new TransferStatistics(file.getName(), transferred, System.nanoTime() - started, zeroCopy), "Sent");
+	}
+	
+	/**
+	 * Reads exactly the given amount of bytes into the file, anything after that is left in the stream
+	 */
+	public static TransferStatistics receive(InputStream input, long size, File file) throws IOException {
+		long started = System.nanoTime();
+		long transferred = 0;
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			byte [] buffer = buffers.get();
+			int read;
+			while (transferred < size && (read = input.read(buffer, 0, (int) Math.min(size - transferred, buffer.length))) >= 0) {
+				ByteBuffer wrapped = ByteBuffer.wrap(buffer, 0, read);
+				while (wrapped.hasRemaining()) {
+					channel.write(wrapped);
+				}
+				transferred += read;
+			}
+		}
+		if (transferred < size) {
+			throw new IOException("Connection ended after " + transferred + " of " + size + " bytes for: " + file.getName());
+		}
+		return log(new TransferStatistics(file.getName(), transferred, System.nanoTime() - started, false), "Received");
+	}
+	
+	private static TransferStatistics log(TransferStatistics statistics, String direction) {
+		logger.debug(direction + " " + statistics);
+		return statistics;
+	}
+}
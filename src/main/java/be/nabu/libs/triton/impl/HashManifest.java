@@ -0,0 +1,243 @@
+/*
+* Copyright (C) 2021 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.triton.impl;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The content hash (sha-256) of every file in a directory, by path relative to that directory.
+ * The files are hashed in parallel on a fork join pool. Hashes are remembered by size and modification time in a cache file, a file that did not change since the last manifest is not read again.
+ */
+public class HashManifest {
+	
+	private static int parallelism = Integer.parseInt(System.getProperty("triton.sync.parallelism", "" + Runtime.getRuntime().availableProcessors()));
+	// below this amount of files a task no longer splits
+	private static int threshold = 8;
+	private static ForkJoinPool pool;
+	private static Charset charset = Charset.forName("UTF-8");
+	
+	private static Logger logger = LoggerFactory.getLogger(HashManifest.class);
+	
+	public static class Entry {
+		private String path, hash;
+		private long size, lastModified;
+		
+		Entry(String path, long size, long lastModified, String hash) {
+			this.path = path;
+			this.size = size;
+			this.lastModified = lastModified;
+			this.hash = hash;
+		}
+		public String getPath() {
+			return path;
+		}
+		public String getHash() {
+			return hash;
+		}
+		public long getSize() {
+			return size;
+		}
+		public long getLastModified() {
+			return lastModified;
+		}
+	}
+	
+	private Map<String, Entry> entries = new TreeMap<String, Entry>();
+	
+	private static synchronized ForkJoinPool getPool() {
+		if (pool == null) {
+			pool = new ForkJoinPool(parallelism);
+		}
+		return pool;
+	}
+	
+	/**
+	 * Builds the manifest for the directory, the cache (if any) is updated as well
+	 */
+	public static HashManifest build(File root, File cache) throws IOException {
+		final Path rootPath = root.toPath();
+		final List<Path> files = new ArrayList<Path>();
+		final List<BasicFileAttributes> attributes = new ArrayList<BasicFileAttributes>();
+		Files.walkFileTree(rootPath, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				if (attrs.isRegularFile()) {
+					files.add(file);
+					attributes.add(attrs);
+				}
+				return FileVisitResult.CONTINUE;
+			}
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
+				logger.warn("Can not read: " + file, exc);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+		Map<String, Entry> cached = cache == null ? new HashMap<String, Entry>() : readCache(cache);
+		Entry [] result = new Entry[files.size()];
+		getPool().invoke(new HashTask(rootPath, files, attributes, cached, result, 0, result.length));
+		HashManifest manifest = new HashManifest();
+		for (Entry entry : result) {
+			// files that disappeared while we were hashing
+			if (entry != null) {
+				manifest.entries.put(entry.path, entry);
+			}
+		}
+		if (cache != null) {
+			manifest.writeCache(cache);
+		}
+		return manifest;
+	}
+	
+	public Map<String, Entry> getEntries() {
+		return entries;
+	}
+	
+	/**
+	 * Reads a manifest as written by write(), the size and modification time are not part of it
+	 */
+	public static HashManifest read(InputStream input) throws IOException {
+		HashManifest manifest = new HashManifest();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(input, charset));
+		String line;
+		while ((line = reader.readLine()) != null) {
+			// <hash>;<size>;<path>
+			String[] parts = line.split(";", 3);
+			if (parts.length == 3) {
+				manifest.entries.put(parts[2], new Entry(parts[2], Long.parseLong(parts[1]), 0, parts[0]));
+			}
+		}
+		return manifest;
+	}
+	
+	public void write(OutputStream output) throws IOException {
+		Writer writer = new BufferedWriter(new OutputStreamWriter(output, charset));
+		for (Entry entry : entries.values()) {
+			writer.write(entry.hash + ";" + entry.size + ";" + entry.path + "\n");
+		}
+		writer.flush();
+	}
+	
+	private static Map<String, Entry> readCache(File cache) {
+		Map<String, Entry> entries = new HashMap<String, Entry>();
+		if (cache.exists()) {
+			try (BufferedReader reader = Files.newBufferedReader(cache.toPath(), charset)) {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					// <size>;<last modified>;<hash>;<path>
+					String[] parts = line.split(";", 4);
+					if (parts.length == 4) {
+						entries.put(parts[3], new Entry(parts[3], Long.parseLong(parts[0]), Long.parseLong(parts[1]), parts[2]));
+					}
+				}
+			}
+			catch (Exception e) {
+				logger.warn("Could not read hash cache: " + cache, e);
+			}
+		}
+		return entries;
+	}
+	
+	private void writeCache(File cache) {
+		try {
+			File temporary = new File(cache.getParentFile(), cache.getName() + ".tmp");
+			try (Writer writer = Files.newBufferedWriter(temporary.toPath(), charset)) {
+				for (Entry entry : entries.values()) {
+					writer.write(entry.size + ";" + entry.lastModified + ";" + entry.hash + ";" + entry.path + "\n");
+				}
+			}
+			Files.move(temporary.toPath(), cache.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+		catch (IOException e) {
+			logger.warn("Could not write hash cache: " + cache, e);
+		}
+	}
+	
+	private static class HashTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private Path root;
+		private List<Path> files;
+		private List<BasicFileAttributes> attributes;
+		private Map<String, Entry> cached;
+		private Entry [] result;
+		private int from, to;
+		
+		HashTask(Path root, List<Path> files, List<BasicFileAttributes> attributes, Map<String, Entry> cached, Entry [] result, int from, int to) {
+			this.root = root;
+			this.files = files;
+			this.attributes = attributes;
+			this.cached = cached;
+			this.result = result;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= threshold) {
+				for (int i = from; i < to; i++) {
+					Path file = files.get(i);
+					String path = root.relativize(file).toString().replace(File.separatorChar, '/');
+					long size = attributes.get(i).size();
+					long lastModified = attributes.get(i).lastModifiedTime().toMillis();
+					Entry entry = cached.get(path);
+					if (entry != null && entry.size == size && entry.lastModified == lastModified) {
+						result[i] = entry;
+					}
+					else {
+						try {
+							result[i] = new Entry(path, size, lastModified, FileDelta.hash(file.toFile()));
+						}
+						catch (IOException e) {
+							logger.warn("Could not hash: " + file, e);
+						}
+					}
+				}
+			}
+			else {
+				int middle = (from + to) >>> 1;
+				invokeAll(new HashTask(root, files, attributes, cached, result, from, middle), new HashTask(root, files, attributes, cached, result, middle, to));
+			}
+		}
+	}
+}
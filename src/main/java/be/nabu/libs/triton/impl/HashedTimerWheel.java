@@ -0,0 +1,166 @@
+/*
+* Copyright (C) 2021 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package be.nabu.libs.triton.impl;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A hashed timer wheel: timeouts are hashed into a bucket based on their deadline, every tick only the current bucket is visited.
+ * This means the cost of a tick depends on what is due (give or take a few rounds), not on the total amount of scheduled timeouts.
+ * The handler is expected to check whether the item is still relevant and reschedule it if necessary.
+ * Timeouts that are no longer needed should be cancelled so they don't keep the item around until their deadline.
+ */
+public class HashedTimerWheel<T> implements Runnable {
+	
+	public interface TimeoutHandler<T> {
+		public void expired(T item);
+	}
+	
+	public static class Timeout<T> {
+		private T item;
+		private long deadline;
+		private long rounds;
+		// the bucket it is in, -1 as long as it is pending
+		private int bucket = -1;
+		private volatile boolean cancelled;
+	}
+	
+	private Logger logger = LoggerFactory.getLogger(getClass());
+	private List<List<Timeout<T>>> wheel;
+	// timeouts are scheduled from any thread but only the ticking thread touches the wheel itself
+	private ConcurrentLinkedQueue<Timeout<T>> pending = new ConcurrentLinkedQueue<Timeout<T>>();
+	private ConcurrentLinkedQueue<Timeout<T>> cancelled = new ConcurrentLinkedQueue<Timeout<T>>();
+	private long tickDuration;
+	// the next tick to be processed
+	private long tick;
+	private long start;
+	private TimeoutHandler<T> handler;
+	private volatile boolean running;
+	
+	public HashedTimerWheel(int buckets, long tickDuration, TimeoutHandler<T> handler) {
+		this.tickDuration = tickDuration;
+		this.handler = handler;
+		this.wheel = new ArrayList<List<Timeout<T>>>(buckets);
+		for (int i = 0; i < buckets; i++) {
+			wheel.add(new ArrayList<Timeout<T>>());
+		}
+		this.start = System.currentTimeMillis();
+	}
+	
+	public Timeout<T> schedule(T item, long deadline) {
+		Timeout<T> timeout = new Timeout<T>();
+		timeout.item = item;
+		timeout.deadline = deadline;
+		pending.add(timeout);
+		return timeout;
+	}
+	
+	/**
+	 * The timeout will not expire, it is removed from the wheel on the next tick
+	 */
+	public void cancel(Timeout<T> timeout) {
+		if (timeout != null && !timeout.cancelled) {
+			timeout.cancelled = true;
+			cancelled.add(timeout);
+		}
+	}
+	
+	public Thread start(String name) {
+		running = true;
+		Thread thread = new Thread(this);
+		thread.setName(name);
+		thread.setDaemon(true);
+		thread.start();
+		return thread;
+	}
+	
+	public void stop() {
+		running = false;
+	}
+	
+	@Override
+	public void run() {
+		while (running) {
+			long sleep = start + (tick * tickDuration) - System.currentTimeMillis();
+			if (sleep > 0) {
+				try {
+					Thread.sleep(sleep);
+				}
+				catch (InterruptedException e) {
+					// ignore
+				}
+				continue;
+			}
+			List<Timeout<T>> expired = tick();
+			for (Timeout<T> timeout : expired) {
+				if (timeout.cancelled) {
+					continue;
+				}
+				try {
+					handler.expired(timeout.item);
+				}
+				catch (Exception e) {
+					logger.error("Could not handle timeout for: " + timeout.item, e);
+				}
+			}
+		}
+	}
+	
+	private List<Timeout<T>> tick() {
+		Timeout<T> timeout;
+		while ((timeout = cancelled.poll()) != null) {
+			// if it is still pending, it is skipped below
+			if (timeout.bucket >= 0) {
+				wheel.get(timeout.bucket).remove(timeout);
+			}
+			timeout.item = null;
+		}
+		while ((timeout = pending.poll()) != null) {
+			if (timeout.cancelled) {
+				continue;
+			}
+			// the tick at which the deadline has passed, if that is in the past, we do it now
+			long ticks = Math.max(tick, (timeout.deadline - start + tickDuration - 1) / tickDuration);
+			timeout.rounds = (ticks - tick) / wheel.size();
+			timeout.bucket = (int) (ticks % wheel.size());
+			wheel.get(timeout.bucket).add(timeout);
+		}
+		List<Timeout<T>> expired = new ArrayList<Timeout<T>>();
+		Iterator<Timeout<T>> iterator = wheel.get((int) (tick % wheel.size())).iterator();
+		while (iterator.hasNext()) {
+			timeout = iterator.next();
+			if (timeout.rounds <= 0) {
+				iterator.remove();
+				timeout.bucket = -1;
+				expired.add(timeout);
+			}
+			else {
+				timeout.rounds--;
+			}
+		}
+		tick++;
+		return expired;
+	}
+}
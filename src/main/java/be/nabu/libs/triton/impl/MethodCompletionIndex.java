@@ -0,0 +1,247 @@
+/*
+* Copyright (C) 2021 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.triton.impl;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import be.nabu.glue.api.MethodDescription;
+import be.nabu.glue.api.ParameterDescription;
+import be.nabu.glue.core.api.MethodProvider;
+
+/**
+ * An index of the available methods for completion, it is built once and reused until the available methods change.
+ * Prefixes are looked up with a binary search in sorted arrays, the suggestions themselves (including the parameters) are precomputed.
+ * Methods that don't start with what was typed but do contain it in order (e.g. "ruser" for "removeUser") are added after the prefix matches, best match first.
+ * The index can be sent as a catalogue to clients so they can complete locally, the version identifies the content of the catalogue.
+ */
+public class MethodCompletionIndex {
+
+	// the maximum amount of fuzzy matches we add to the prefix matches, we only look for them if there are fewer prefix matches than this
+	private static int maxFuzzy = Integer.parseInt(System.getProperty("triton.completion.maxFuzzy", "20"));
+	
+	private static class Entry {
+		// the lowercased key we match on and what we send back
+		private String key, suggestion;
+		// the key as it was, used to score word boundaries
+		private String original;
+		
+		Entry(String original, String suggestion) {
+			this.original = original;
+			this.key = original.toLowerCase();
+			this.suggestion = suggestion;
+		}
+	}
+	
+	private static class Match implements Comparable<Match> {
+		private Entry entry;
+		private int score;
+		
+		Match(Entry entry, int score) {
+			this.entry = entry;
+			this.score = score;
+		}
+		@Override
+		public int compareTo(Match o) {
+			int comparison = o.score - score;
+			// the shorter one is more likely what you meant
+			return comparison != 0 ? comparison : entry.key.length() - o.entry.key.length();
+		}
+	}
+	
+	private static Comparator<Entry> byKey = new Comparator<Entry>() {
+		@Override
+		public int compare(Entry o1, Entry o2) {
+			return o1.key.compareTo(o2.key);
+		}
+	};
+	
+	// by name and by namespace.name
+	private Entry [] names, qualifiedNames;
+	private String catalogue, version;
+	
+	public MethodCompletionIndex(MethodProvider...providers) {
+		List<Entry> names = new ArrayList<Entry>();
+		List<Entry> qualifiedNames = new ArrayList<Entry>();
+		for (MethodProvider provider : providers) {
+			for (MethodDescription description : provider.getAvailableMethods()) {
+				String parameters = "";
+				List<ParameterDescription> list = description.getParameters();
+				if (list != null && !list.isEmpty()) {
+					for (ParameterDescription parameter : list) {
+						if (!parameters.isEmpty()) {
+							parameters += ", ";
+						}
+						parameters += parameter.getName();
+					}
+				}
+				String suffix = parameters.isEmpty() ? "" : "::" + parameters;
+				names.add(new Entry(description.getName(), description.getName() + suffix));
+				if (description.getNamespace() != null) {
+					String qualified = description.getNamespace() + "." + description.getName();
+					qualifiedNames.add(new Entry(qualified, qualified + suffix));
+				}
+			}
+		}
+		initialize(names, qualifiedNames);
+	}
+	
+	private MethodCompletionIndex(List<Entry> names, List<Entry> qualifiedNames) {
+		initialize(names, qualifiedNames);
+	}
+	
+	private void initialize(List<Entry> names, List<Entry> qualifiedNames) {
+		this.names = names.toArray(new Entry[0]);
+		this.qualifiedNames = qualifiedNames.toArray(new Entry[0]);
+		Arrays.sort(this.names, byKey);
+		Arrays.sort(this.qualifiedNames, byKey);
+	}
+	
+	/**
+	 * One suggestion per line, prefixed with "n " for names and "q " for namespaced names
+	 */
+	public synchronized String getCatalogue() {
+		if (catalogue == null) {
+			StringBuilder builder = new StringBuilder();
+			for (Entry entry : names) {
+				builder.append("n ").append(entry.suggestion).append("\n");
+			}
+			for (Entry entry : qualifiedNames) {
+				builder.append("q ").append(entry.suggestion).append("\n");
+			}
+			catalogue = builder.toString();
+		}
+		return catalogue;
+	}
+	
+	public synchronized String getVersion() {
+		if (version == null) {
+			try {
+				byte [] digest = MessageDigest.getInstance("SHA-256").digest(getCatalogue().getBytes(Charset.forName("UTF-8")));
+				StringBuilder builder = new StringBuilder();
+				for (int i = 0; i < 8; i++) {
+					builder.append(String.format("%02x", digest[i]));
+				}
+				version = builder.toString();
+			}
+			catch (NoSuchAlgorithmException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		return version;
+	}
+	
+	/**
+	 * Rebuild an index from a catalogue
+	 */
+	public static MethodCompletionIndex fromCatalogue(String catalogue) {
+		List<Entry> names = new ArrayList<Entry>();
+		List<Entry> qualifiedNames = new ArrayList<Entry>();
+		for (String line : catalogue.split("\n")) {
+			if (line.length() > 2) {
+				String suggestion = line.substring(2);
+				int index = suggestion.indexOf("::");
+				Entry entry = new Entry(index < 0 ? suggestion : suggestion.substring(0, index), suggestion);
+				if (line.startsWith("q ")) {
+					qualifiedNames.add(entry);
+				}
+				else if (line.startsWith("n ")) {
+					names.add(entry);
+				}
+			}
+		}
+		return new MethodCompletionIndex(names, qualifiedNames);
+	}
+	
+	/**
+	 * The suggestions for what was typed so far, if it contains a "." we match on the namespace as well
+	 */
+	public List<String> suggest(String soFar) {
+		soFar = soFar.toLowerCase();
+		Entry [] entries = soFar.contains(".") ? qualifiedNames : names;
+		// a set because the same method can be offered by multiple providers
+		Set<String> suggestions = new LinkedHashSet<String>();
+		for (int i = lowerBound(entries, soFar); i < entries.length && entries[i].key.startsWith(soFar); i++) {
+			suggestions.add(entries[i].suggestion);
+		}
+		// a single character is too vague for fuzzy matching and if we have plenty of prefix matches, you are probably typing one of those
+		if (soFar.length() >= 2 && suggestions.size() < maxFuzzy) {
+			List<Match> matches = new ArrayList<Match>();
+			for (Entry entry : entries) {
+				if (!entry.key.startsWith(soFar)) {
+					int score = score(soFar, entry);
+					if (score > 0) {
+						matches.add(new Match(entry, score));
+					}
+				}
+			}
+			Collections.sort(matches);
+			for (int i = 0; i < matches.size() && i < maxFuzzy; i++) {
+				suggestions.add(matches.get(i).entry.suggestion);
+			}
+		}
+		return new ArrayList<String>(suggestions);
+	}
+	
+	// the first entry that is not smaller than the prefix
+	private static int lowerBound(Entry [] entries, String prefix) {
+		int low = 0, high = entries.length;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (entries[middle].key.compareTo(prefix) < 0) {
+				low = middle + 1;
+			}
+			else {
+				high = middle;
+			}
+		}
+		return low;
+	}
+	
+	// all the characters have to appear in order, matches at the start of a word and consecutive matches score higher, gaps cost a little
+	private static int score(String pattern, Entry entry) {
+		String key = entry.key;
+		int score = 0, position = 0, previous = -2;
+		for (int i = 0; i < pattern.length(); i++) {
+			int index = key.indexOf(pattern.charAt(i), position);
+			if (index < 0) {
+				return 0;
+			}
+			score += 1;
+			if (index == previous + 1) {
+				score += 3;
+			}
+			char original = entry.original.charAt(index);
+			if (index == 0 || !Character.isLetterOrDigit(key.charAt(index - 1)) || Character.isUpperCase(original)) {
+				score += 5;
+			}
+			score -= Math.min(index - position, 3);
+			previous = index;
+			position = index + 1;
+		}
+		return Math.max(score, 1);
+	}
+}
@@ -0,0 +1,266 @@
+/*
+* Copyright (C) 2021 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.triton.impl;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A read-only view of a (possibly very large) file that is read a few lines at a time.
+ * The file is read in pages, only the most recently used pages are kept in memory.
+ * We don't memory map the file: if it is truncated while we look at it (e.g. log rotation), a mapping would crash the jvm thread while a read simply comes up short.
+ * To jump to a line number we keep the offset of every so many lines, this index is only built as far as it is needed.
+ */
+public class PagedFile implements Closeable {
+	
+	private static final int PAGE_BITS = 16;
+	private static final long PAGE_MASK = (1L << PAGE_BITS) - 1;
+	// we remember the offset of every n-th line
+	private static int indexInterval = Integer.parseInt(System.getProperty("triton.less.indexInterval", "1000"));
+	// how many pages of 64kb we keep in memory
+	private static int cachedPages = Integer.parseInt(System.getProperty("triton.less.cachedPages", "64"));
+	
+	private File file;
+	private FileChannel channel;
+	private long size;
+	private Charset charset;
+	// the most recently used pages by number
+	private Map<Long, byte[]> pages = new LinkedHashMap<Long, byte[]>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest) {
+			return size() > cachedPages;
+		}
+	};
+	// most lookups are in the same page as the previous one
+	private long lastNumber = -1;
+	private byte [] lastPage;
+	// the offset of line 0, indexInterval, 2 * indexInterval...
+	private List<Long> index = new ArrayList<Long>();
+	// whether the index has reached the end of the file
+	private boolean indexed;
+	
+	public PagedFile(File file, Charset charset) throws IOException {
+		this.file = file;
+		this.charset = charset;
+		this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		this.size = channel.size();
+		index.add(0l);
+	}
+	
+	public long getSize() {
+		return size;
+	}
+	
+	// the page the position is in, the size of the file is fixed when it is opened so a short page means it was truncated
+	private byte [] page(long position) throws IOException {
+		long number = position >> PAGE_BITS;
+		if (number == lastNumber) {
+			return lastPage;
+		}
+		byte [] page = pages.get(number);
+		if (page == null) {
+			long offset = number << PAGE_BITS;
+			ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(PAGE_MASK + 1, size - offset));
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer, offset + buffer.position()) < 0) {
+					throw new IOException("The file was truncated while viewing it: " + file.getName());
+				}
+			}
+			page = buffer.array();
+			pages.put(number, page);
+		}
+		lastNumber = number;
+		lastPage = page;
+		return page;
+	}
+	
+	private byte get(long position) throws IOException {
+		return page(position)[(int) (position & PAGE_MASK)];
+	}
+	
+	/**
+	 * The start of the line after the one the offset is in, the size of the file if there is none
+	 */
+	public long nextLine(long offset) throws IOException {
+		// we scan a page at a time, this is what the index is built with
+		while (offset < size) {
+			byte [] page = page(offset);
+			long base = offset & ~PAGE_MASK;
+			for (int i = (int) (offset & PAGE_MASK); i < page.length; i++) {
+				if (page[i] == '\n') {
+					return base + i + 1;
+				}
+			}
+			offset = base + page.length;
+		}
+		return size;
+	}
+	
+	/**
+	 * The start of the line the offset is in
+	 */
+	public long lineStart(long offset) throws IOException {
+		offset = Math.min(offset, size);
+		while (offset > 0 && get(offset - 1) != '\n') {
+			offset--;
+		}
+		return offset;
+	}
+	
+	/**
+	 * The start of the line before the line that starts at the given offset
+	 */
+	public long previousLine(long start) throws IOException {
+		return start <= 0 ? 0 : lineStart(start - 1);
+	}
+	
+	/**
+	 * Moves the given amount of lines down (or up if negative) from the line that starts at the given offset, we never move past the start of the last line
+	 */
+	public long move(long start, long lines) throws IOException {
+		for (; lines < 0 && start > 0; lines++) {
+			start = previousLine(start);
+		}
+		for (; lines > 0; lines--) {
+			long next = nextLine(start);
+			if (next >= size) {
+				break;
+			}
+			start = next;
+		}
+		return start;
+	}
+	
+	/**
+	 * The offset of the given line (0-based), if the file does not have that many lines, the start of the last line
+	 */
+	public long getOffset(long line) throws IOException {
+		int checkpoint = (int) Math.min(line / indexInterval, Integer.MAX_VALUE - 1);
+		// extend the index up to the checkpoint we need
+		while (index.size() <= checkpoint && !indexed) {
+			long offset = index.get(index.size() - 1);
+			for (int i = 0; i < indexInterval && offset < size; i++) {
+				offset = nextLine(offset);
+			}
+			if (offset >= size) {
+				indexed = true;
+			}
+			else {
+				index.add(offset);
+			}
+		}
+		int available = Math.min(checkpoint, index.size() - 1);
+		long offset = index.get(available);
+		for (long current = (long) available * indexInterval; current < line; current++) {
+			long next = nextLine(offset);
+			if (next >= size) {
+				break;
+			}
+			offset = next;
+		}
+		return offset;
+	}
+	
+	/**
+	 * Reads at most the given amount of lines, starting at the line that starts at the given offset
+	 * Lines are cut off at the given width, only what fits on the screen is added to the result
+	 * Returns the offset after the last line that was read
+	 */
+	public long read(long offset, int lines, int width, List<String> result) throws IOException {
+		while (result.size() < lines && offset < size) {
+			long next = nextLine(offset);
+			long end = next;
+			// we drop the linefeed
+			if (end > offset && get(end - 1) == '\n') {
+				end--;
+				if (end > offset && get(end - 1) == '\r') {
+					end--;
+				}
+			}
+			// a single character takes at most 4 bytes
+			int length = (int) Math.min(end - offset, (long) width * 4 + 4);
+			byte [] bytes = new byte[length];
+			for (int i = 0; i < length; i++) {
+				bytes[i] = get(offset + i);
+			}
+			// control characters could mess up the terminal
+			String line = new String(bytes, charset).replace("\t", "    ").replaceAll("\\p{Cntrl}", "?");
+			result.add(line.length() > width ? line.substring(0, width) : line);
+			offset = next;
+		}
+		return offset;
+	}
+	
+	/**
+	 * Returns the start of the first line after (or before) the line that starts at the given offset that contains the text, or -1 if there is none
+	 * If the text is all lower case, the search ignores the case of ascii letters
+	 */
+	public long find(long offset, String text, boolean forward) throws IOException {
+		byte [] pattern = text.getBytes(charset);
+		if (pattern.length == 0) {
+			return -1;
+		}
+		boolean ignoreCase = text.equals(text.toLowerCase());
+		long position;
+		if (forward) {
+			for (position = nextLine(offset); position <= size - pattern.length; position++) {
+				if (matches(position, pattern, ignoreCase)) {
+					return lineStart(position);
+				}
+			}
+		}
+		else {
+			for (position = Math.min(offset, size) - pattern.length; position >= 0; position--) {
+				if (matches(position, pattern, ignoreCase)) {
+					return lineStart(position);
+				}
+			}
+		}
+		return -1;
+	}
+	
+	private boolean matches(long position, byte [] pattern, boolean ignoreCase) throws IOException {
+		for (int i = 0; i < pattern.length; i++) {
+			byte single = get(position + i);
+			if (ignoreCase && single >= 'A' && single <= 'Z') {
+				single += 'a' - 'A';
+			}
+			if (single != pattern[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	@Override
+	public void close() throws IOException {
+		pages.clear();
+		lastPage = null;
+		channel.close();
+	}
+}
@@ -0,0 +1,346 @@
+/*
+* Copyright (C) 2021 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.triton.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.jline.keymap.BindingReader;
+import org.jline.keymap.KeyMap;
+import org.jline.terminal.Attributes;
+import org.jline.terminal.Terminal;
+import org.jline.utils.AttributedString;
+import org.jline.utils.AttributedStringBuilder;
+import org.jline.utils.AttributedStyle;
+import org.jline.utils.Display;
+import org.jline.utils.InfoCmp.Capability;
+
+import be.nabu.libs.triton.impl.ConsoleFrame.FrameType;
+
+/**
+ * Shows a file on the server page by page, the file itself stays on the server and only the lines on the screen are sent.
+ * The server starts with a transfer frame "view;<size>;<name>" on the channel of the command, after that the client asks for what it wants to see:
+ * - "page;<offset>;<move>;<lines>;<width>": move the given amount of lines (negative is up) from the line at the offset and read from there
+ * - "line;<number>;<lines>;<width>": read from the given line number
+ * - "search;<offset>;<forward|backward>;<lines>;<width>;<text>": read from the next line after (or before) the offset that contains the text
+ * - "quit": the viewer is closed
+ * The server answers with "page;<start>;<end>;<amount of lines>" followed by a data frame with the lines, or "missing" if the search found nothing.
+ * Lines are cut off at the width of the terminal, use the line number or a search to get to a specific point.
+ */
+public class PagedViewer {
+	
+	// the viewer asks for a screen at a time, nothing a terminal can show comes near these
+	private static final int MAX_LINES = 1000, MAX_WIDTH = 1000;
+	
+	private enum Operation {
+		QUIT, DOWN, UP, PAGE_DOWN, PAGE_UP, TOP, BOTTOM, SEARCH_FORWARD, SEARCH_BACKWARD, NEXT, PREVIOUS, GOTO
+	}
+	
+	private Terminal terminal;
+	private ConsoleFramer framer;
+	private int channel;
+	private String name;
+	private long size;
+	// the offset of the first line on the screen and the offset after the last one
+	private long top, bottom;
+	private List<String> lines = new ArrayList<String>();
+	private String search, message;
+	private boolean forward = true;
+	private Display display;
+	private BindingReader reader;
+	
+	/**
+	 * The server side: answers the requests of the viewer until it is closed
+	 */
+	public static void serve(ConsoleFramer framer, int channel, File file) throws IOException {
+		try (PagedFile paged = new PagedFile(file, framer.getCharset())) {
+			framer.write(FrameType.TRANSFER, channel, "view;" + paged.getSize() + ";" + file.getName());
+			String request;
+			while (!(request = ChunkedTransfer.expect(framer, channel)).equals("quit")) {
+				String[] parts = request.split(";", 6);
+				long start;
+				int lines, width;
+				if (parts[0].equals("page") && parts.length == 5) {
+					start = paged.move(paged.lineStart(Long.parseLong(parts[1])), Long.parseLong(parts[2]));
+					lines = Integer.parseInt(parts[3]);
+					width = Integer.parseInt(parts[4]);
+				}
+				else if (parts[0].equals("line") && parts.length == 4) {
+					start = paged.getOffset(Math.max(0, Long.parseLong(parts[1]) - 1));
+					lines = Integer.parseInt(parts[2]);
+					width = Integer.parseInt(parts[3]);
+				}
+				else if (parts[0].equals("search") && parts.length == 6) {
+					start = paged.find(Long.parseLong(parts[1]), parts[5], parts[2].equals("forward"));
+					lines = Integer.parseInt(parts[3]);
+					width = Integer.parseInt(parts[4]);
+				}
+				else {
+					throw ChunkedTransfer.fail(framer, channel, "Unexpected view request: " + request);
+				}
+				// the sizes come from the client, they determine how much we read and allocate
+				lines = Math.max(1, Math.min(lines, MAX_LINES));
+				width = Math.max(1, Math.min(width, MAX_WIDTH));
+				if (start < 0) {
+					framer.write(FrameType.TRANSFER, channel, "missing");
+					continue;
+				}
+				List<String> result = new ArrayList<String>();
+				long end = paged.read(start, lines, width, result);
+				StringBuilder builder = new StringBuilder();
+				for (String line : result) {
+					if (builder.length() > 0) {
+						builder.append('\n');
+					}
+					builder.append(line);
+				}
+				framer.write(FrameType.TRANSFER, channel, "page;" + start + ";" + end + ";" + result.size());
+				byte [] bytes = builder.toString().getBytes(framer.getCharset());
+				framer.write(FrameType.DATA, channel, bytes, 0, bytes.length, true);
+			}
+		}
+		// e.g. the file was truncated, the viewer shows the message and closes
+		catch (IOException e) {
+			ChunkedTransfer.abort(framer, channel, e);
+			throw e;
+		}
+	}
+	
+	public PagedViewer(Terminal terminal, ConsoleFramer framer, int channel, String request) {
+		this.terminal = terminal;
+		this.framer = framer;
+		this.channel = channel;
+		// view;<size>;<name>
+		String[] parts = request.split(";", 3);
+		this.size = Long.parseLong(parts[1]);
+		this.name = parts[2];
+	}
+	
+	public void run() throws IOException {
+		Attributes attributes = terminal.enterRawMode();
+		terminal.puts(Capability.enter_ca_mode);
+		terminal.puts(Capability.keypad_xmit);
+		terminal.puts(Capability.clear_screen);
+		display = new Display(terminal, true);
+		reader = new BindingReader(terminal.reader());
+		KeyMap<Operation> keys = getKeys();
+		try {
+			page("page;0;0");
+			while (true) {
+				draw(null);
+				Operation operation = reader.readBinding(keys);
+				message = null;
+				if (operation == null || operation == Operation.QUIT) {
+					break;
+				}
+				switch (operation) {
+					case DOWN:
+					case PAGE_DOWN:
+						if (bottom >= size) {
+							message = "(end)";
+						}
+						else {
+							page("page;" + top + ";" + (operation == Operation.DOWN ? 1 : getRows()));
+							// the last page is always a full one
+							if (lines.size() < getRows()) {
+								page("page;" + size + ";" + (-getRows()));
+							}
+						}
+					break;
+					case UP:
+					case PAGE_UP:
+						page("page;" + top + ";" + (operation == Operation.UP ? -1 : -getRows()));
+					break;
+					case TOP:
+						page("page;0;0");
+					break;
+					case BOTTOM:
+						page("page;" + size + ";" + (-getRows()));
+					break;
+					case SEARCH_FORWARD:
+					case SEARCH_BACKWARD:
+						String text = prompt(operation == Operation.SEARCH_FORWARD ? "/" : "?");
+						if (text != null && !text.isEmpty()) {
+							search = text;
+							forward = operation == Operation.SEARCH_FORWARD;
+							search(forward);
+						}
+					break;
+					case NEXT:
+					case PREVIOUS:
+						if (search == null) {
+							message = "No previous search";
+						}
+						else {
+							search(operation == Operation.NEXT ? forward : !forward);
+						}
+					break;
+					case GOTO:
+						String line = prompt("line: ");
+						if (line != null && line.trim().matches("[0-9]+")) {
+							page("line;" + line.trim());
+						}
+					break;
+					default:
+				}
+			}
+		}
+		finally {
+			framer.write(FrameType.TRANSFER, channel, "quit");
+			terminal.puts(Capability.keypad_local);
+			terminal.puts(Capability.exit_ca_mode);
+			terminal.setAttributes(attributes);
+			terminal.flush();
+		}
+	}
+	
+	private void search(boolean forward) throws IOException {
+		if (!page("search;" + top + ";" + (forward ? "forward" : "backward"), search)) {
+			message = "Not found: " + search;
+		}
+	}
+	
+	private boolean page(String request) throws IOException {
+		return page(request, null);
+	}
+	
+	// the screen is always requested as a whole, the text of a search is last because it can contain anything
+	private boolean page(String request, String text) throws IOException {
+		framer.write(FrameType.TRANSFER, channel, request + ";" + getRows() + ";" + getWidth() + (text == null ? "" : ";" + text));
+		String reply = ChunkedTransfer.expect(framer, channel);
+		if (reply.equals("missing")) {
+			return false;
+		}
+		else if (reply.startsWith("fail;")) {
+			throw new IOException(reply.substring("fail;".length()));
+		}
+		else if (!reply.startsWith("page;")) {
+			throw new IOException("Unexpected reply: " + reply);
+		}
+		String[] parts = reply.split(";");
+		ConsoleFrame data = framer.read(channel, FrameType.DATA);
+		if (data == null) {
+			throw new IOException("Connection closed while viewing: " + name);
+		}
+		top = Long.parseLong(parts[1]);
+		bottom = Long.parseLong(parts[2]);
+		lines = Integer.parseInt(parts[3]) == 0 ? new ArrayList<String>() : Arrays.asList(new String(data.getPayload(), framer.getCharset()).split("\n", -1));
+		return true;
+	}
+	
+	// reads a line of input on the status line, returns null if it was cancelled
+	private String prompt(String label) throws IOException {
+		StringBuilder input = new StringBuilder();
+		while (true) {
+			draw(label + input);
+			int character = reader.readCharacter();
+			// end of stream, ctrl+c or escape
+			if (character < 0 || character == 3 || character == 27) {
+				return null;
+			}
+			else if (character == '\r' || character == '\n') {
+				return input.toString();
+			}
+			else if (character == 127 || character == 8) {
+				if (input.length() == 0) {
+					return null;
+				}
+				input.setLength(input.length() - 1);
+			}
+			else if (character >= 32) {
+				input.appendCodePoint(character);
+			}
+		}
+	}
+	
+	private void draw(String status) {
+		int rows = getRows(), width = getWidth();
+		display.resize(rows + 1, width);
+		List<AttributedString> screen = new ArrayList<AttributedString>();
+		for (int i = 0; i < rows; i++) {
+			screen.add(i < lines.size() ? highlight(lines.get(i)) : new AttributedString("~"));
+		}
+		if (status == null) {
+			status = name + " " + (size == 0 ? 100 : (bottom * 100) / size) + "%" + (message == null ? "" : " " + message) + " (q to quit, / to search, : to go to a line)";
+		}
+		if (status.length() >= width) {
+			status = status.substring(0, width - 1);
+		}
+		screen.add(new AttributedStringBuilder().style(AttributedStyle.INVERSE).append(status).toAttributedString());
+		display.update(screen, rows * width + status.length());
+	}
+	
+	// the matches of the last search stand out
+	private AttributedString highlight(String line) {
+		if (search == null) {
+			return new AttributedString(line);
+		}
+		AttributedStringBuilder builder = new AttributedStringBuilder();
+		// lower casing can change the length of a string, so we compare in place rather than search a lower cased copy
+		boolean ignoreCase = search.equals(search.toLowerCase());
+		int from = 0;
+		for (int index = 0; index + search.length() <= line.length() && !search.isEmpty(); index++) {
+			if (line.regionMatches(ignoreCase, index, search, 0, search.length())) {
+				builder.append(line.substring(from, index));
+				builder.style(AttributedStyle.INVERSE).append(line.substring(index, index + search.length())).style(AttributedStyle.DEFAULT);
+				from = index + search.length();
+				index = from - 1;
+			}
+		}
+		builder.append(line.substring(from));
+		return builder.toAttributedString();
+	}
+	
+	// the last row is for the status
+	private int getRows() {
+		return Math.max(1, (terminal.getHeight() <= 0 ? 24 : terminal.getHeight()) - 1);
+	}
+	
+	private int getWidth() {
+		return terminal.getWidth() <= 0 ? 80 : terminal.getWidth();
+	}
+	
+	private KeyMap<Operation> getKeys() {
+		KeyMap<Operation> keys = new KeyMap<Operation>();
+		bind(keys, Operation.QUIT, "q", "Q", KeyMap.ctrl('c'));
+		bind(keys, Operation.DOWN, "j", "e", "\r", "\n", KeyMap.key(terminal, Capability.key_down));
+		bind(keys, Operation.UP, "k", "y", KeyMap.key(terminal, Capability.key_up));
+		bind(keys, Operation.PAGE_DOWN, " ", "f", KeyMap.ctrl('f'), KeyMap.key(terminal, Capability.key_npage));
+		bind(keys, Operation.PAGE_UP, "b", KeyMap.ctrl('b'), KeyMap.key(terminal, Capability.key_ppage));
+		bind(keys, Operation.TOP, "g", "<", KeyMap.key(terminal, Capability.key_home));
+		bind(keys, Operation.BOTTOM, "G", ">", KeyMap.key(terminal, Capability.key_end));
+		bind(keys, Operation.SEARCH_FORWARD, "/");
+		bind(keys, Operation.SEARCH_BACKWARD, "?");
+		bind(keys, Operation.NEXT, "n");
+		bind(keys, Operation.PREVIOUS, "N");
+		bind(keys, Operation.GOTO, ":");
+		return keys;
+	}
+	
+	// not every terminal has every key
+	private static void bind(KeyMap<Operation> keys, Operation operation, String...sequences) {
+		for (String sequence : sequences) {
+			if (sequence != null) {
+				keys.bind(operation, sequence);
+			}
+		}
+	}
+}
@@ -0,0 +1,560 @@
+/*
+* Copyright (C) 2021 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.triton.impl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import be.nabu.libs.triton.api.ConsoleSource;
+
+/**
+ * Spreads the chunks of a large transfer over additional connections to the same server, a single (tls) stream rarely fills a link with a lot of latency.
+ * The server registers the transfer under a random token and passes it to the client on the main channel, the client opens connections that each send "Join-Transfer: <token>".
+ * A connection is only accepted if it has the same identity as the console that started the transfer: the same client certificate or, without one, the same address.
+ * The client reports on the main channel how many connections were accepted ("joined;<amount>"), if none were, the transfer continues on the main channel.
+ * On every connection the sender writes chunks as: the offset (8 bytes), the length (4 bytes), the content and its sha-256 (32 bytes), an offset of -1 ends the stream.
+ * Each connection takes the next chunk whenever it is ready for more, the receiver writes every chunk at its own position in the file.
+ * The offset to resume from is the end of the chunks that were all received, chunks after a gap are sent again when resuming.
+ */
+public class ParallelTransfer {
+	
+	// the maximum amount of additional connections per transfer
+	private static int maxStreams = Integer.parseInt(System.getProperty("triton.transfer.maxStreams", "4"));
+	// smaller transfers are not worth the additional connections
+	private static long threshold = Long.parseLong(System.getProperty("triton.transfer.parallelThreshold", "" + (64 * 1024 * 1024)));
+	// how long a joined connection waits for the transfer to start
+	private static long joinTimeout = Long.parseLong(System.getProperty("triton.transfer.joinTimeout", "30000"));
+	// how long (in ms) none of the connections can make progress before we give up on the transfer, e.g. a connection that silently went away
+	private static long stallTimeout = Long.parseLong(System.getProperty("triton.transfer.stallTimeout", "60000"));
+	
+	private static Map<String, ParallelTransfer> offered = new ConcurrentHashMap<String, ParallelTransfer>();
+	private static SecureRandom random = new SecureRandom();
+	private static Logger logger = LoggerFactory.getLogger(ParallelTransfer.class);
+	
+	/**
+	 * What needs to happen on each connection
+	 */
+	public interface Stripe {
+		public void run(InputStream input, OutputStream output) throws IOException;
+	}
+	
+	/**
+	 * Remembers when data last moved on any of the connections of a transfer
+	 */
+	private static class Activity {
+		private volatile long last = System.currentTimeMillis();
+		
+		boolean isStalled() {
+			return System.currentTimeMillis() - last > stallTimeout;
+		}
+		
+		InputStream track(InputStream input) {
+			return new FilterInputStream(input) {
+				@Override
+				public int read() throws IOException {
+					int read = super.read();
+					last = System.currentTimeMillis();
+					return read;
+				}
+				@Override
+				public int read(byte[] bytes, int offset, int length) throws IOException {
+					int read = super.read(bytes, offset, length);
+					last = System.currentTimeMillis();
+					return read;
+				}
+			};
+		}
+		
+		OutputStream track(OutputStream output) {
+			return new FilterOutputStream(output) {
+				@Override
+				public void write(int b) throws IOException {
+					out.write(b);
+					last = System.currentTimeMillis();
+				}
+				@Override
+				public void write(byte[] bytes, int offset, int length) throws IOException {
+					out.write(bytes, offset, length);
+					last = System.currentTimeMillis();
+				}
+			};
+		}
+	}
+	
+	private String token, identity;
+	private int streams, accepted, finished;
+	private Stripe stripe;
+	private IOException failure;
+	private boolean withdrawn;
+	private List<ConsoleSource> attached = new ArrayList<ConsoleSource>();
+	private Activity activity = new Activity();
+	// we use explicit locks rather than monitors so a waiting virtual thread does not pin its carrier
+	private Lock lock = new ReentrantLock();
+	private Condition changed = lock.newCondition();
+	
+	public ParallelTransfer(String identity, int streams) {
+		this.identity = identity;
+		this.streams = Math.min(streams, maxStreams);
+		byte [] bytes = new byte[16];
+		random.nextBytes(bytes);
+		this.token = hex(bytes);
+	}
+	
+	public String getToken() {
+		return token;
+	}
+	
+	public int getStreams() {
+		return streams;
+	}
+	
+	public static int getMaxStreams() {
+		return maxStreams;
+	}
+	
+	public static long getThreshold() {
+		return threshold;
+	}
+	
+	/**
+	 * The identity of whoever is on the other end of the source, connections only join a transfer of the same identity
+	 */
+	public static String getIdentity(ConsoleSource source) {
+		try {
+			if (source instanceof ConsoleSocketSource) {
+				X509Certificate certificate = ((ConsoleSocketSource) source).getCertificate();
+				if (certificate != null) {
+					return "certificate:" + hex(MessageDigest.getInstance("SHA-256").digest(certificate.getEncoded()));
+				}
+			}
+		}
+		catch (CertificateEncodingException | NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+		InetAddress address = null;
+		if (source instanceof ConsoleSocketSource) {
+			address = ((ConsoleSocketSource) source).getSocket().getInetAddress();
+		}
+		else if (source instanceof ConsoleChannelSource) {
+			address = ((ConsoleChannelSource) source).getSocket().getInetAddress();
+		}
+		// the token itself is only known to the console that started the transfer
+		return "address:" + (address == null ? null : address.getHostAddress());
+	}
+	
+	/**
+	 * Server side: connections can join from now on
+	 */
+	public void offer() {
+		offered.put(token, this);
+	}
+	
+	/**
+	 * Server side: what the joined connections should do, they wait for this
+	 */
+	public void start(Stripe stripe) {
+		lock.lock();
+		try {
+			this.stripe = stripe;
+			activity.last = System.currentTimeMillis();
+			changed.signalAll();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Server side: no more connections can join, connections that are still running are closed
+	 */
+	public void withdraw() {
+		offered.remove(token);
+		List<ConsoleSource> running;
+		lock.lock();
+		try {
+			withdrawn = true;
+			changed.signalAll();
+			running = finished < attached.size() ? new ArrayList<ConsoleSource>(attached) : new ArrayList<ConsoleSource>();
+		}
+		finally {
+			lock.unlock();
+		}
+		close(running);
+	}
+	
+	/**
+	 * Server side: returns the transfer if a connection of this identity can join it
+	 */
+	public static ParallelTransfer accept(String token, String identity) {
+		ParallelTransfer transfer = offered.get(token);
+		if (transfer == null || !transfer.identity.equals(identity)) {
+			logger.warn("Refused to join transfer " + token + " for: " + identity);
+			return null;
+		}
+		transfer.lock.lock();
+		try {
+			if (transfer.withdrawn || transfer.accepted >= transfer.streams) {
+				return null;
+			}
+			transfer.accepted++;
+			return transfer;
+		}
+		finally {
+			transfer.lock.unlock();
+		}
+	}
+	
+	/**
+	 * Server side: runs the stripe on an accepted connection, this blocks until the connection is done
+	 */
+	public void attach(ConsoleSource source) {
+		Stripe stripe;
+		lock.lock();
+		try {
+			attached.add(source);
+			long deadline = System.currentTimeMillis() + joinTimeout;
+			while (this.stripe == null && !withdrawn && System.currentTimeMillis() < deadline) {
+				changed.await(deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+			}
+			stripe = withdrawn ? null : this.stripe;
+		}
+		catch (InterruptedException e) {
+			stripe = null;
+		}
+		finally {
+			lock.unlock();
+		}
+		try {
+			if (stripe == null) {
+				throw new IOException("The transfer did not start");
+			}
+			stripe.run(activity.track(source.getInputStream()), activity.track(source.getOutputStream()));
+		}
+		catch (IOException e) {
+			fail(e);
+		}
+		finally {
+			lock.lock();
+			try {
+				finished++;
+				changed.signalAll();
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+	}
+	
+	/**
+	 * Server side: waits until the given amount of connections is done, if none of them makes progress for too long the transfer fails
+	 */
+	public void await(int joined) throws IOException {
+		boolean stalled = false;
+		lock.lock();
+		try {
+			while (finished < joined && failure == null && !(stalled = activity.isStalled())) {
+				changed.await(1, TimeUnit.SECONDS);
+			}
+		}
+		catch (InterruptedException e) {
+			throw new IOException("Interrupted while waiting for the transfer", e);
+		}
+		finally {
+			lock.unlock();
+		}
+		if (stalled) {
+			fail(new IOException("The transfer stalled, no data was received for " + stallTimeout + "ms"));
+		}
+		lock.lock();
+		try {
+			if (failure != null) {
+				throw failure;
+			}
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+	
+	// one connection failing means the transfer has failed, the other connections are closed
+	private void fail(IOException e) {
+		List<ConsoleSource> running;
+		lock.lock();
+		try {
+			if (failure == null) {
+				failure = e;
+			}
+			changed.signalAll();
+			running = new ArrayList<ConsoleSource>(attached);
+		}
+		finally {
+			lock.unlock();
+		}
+		close(running);
+	}
+	
+	private static void close(List<? extends AutoCloseable> closeables) {
+		for (AutoCloseable closeable : closeables) {
+			try {
+				closeable.close();
+			}
+			catch (Exception e) {
+				// ignore
+			}
+		}
+	}
+	
+	/**
+	 * Client side: opens at most the given amount of connections and joins them to the transfer, only the accepted connections are returned
+	 */
+	public static List<Socket> connect(SideConnector connector, String token, int streams) {
+		List<Socket> sockets = new ArrayList<Socket>();
+		for (int i = 0; i < streams; i++) {
+			Socket socket = null;
+			try {
+				socket = connector.connect();
+				OutputStream output = socket.getOutputStream();
+				output.write(("Join-Transfer: " + token + "\n").getBytes("UTF-8"));
+				output.flush();
+				// the answer is read byte by byte, anything after it is part of the transfer
+				InputStream input = socket.getInputStream();
+				StringBuilder answer = new StringBuilder();
+				int read;
+				while ((read = input.read()) >= 0 && read != '\n') {
+					answer.append((char) read);
+				}
+				if (!answer.toString().trim().equals("ok")) {
+					socket.close();
+					break;
+				}
+				sockets.add(socket);
+			}
+			catch (IOException e) {
+				logger.warn("Could not open an additional connection", e);
+				if (socket != null) {
+					close(Arrays.asList(socket));
+				}
+				break;
+			}
+		}
+		return sockets;
+	}
+	
+	/**
+	 * Client side: runs the stripe on all the connections and closes them afterwards
+	 */
+	public static void run(final List<Socket> sockets, final Stripe stripe) throws IOException {
+		final List<IOException> failures = new ArrayList<IOException>();
+		final Activity activity = new Activity();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (final Socket socket : sockets) {
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						stripe.run(activity.track(socket.getInputStream()), activity.track(socket.getOutputStream()));
+					}
+					catch (IOException e) {
+						synchronized(failures) {
+							failures.add(e);
+						}
+						close(sockets);
+					}
+				}
+			});
+			thread.setName("triton-transfer-stripe");
+			thread.setDaemon(true);
+			thread.start();
+			threads.add(thread);
+		}
+		try {
+			for (Thread thread : threads) {
+				while (thread.isAlive()) {
+					thread.join(1000);
+					// closing the connections ends the stripes that are stuck
+					if (thread.isAlive() && activity.isStalled()) {
+						synchronized(failures) {
+							failures.add(new IOException("The transfer stalled, no data was received for " + stallTimeout + "ms"));
+						}
+						close(sockets);
+					}
+				}
+			}
+		}
+		catch (InterruptedException e) {
+			throw new IOException("Interrupted while waiting for the transfer", e);
+		}
+		finally {
+			close(sockets);
+		}
+		if (!failures.isEmpty()) {
+			throw failures.get(0);
+		}
+	}
+	
+	/**
+	 * Sends chunks from the file until there are none left, the counter is shared by all the connections
+	 */
+	public static void send(FileChannel file, long offset, long size, AtomicLong next, OutputStream stream) throws IOException {
+		DataOutputStream output = new DataOutputStream(new BufferedOutputStream(stream, 64 * 1024));
+		MessageDigest digest = digest();
+		int chunkSize = ChunkedTransfer.getChunkSize();
+		byte [] buffer = new byte[chunkSize];
+		long position;
+		while ((position = offset + next.getAndIncrement() * chunkSize) < size) {
+			int length = (int) Math.min(chunkSize, size - position);
+			ByteBuffer wrapped = ByteBuffer.wrap(buffer, 0, length);
+			while (wrapped.hasRemaining()) {
+				if (file.read(wrapped, position + wrapped.position()) < 0) {
+					throw new IOException("The file was truncated during the transfer");
+				}
+			}
+			digest.update(buffer, 0, length);
+			output.writeLong(position);
+			output.writeInt(length);
+			output.write(buffer, 0, length);
+			output.write(digest.digest());
+		}
+		output.writeLong(-1);
+		output.flush();
+	}
+	
+	/**
+	 * Receives chunks until the sender has none left, each chunk is verified and written at its position
+	 */
+	public static void receive(InputStream stream, FileChannel file, Progress progress) throws IOException {
+		DataInputStream input = new DataInputStream(new BufferedInputStream(stream, 64 * 1024));
+		MessageDigest digest = digest();
+		byte [] buffer = new byte[ChunkedTransfer.getChunkSize()];
+		byte [] hash = new byte[digest.getDigestLength()];
+		long position;
+		while ((position = input.readLong()) >= 0) {
+			int length = input.readInt();
+			if (length <= 0 || length > buffer.length || position + length > progress.size) {
+				throw new IOException("Invalid chunk at offset " + position + " with length " + length);
+			}
+			input.readFully(buffer, 0, length);
+			input.readFully(hash);
+			digest.update(buffer, 0, length);
+			if (!Arrays.equals(hash, digest.digest())) {
+				throw new IOException("The chunk at offset " + position + " is corrupt");
+			}
+			ByteBuffer wrapped = ByteBuffer.wrap(buffer, 0, length);
+			while (wrapped.hasRemaining()) {
+				file.write(wrapped, position + wrapped.position());
+			}
+			progress.completed(position, length);
+		}
+	}
+	
+	/**
+	 * Keeps track of the received chunks, the verified offset only moves forward once everything before it was received
+	 */
+	public static class Progress {
+		private File target;
+		private String identity;
+		private long verified, size;
+		// chunks received beyond the verified offset, by offset
+		private TreeMap<Long, Long> received = new TreeMap<Long, Long>();
+		private Lock lock = new ReentrantLock();
+		
+		public Progress(File target, String identity, long verified, long size) {
+			this.target = target;
+			this.identity = identity;
+			this.verified = verified;
+			this.size = size;
+		}
+		
+		void completed(long position, int length) throws IOException {
+			lock.lock();
+			try {
+				received.put(position, position + length);
+				long before = verified;
+				Map.Entry<Long, Long> first;
+				while ((first = received.firstEntry()) != null && first.getKey() <= verified) {
+					verified = Math.max(verified, first.getValue());
+					received.remove(first.getKey());
+				}
+				if (verified > before) {
+					ChunkedTransfer.saveState(target, identity, verified);
+				}
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+		
+		public long getVerified() {
+			lock.lock();
+			try {
+				return verified;
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+	}
+	
+	private static MessageDigest digest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	private static String hex(byte [] bytes) {
+		StringBuilder builder = new StringBuilder();
+		for (byte single : bytes) {
+			builder.append(String.format("%02x", single));
+		}
+		return builder.toString();
+	}
+}
@@ -0,0 +1,192 @@
+/*
+* Copyright (C) 2021 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package be.nabu.libs.triton.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.Key;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.security.cert.X509Certificate;
+import java.security.spec.ECGenParameterSpec;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import javax.security.auth.x500.X500Principal;
+
+import org.bouncycastle.cert.X509v3CertificateBuilder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.ContentSigner;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+
+import be.nabu.libs.triton.Triton;
+import be.nabu.utils.security.BCSecurityUtils;
+import be.nabu.utils.security.KeyPairType;
+import be.nabu.utils.security.SecurityUtils;
+import be.nabu.utils.security.SignatureType;
+
+/**
+ * Generates the keys for the profiles and signs and verifies with them.
+ * The type of key can be chosen per profile with the setting "keyType.<profile>" or for all profiles with "keyType".
+ * RSA remains the default so packages and certificates stay compatible with older installations, EC and Ed25519 are much faster to generate and to use.
+ */
+public class ProfileKeys {
+	
+	public enum ProfileKeyType {
+		RSA, EC, ED25519
+	}
+	
+	// key pairs that are being (or have been) generated in the background
+	private static Map<ProfileKeyType, Future<KeyPair>> pregenerated = new ConcurrentHashMap<ProfileKeyType, Future<KeyPair>>();
+	private static ExecutorService generator;
+	
+	public static ProfileKeyType getKeyType(String profile) {
+		String type = Triton.getSetting("keyType." + profile, Triton.getSetting("keyType", ProfileKeyType.RSA.name()));
+		return ProfileKeyType.valueOf(type.trim().toUpperCase());
+	}
+	
+	/**
+	 * Starts generating a key pair in the background, the next {@link #generate(ProfileKeyType)} for that type will use it
+	 */
+	public static synchronized void pregenerate(final ProfileKeyType type) {
+		if (!pregenerated.containsKey(type)) {
+			if (generator == null) {
+				generator = Executors.newSingleThreadExecutor(new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r);
+						thread.setName("triton-key-generator");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+			}
+			pregenerated.put(type, generator.submit(new Callable<KeyPair>() {
+				@Override
+				public KeyPair call() throws Exception {
+					return generateNow(type);
+				}
+			}));
+		}
+	}
+	
+	public static KeyPair generate(ProfileKeyType type) throws NoSuchAlgorithmException {
+		Future<KeyPair> future = pregenerated.remove(type);
+		// if it is still being generated, waiting for it is always faster than starting over
+		if (future != null) {
+			try {
+				return future.get();
+			}
+			catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+			catch (ExecutionException e) {
+				// we try again in the foreground
+			}
+		}
+		return generateNow(type);
+	}
+	
+	private static KeyPair generateNow(ProfileKeyType type) throws NoSuchAlgorithmException {
+		switch (type) {
+			case EC:
+				try {
+					KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+					generator.initialize(new ECGenParameterSpec("secp256r1"), new SecureRandom());
+					return generator.generateKeyPair();
+				}
+				catch (InvalidAlgorithmParameterException e) {
+					throw new RuntimeException(e);
+				}
+			case ED25519:
+				// only available from java 15 onwards
+				return KeyPairGenerator.getInstance("Ed25519").generateKeyPair();
+			default:
+				return SecurityUtils.generateKeyPair(KeyPairType.RSA, 4096);
+		}
+	}
+	
+	public static X509Certificate generateSelfSignedCertificate(KeyPair pair, X500Principal principal, Date until) throws Exception {
+		// we keep using the existing generation for rsa so nothing changes for those certificates
+		if ("RSA".equals(pair.getPrivate().getAlgorithm())) {
+			return BCSecurityUtils.generateSelfSignedCertificate(pair, until, principal, principal);
+		}
+		// allow for some clock skew between machines
+		Date from = new Date(new Date().getTime() - (1000l * 60 * 60 * 24));
+		X509v3CertificateBuilder builder = new JcaX509v3CertificateBuilder(principal, new BigInteger(64, new SecureRandom()), from, until, principal, pair.getPublic());
+		ContentSigner signer = new JcaContentSignerBuilder(getSignatureAlgorithm(pair.getPrivate())).build(pair.getPrivate());
+		return new JcaX509CertificateConverter().getCertificate(builder.build(signer));
+	}
+	
+	public static String getSignatureAlgorithm(Key key) {
+		String algorithm = key.getAlgorithm();
+		if ("EC".equals(algorithm)) {
+			return "SHA256withECDSA";
+		}
+		else if ("Ed25519".equals(algorithm) || "EdDSA".equals(algorithm)) {
+			return "Ed25519";
+		}
+		return "SHA512withRSA";
+	}
+	
+	public static byte [] sign(InputStream input, PrivateKey key) throws InvalidKeyException, NoSuchAlgorithmException, SignatureException, IOException {
+		if ("RSA".equals(key.getAlgorithm())) {
+			return SecurityUtils.sign(input, key, SignatureType.SHA512WITHRSA).sign();
+		}
+		Signature signature = Signature.getInstance(getSignatureAlgorithm(key));
+		signature.initSign(key);
+		update(signature, input);
+		return signature.sign();
+	}
+	
+	public static boolean verify(InputStream input, byte [] signed, PublicKey key) throws InvalidKeyException, NoSuchAlgorithmException, SignatureException, IOException {
+		if ("RSA".equals(key.getAlgorithm())) {
+			return SecurityUtils.verify(input, signed, key, SignatureType.SHA512WITHRSA);
+		}
+		Signature signature = Signature.getInstance(getSignatureAlgorithm(key));
+		signature.initVerify(key);
+		update(signature, input);
+		return signature.verify(signed);
+	}
+	
+	private static void update(Signature signature, InputStream input) throws SignatureException, IOException {
+		byte [] buffer = new byte[8192];
+		int read;
+		while ((read = input.read(buffer)) > 0) {
+			signature.update(buffer, 0, read);
+		}
+	}
+}
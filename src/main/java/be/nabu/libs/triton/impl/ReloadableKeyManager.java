@@ -0,0 +1,96 @@
+/*
+* Copyright (C) 2021 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package be.nabu.libs.triton.impl;
+
+import java.net.Socket;
+import java.security.Principal;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.X509ExtendedKeyManager;
+import javax.net.ssl.X509KeyManager;
+
+/**
+ * A key manager that delegates to a key manager that can be swapped at runtime.
+ * An ssl context initialized with this will pick up the new key material on the next handshake.
+ */
+public class ReloadableKeyManager extends X509ExtendedKeyManager {
+
+	private AtomicReference<X509KeyManager> delegate;
+	
+	public ReloadableKeyManager(X509KeyManager delegate) {
+		this.delegate = new AtomicReference<X509KeyManager>(delegate);
+	}
+	
+	public void setDelegate(X509KeyManager delegate) {
+		this.delegate.set(delegate);
+	}
+	
+	public X509KeyManager getDelegate() {
+		return delegate.get();
+	}
+
+	@Override
+	public String[] getClientAliases(String keyType, Principal[] issuers) {
+		return delegate.get().getClientAliases(keyType, issuers);
+	}
+
+	@Override
+	public String chooseClientAlias(String[] keyType, Principal[] issuers, Socket socket) {
+		return delegate.get().chooseClientAlias(keyType, issuers, socket);
+	}
+
+	@Override
+	public String[] getServerAliases(String keyType, Principal[] issuers) {
+		return delegate.get().getServerAliases(keyType, issuers);
+	}
+
+	@Override
+	public String chooseServerAlias(String keyType, Principal[] issuers, Socket socket) {
+		return delegate.get().chooseServerAlias(keyType, issuers, socket);
+	}
+
+	@Override
+	public String chooseEngineClientAlias(String[] keyType, Principal[] issuers, SSLEngine engine) {
+		X509KeyManager current = delegate.get();
+		return current instanceof X509ExtendedKeyManager
+			? ((X509ExtendedKeyManager) current).chooseEngineClientAlias(keyType, issuers, engine)
+			: current.chooseClientAlias(keyType, issuers, null);
+	}
+
+	@Override
+	public String chooseEngineServerAlias(String keyType, Principal[] issuers, SSLEngine engine) {
+		X509KeyManager current = delegate.get();
+		return current instanceof X509ExtendedKeyManager
+			? ((X509ExtendedKeyManager) current).chooseEngineServerAlias(keyType, issuers, engine)
+			: current.chooseServerAlias(keyType, issuers, null);
+	}
+
+	@Override
+	public X509Certificate[] getCertificateChain(String alias) {
+		return delegate.get().getCertificateChain(alias);
+	}
+
+	@Override
+	public PrivateKey getPrivateKey(String alias) {
+		return delegate.get().getPrivateKey(alias);
+	}
+}
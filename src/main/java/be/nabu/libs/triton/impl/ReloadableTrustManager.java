@@ -0,0 +1,108 @@
+/*
+* Copyright (C) 2021 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package be.nabu.libs.triton.impl;
+
+import java.net.Socket;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.X509ExtendedTrustManager;
+import javax.net.ssl.X509TrustManager;
+
+/**
+ * A trust manager that delegates to a trust manager that can be swapped at runtime.
+ * An ssl context initialized with this will use the new trust material on the next handshake.
+ */
+public class ReloadableTrustManager extends X509ExtendedTrustManager {
+
+	private AtomicReference<X509TrustManager> delegate;
+	
+	public ReloadableTrustManager(X509TrustManager delegate) {
+		this.delegate = new AtomicReference<X509TrustManager>(delegate);
+	}
+	
+	public void setDelegate(X509TrustManager delegate) {
+		this.delegate.set(delegate);
+	}
+	
+	public X509TrustManager getDelegate() {
+		return delegate.get();
+	}
+
+	@Override
+	public void checkClientTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+		delegate.get().checkClientTrusted(chain, authType);
+	}
+
+	@Override
+	public void checkServerTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+		delegate.get().checkServerTrusted(chain, authType);
+	}
+
+	@Override
+	public X509Certificate[] getAcceptedIssuers() {
+		return delegate.get().getAcceptedIssuers();
+	}
+
+	@Override
+	public void checkClientTrusted(X509Certificate[] chain, String authType, Socket socket) throws CertificateException {
+		X509TrustManager current = delegate.get();
+		if (current instanceof X509ExtendedTrustManager) {
+			((X509ExtendedTrustManager) current).checkClientTrusted(chain, authType, socket);
+		}
+		else {
+			current.checkClientTrusted(chain, authType);
+		}
+	}
+
+	@Override
+	public void checkServerTrusted(X509Certificate[] chain, String authType, Socket socket) throws CertificateException {
+		X509TrustManager current = delegate.get();
+		if (current instanceof X509ExtendedTrustManager) {
+			((X509ExtendedTrustManager) current).checkServerTrusted(chain, authType, socket);
+		}
+		else {
+			current.checkServerTrusted(chain, authType);
+		}
+	}
+
+	@Override
+	public void checkClientTrusted(X509Certificate[] chain, String authType, SSLEngine engine) throws CertificateException {
+		X509TrustManager current = delegate.get();
+		if (current instanceof X509ExtendedTrustManager) {
+			((X509ExtendedTrustManager) current).checkClientTrusted(chain, authType, engine);
+		}
+		else {
+			current.checkClientTrusted(chain, authType);
+		}
+	}
+
+	@Override
+	public void checkServerTrusted(X509Certificate[] chain, String authType, SSLEngine engine) throws CertificateException {
+		X509TrustManager current = delegate.get();
+		if (current instanceof X509ExtendedTrustManager) {
+			((X509ExtendedTrustManager) current).checkServerTrusted(chain, authType, engine);
+		}
+		else {
+			current.checkServerTrusted(chain, authType);
+		}
+	}
+}
@@ -0,0 +1,60 @@
+/*
+* Copyright (C) 2021 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.triton.impl;
+
+public class SyncStatistics {
+	private int files, transferred, deleted;
+	private long bytes, duration;
+	
+	public int getFiles() {
+		return files;
+	}
+	public void setFiles(int files) {
+		this.files = files;
+	}
+	public int getTransferred() {
+		return transferred;
+	}
+	public void setTransferred(int transferred) {
+		this.transferred = transferred;
+	}
+	public int getDeleted() {
+		return deleted;
+	}
+	public void setDeleted(int deleted) {
+		this.deleted = deleted;
+	}
+	public long getBytes() {
+		return bytes;
+	}
+	public void setBytes(long bytes) {
+		this.bytes = bytes;
+	}
+	// in nanoseconds
+	public long getDuration() {
+		return duration;
+	}
+	public void setDuration(long duration) {
+		this.duration = duration;
+	}
+	
+	@Override
+	public String toString() {
+		return files + " files, " + transferred + " transferred (" + TransferStatistics.format(bytes) + "), " + deleted + " deleted in " + String.format("%.2f", duration / 1000000000.0) + "s";
+	}
+}
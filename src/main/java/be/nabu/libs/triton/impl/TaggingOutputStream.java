@@ -0,0 +1,118 @@
+/*
+* Copyright (C) 2021 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.triton.impl;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Prefixes every line written to it with a tag, this allows a client to match output to the command that produced it.
+ * Without a tag everything is passed along as is.
+ */
+public class TaggingOutputStream extends OutputStream {
+
+	private OutputStream parent;
+	private Charset charset;
+	private byte [] tag;
+	// whether the next byte starts a new line
+	private boolean lineStart = true;
+	private Lock lock = new ReentrantLock();
+	
+	public TaggingOutputStream(OutputStream parent, Charset charset) {
+		this.parent = parent;
+		this.charset = charset;
+	}
+	
+	/**
+	 * Set the tag for all following lines, null to stop tagging
+	 */
+	public void setTag(String tag) {
+		lock.lock();
+		try {
+			this.tag = tag == null ? null : tag.getBytes(charset);
+			lineStart = true;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Makes sure whatever comes next starts on a new line
+	 */
+	public void endLine() throws IOException {
+		lock.lock();
+		try {
+			if (tag != null && !lineStart) {
+				parent.write('\n');
+				lineStart = true;
+			}
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+	
+	@Override
+	public void write(byte[] bytes, int offset, int length) throws IOException {
+		lock.lock();
+		try {
+			if (tag == null) {
+				parent.write(bytes, offset, length);
+				return;
+			}
+			int end = offset + length;
+			while (offset < end) {
+				if (lineStart) {
+					parent.write(tag);
+					lineStart = false;
+				}
+				int linefeed = offset;
+				while (linefeed < end && bytes[linefeed] != '\n') {
+					linefeed++;
+				}
+				// include the linefeed itself
+				int amount = Math.min(linefeed + 1, end) - offset;
+				parent.write(bytes, offset, amount);
+				offset += amount;
+				lineStart = linefeed < end;
+			}
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		parent.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		parent.close();
+	}
+}
@@ -0,0 +1,94 @@
+/*
+* Copyright (C) 2021 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.triton.impl;
+
+public class TransferStatistics {
+	private String fileName;
+	private long bytes, duration, offset;
+	private boolean zeroCopy;
+	
+	public TransferStatistics() {
+		// auto
+	}
+	
+	public TransferStatistics(String fileName, long bytes, long duration, boolean zeroCopy) {
+		this.fileName = fileName;
+		this.bytes = bytes;
+		this.duration = duration;
+		this.zeroCopy = zeroCopy;
+	}
+	
+	public TransferStatistics(String fileName, long bytes, long duration, boolean zeroCopy, long offset) {
+		this(fileName, bytes, duration, zeroCopy);
+		this.offset = offset;
+	}
+	
+	public String getFileName() {
+		return fileName;
+	}
+	public void setFileName(String fileName) {
+		this.fileName = fileName;
+	}
+	public long getBytes() {
+		return bytes;
+	}
+	public void setBytes(long bytes) {
+		this.bytes = bytes;
+	}
+	// in nanoseconds
+	public long getDuration() {
+		return duration;
+	}
+	public void setDuration(long duration) {
+		this.duration = duration;
+	}
+	public boolean isZeroCopy() {
+		return zeroCopy;
+	}
+	public void setZeroCopy(boolean zeroCopy) {
+		this.zeroCopy = zeroCopy;
+	}
+	// where a resumed transfer started
+	public long getOffset() {
+		return offset;
+	}
+	public void setOffset(long offset) {
+		this.offset = offset;
+	}
+	public double getBytesPerSecond() {
+		return duration == 0 ? 0 : (bytes * 1000000000.0) / duration;
+	}
+	
+	@Override
+	public String toString() {
+		return fileName + ": " + format(bytes) + " in " + String.format("%.2f", duration / 1000000000.0) + "s (" + format((long) getBytesPerSecond()) + "/s" + (zeroCopy ? ", zero copy" : "") + (offset > 0 ? ", resumed at " + format(offset) : "") + ")";
+	}
+	
+	public static String format(long bytes) {
+		if (bytes > 1024l * 1024 * 1024) {
+			return String.format("%.1fgb", (1.0 * bytes) / (1024l * 1024 * 1024));
+		}
+		else if (bytes > 1024l * 1024) {
+			return String.format("%.1fmb", (1.0 * bytes) / (1024l * 1024));
+		}
+		else if (bytes > 1024) {
+			return String.format("%.1fkb", (1.0 * bytes) / 1024);
+		}
+		return bytes + "b";
+	}
+}
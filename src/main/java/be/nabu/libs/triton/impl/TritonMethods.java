@@ -37,7 +37,6 @@ import java.security.InvalidKeyException;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
-import java.security.Signature;
 import java.security.SignatureException;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.Certificate;
@@ -52,6 +51,9 @@ import java.util.Properties;
 import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import be.nabu.glue.annotations.GlueParam;
 import be.nabu.glue.api.InputProvider;
 import be.nabu.glue.core.impl.methods.FileMethods;
@@ -67,7 +69,7 @@ import be.nabu.libs.resources.memory.MemoryItem;
 import be.nabu.libs.triton.Triton;
 import be.nabu.libs.triton.TritonLocalConsole;
 import be.nabu.libs.triton.TritonLocalConsole.TritonConsoleInstance;
-import be.nabu.libs.triton.TritonShell;
+import be.nabu.libs.triton.impl.ConsoleFrame.FrameType;
 import be.nabu.utils.io.IOUtils;
 import be.nabu.utils.io.api.ByteBuffer;
 import be.nabu.utils.io.api.DelimitedCharContainer;
@@ -76,7 +78,6 @@ import be.nabu.utils.io.api.WritableContainer;
 import be.nabu.utils.io.blocking.LoggingOutputStream;
 import be.nabu.utils.security.KeyStoreHandler;
 import be.nabu.utils.security.SecurityUtils;
-import be.nabu.utils.security.SignatureType;
 
 // a "package" can be anything?
 // for example it could be scripts (most likely) but also like...nabu repository entries?
@@ -110,21 +111,45 @@ import be.nabu.utils.security.SignatureType;
 public class TritonMethods {
 
 	private Triton triton;
+	private Logger logger = LoggerFactory.getLogger(getClass());
 
 	public TritonMethods(Triton triton) {
 		this.triton = triton;
 	}
 	
-	public List<TritonConsoleInstance> connected() {
-		return triton.getConsole() == null ? null : triton.getConsole().getInstances();
+	// list the connected consoles (optionally only those of a user or remote address), or the admission statistics of the console server
+	public Object connected(@GlueParam(name = "statistics") Boolean statistics, @GlueParam(name = "user") String user, @GlueParam(name = "address") String address) {
+		if (triton.getConsole() == null) {
+			return null;
+		}
+		else if (statistics != null && statistics) {
+			return triton.getConsole().getStatistics();
+		}
+		else if (user != null) {
+			List<TritonConsoleInstance> instances = new ArrayList<TritonConsoleInstance>(triton.getConsole().getInstancesByAlias(user));
+			if (address != null) {
+				instances.retainAll(triton.getConsole().getInstancesByAddress(address));
+			}
+			return instances;
+		}
+		else if (address != null) {
+			return new ArrayList<TritonConsoleInstance>(triton.getConsole().getInstancesByAddress(address));
+		}
+		return triton.getConsole().getInstances();
 	}
 	
 	public void disconnect(long id) throws Exception {
-		if (triton.getConsole() != null) {
-			for (TritonConsoleInstance instance : triton.getConsole().getInstances()) {
-				if (instance.getId() == id) {
-					instance.close();
-				}
+		TritonConsoleInstance instance = triton.getConsole() == null ? null : triton.getConsole().getInstance(id);
+		if (instance != null) {
+			instance.close();
+		}
+	}
+	
+	// disconnect all the consoles of a user
+	public void disconnectUser(@GlueParam(name = "user") String user) throws Exception {
+		if (triton.getConsole() != null && user != null) {
+			for (TritonConsoleInstance instance : triton.getConsole().getInstancesByAlias(user)) {
+				instance.close();
 			}
 		}
 	}
@@ -210,6 +235,8 @@ public class TritonMethods {
 			if (!packagingKeystore.getPrivateKeyAliases().contains(profile)) {
 				InputProvider inputProvider = TritonLocalConsole.getConsole().getInputProvider();
 				if (inputProvider != null) {
+					// the key can be generated while you answer
+					ProfileKeys.pregenerate(ProfileKeys.getKeyType(profile));
 					String name = inputProvider.input("What is the name of your new author profile? [" + profile + "]", false, profile);
 					// force generation of key
 					TritonLocalConsole.getContext(profile, keyPassword, false, name);
@@ -262,8 +289,7 @@ public class TritonMethods {
 			if (child instanceof ReadableResource) {
 				ReadableContainer<ByteBuffer> readable = ((ReadableResource) child).getReadable();
 				try {
-					Signature sign = SecurityUtils.sign(IOUtils.toInputStream(readable), key, SignatureType.SHA512WITHRSA);
-					byte[] signature = sign.sign();
+					byte[] signature = ProfileKeys.sign(IOUtils.toInputStream(readable), key);
 					String encoded = Triton.encode(signature);
 					manifest.setProperty("signature-" + childPath, encoded);
 				}
@@ -320,7 +346,7 @@ public class TritonMethods {
 	}
 	
 	public void addUser(String cert) throws KeyStoreException, CertificateException, IOException {
-		KeyStoreHandler keystore = TritonLocalConsole.getAuthenticationKeystore();
+		KeyStoreHandler keystore = TritonLocalConsole.editAuthenticationKeystore();
 		X509Certificate parseCertificate;
 		List<String> pendingAuthentication = pendingAuthentication();
 		File file = null;
@@ -342,8 +368,8 @@ public class TritonMethods {
 		if (!keystore.getCertificates().values().contains(parseCertificate)) {
 			keystore.set("user-" + TritonLocalConsole.getAlias(parseCertificate), parseCertificate);
 			TritonLocalConsole.saveAuthentication(keystore);
-			// restart thread so the new cert is valid
-			triton.getConsole().restartSecureThread();
+			// reload the trust material so the new cert is valid
+			triton.getConsole().reloadSecureContext();
 		}
 		else {
 			System.out.println("Already trusted");
@@ -362,16 +388,16 @@ public class TritonMethods {
 			}
 		}
 		else {
-			KeyStoreHandler keystore = TritonLocalConsole.getAuthenticationKeystore();
+			KeyStoreHandler keystore = TritonLocalConsole.editAuthenticationKeystore();
 			keystore.delete("user-" + alias);
 			TritonLocalConsole.saveAuthentication(keystore);
-			// restart thread so the new cert is valid
-			triton.getConsole().restartSecureThread();
+			// reload the trust material so the new cert is valid
+			triton.getConsole().reloadSecureContext();
 		}
 	}
 
 	public void addAuthor(String cert) throws KeyStoreException, CertificateException, UnsupportedEncodingException {
-		KeyStoreHandler keystore = TritonLocalConsole.getPackagingKeystore();
+		KeyStoreHandler keystore = TritonLocalConsole.editPackagingKeystore();
 		X509Certificate parseCertificate = SecurityUtils.parseCertificate(new ByteArrayInputStream(cert.getBytes("ASCII")));
 		if (!keystore.getCertificates().values().contains(parseCertificate)) {
 			keystore.set("user-" + TritonLocalConsole.getAlias(parseCertificate), parseCertificate);
@@ -398,7 +424,7 @@ public class TritonMethods {
 	}
 	
 	public void removeAuthor(String alias, Boolean force) throws KeyStoreException, IOException {
-		KeyStoreHandler keystore = TritonLocalConsole.getPackagingKeystore();
+		KeyStoreHandler keystore = TritonLocalConsole.editPackagingKeystore();
 		X509Certificate certificate = keystore.getCertificate("user-" + alias);
 		// you can only remove an author if you have uninstalled all his packages
 		if (certificate != null) {
@@ -475,10 +501,10 @@ public class TritonMethods {
 					if (console != null && console.getInputProvider() != null) {
 						String input = console.getInputProvider().input("Do you want to regenerate the server certificate to match the new name? [Y/n]: ", false, "y");
 						if (input == null || input.trim().equalsIgnoreCase("y")) {
-							KeyStoreHandler keystore = TritonLocalConsole.getAuthenticationKeystore();
+							KeyStoreHandler keystore = TritonLocalConsole.editAuthenticationKeystore();
 							keystore.delete(TritonLocalConsole.getProfile());
 							TritonLocalConsole.saveAuthentication(keystore);
-							triton.getConsole().restartSecureThread();
+							triton.getConsole().reloadSecureContext();
 						}
 					}
 				}
@@ -501,6 +527,70 @@ public class TritonMethods {
 		return result;
 	}
 	
+	// send a file from the server to the client, an interrupted download continues where it left off when you try again
+	public TransferStatistics download(@GlueParam(name = "fileName") String fileName, @GlueParam(name = "target") String target) throws IOException {
+		TritonConsoleInstance console = getTransferConsole();
+		File file = new File(SystemMethodProvider.getDirectory(), fileName);
+		if (!file.isFile()) {
+			throw new FileNotFoundException("Not a file: " + fileName);
+		}
+		console.flush();
+		TransferStatistics statistics = ChunkedTransfer.download(console.getFramer(), console.getChannel(), file, target == null ? file.getName() : target, console.newParallelTransfer());
+		logger.info("Downloaded by " + console + ": " + statistics);
+		return statistics;
+	}
+	
+	// send a file from the client to the server, by default it ends up in the current directory with the same name
+	public TransferStatistics upload(@GlueParam(name = "fileName") String fileName, @GlueParam(name = "target") String target) throws IOException {
+		TritonConsoleInstance console = getTransferConsole();
+		File file = new File(SystemMethodProvider.getDirectory(), target == null ? new File(fileName).getName() : target);
+		if (file.isDirectory()) {
+			file = new File(file, new File(fileName).getName());
+		}
+		console.flush();
+		TransferStatistics statistics = ChunkedTransfer.upload(console.getFramer(), console.getChannel(), fileName, file, console.newParallelTransfer());
+		logger.info("Uploaded by " + console + ": " + statistics);
+		return statistics;
+	}
+	
+	// make a directory on the server the same as a directory on the client, only files that are missing or changed are sent
+	public SyncStatistics sync(@GlueParam(name = "local") String local, @GlueParam(name = "remote") String remote, @GlueParam(name = "delete") Boolean delete) throws IOException {
+		TritonConsoleInstance console = getTransferConsole();
+		File directory = new File(SystemMethodProvider.getDirectory(), remote == null ? new File(local).getName() : remote);
+		console.flush();
+		SyncStatistics statistics = DirectorySync.sync(console.getFramer(), console.getChannel(), local, directory, delete != null && delete, Triton.getFolder("sync"));
+		logger.info("Synchronized " + directory + " by " + console + ": " + statistics);
+		return statistics;
+	}
+	
+	private TritonConsoleInstance getTransferConsole() {
+		TritonConsoleInstance console = TritonLocalConsole.getConsole();
+		if (console == null) {
+			throw new IllegalStateException("No console attached");
+		}
+		else if (!console.isSupportsTransfers()) {
+			throw new IllegalStateException("The attached console does not support file transfers");
+		}
+		return console;
+	}
+	
+	// view a file page by page, only the lines on the screen are sent so this also works for very large files
+	public void less(@GlueParam(name = "fileName") String fileName) throws IOException {
+		TritonConsoleInstance console = TritonLocalConsole.getConsole();
+		if (console == null) {
+			throw new IllegalStateException("No console attached");
+		}
+		else if (!console.isSupportsPaging()) {
+			throw new IllegalStateException("The attached console does not support paged viewing");
+		}
+		File file = new File(SystemMethodProvider.getDirectory(), fileName);
+		if (!file.isFile()) {
+			throw new FileNotFoundException("Not a file: " + fileName);
+		}
+		console.flush();
+		PagedViewer.serve(console.getFramer(), console.getChannel(), file);
+	}
+	
 	// edit a file
 	public void nano(String fileName) throws IOException {
 		TritonConsoleInstance console = TritonLocalConsole.getConsole();
@@ -518,9 +608,65 @@ public class TritonMethods {
 		if (!file.exists()) {
 			file.createNewFile();
 		}
+		// whatever was printed before should arrive before the file
+		console.flush();
+		// on the framed protocol the file is sent in data frames, no need for the "ok" handshake
+		ConsoleFramer framer = console.getFramer();
+		if (framer != null) {
+			int channel = console.getChannel();
+			// if the client sends back a delta, it is based on the file as it is now
+			long originalSize = file.length(), originalModified = file.lastModified();
+			framer.write(FrameType.FILE_EDIT, channel, originalSize + ";" + file.getName());
+			try (OutputStream output = framer.newDataStream(channel, ConsoleFramer.isCompressible(file.getName()))) {
+				if (originalSize > 0) {
+					logger.info("Sent for editing " + FileTransfer.send(file, originalSize, output));
+				}
+			}
+			ConsoleFrame reply = framer.read(channel, FrameType.FILE_EDIT);
+			if (reply == null) {
+				throw new IllegalStateException("Did not receive correct reply from client");
+			}
+			String answer = new String(reply.getPayload(), framer.getCharset());
+			InputStream data = framer.newDataInputStream(channel);
+			try {
+				// nothing changed, we don't touch the file so it keeps its modification time
+				if (answer.equals("unchanged")) {
+					logger.debug("File was not changed during editing: " + file);
+				}
+				// delta;<block size>;<size>;<sha-256>;<filename>
+				else if (answer.startsWith("delta;")) {
+					String[] parts = answer.split(";", 5);
+					if (file.length() != originalSize || file.lastModified() != originalModified) {
+						throw new IllegalStateException("The file was changed on the server while it was being edited, please edit it again");
+					}
+					long started = System.nanoTime();
+					FileDelta.apply(file, Integer.parseInt(parts[1]), data, Long.parseLong(parts[2]), parts[3]);
+					logger.info("Applied delta after editing " + file.getName() + " in " + ((System.nanoTime() - started) / 1000000) + "ms");
+				}
+				else {
+					long size = Long.parseLong(answer.split(";", 2)[0]);
+					if (size > 0) {
+						logger.info("Received after editing " + FileTransfer.receive(data, size, file));
+					}
+					// if it is empty, we delete it
+					else {
+						file.delete();
+					}
+				}
+			}
+			finally {
+				// read up to the end of the data
+				byte [] buffer = new byte[1024];
+				while (data.read(buffer) >= 0) {
+					// skip
+				}
+			}
+			return;
+		}
 		// we start writing shizzle
 		Writer writer = new BufferedWriter(console.getSource().getWriter());
-		String line = file.length() + ";" + file.getName() + console.getFileEditEnd() + "\n";
+		long sentSize = file.length();
+		String line = sentSize + ";" + file.getName() + console.getFileEditEnd() + "\n";
 		writer.write(line);
 		// then we stream the file!
 		writer.flush();
@@ -528,8 +674,9 @@ public class TritonMethods {
 		String readLine = reader.readLine();
 		// retain ability to say no
 		if (readLine.equals("ok")) {
-			if (file.length() > 0) {
-				TritonShell.copyOutFile(file, console.getSource().getOutputStream());
+			if (sentSize > 0) {
+				// on a plain channel this is zero copy
+				logger.info("Sent for editing " + FileTransfer.send(file, sentSize, console.getSource().getOutputStream()));
 			}
 			readLine = reader.readLine();
 			if (!readLine.endsWith(console.getFileEditEnd())) {
@@ -543,7 +690,7 @@ public class TritonMethods {
 			writer.flush();
 			if (size > 0) {
 				// either way, the data is coming, so let's read that
-				TritonShell.copyInFile(file.getParentFile(), size, fileNameToCheck, console.getSource().getInputStream());
+				logger.info("Received after editing " + FileTransfer.receive(console.getSource().getInputStream(), size, new File(file.getParentFile(), fileNameToCheck)));
 			}
 			// if it is empty, we delete it
 			else {
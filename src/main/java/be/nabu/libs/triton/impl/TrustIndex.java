@@ -0,0 +1,244 @@
+/*
+* Copyright (C) 2021 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package be.nabu.libs.triton.impl;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyStoreException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import javax.security.auth.x500.X500Principal;
+
+import be.nabu.utils.security.BCSecurityUtils;
+import be.nabu.utils.security.KeyStoreHandler;
+
+/**
+ * An index on the certificates in a keystore so we can answer trust questions without scanning the keystore.
+ * Certificates are indexed by their SHA-256 fingerprint, by subject and by subject key identifier.
+ * The result of a full chain validation is remembered until the first certificate involved expires, for at most the 1000 most recently used chains.
+ * An index belongs to one keystore instance, when the keystore changes on disk a new instance (and thus a new index) is created.
+ */
+public class TrustIndex {
+	
+	private static final String SUBJECT_KEY_IDENTIFIER = "2.5.29.14";
+	private static final String AUTHORITY_KEY_IDENTIFIER = "2.5.29.35";
+	private static final char [] HEX = "0123456789abcdef".toCharArray();
+	
+	// how long we remember that a chain is not trusted
+	private static long untrustedTimeout = Long.parseLong(System.getProperty("triton.trust.untrustedTimeout", "300000"));
+	// how many validation results we remember, anyone can present a new chain so this must be bounded
+	private static int maxValidations = Integer.parseInt(System.getProperty("triton.trust.maxValidations", "1000"));
+	
+	private static Map<KeyStoreHandler, TrustIndex> indexes = new WeakHashMap<KeyStoreHandler, TrustIndex>();
+	
+	// the trusted certificates by fingerprint, the value is the alias in the keystore
+	private Map<String, String> trusted = new HashMap<String, String>();
+	// the certificates of our own private keys by fingerprint
+	private Set<String> owned = new LinkedHashSet<String>();
+	// the trusted certificates that can act as an issuer
+	private Map<X500Principal, List<X509Certificate>> bySubject = new HashMap<X500Principal, List<X509Certificate>>();
+	private Map<String, X509Certificate> byKeyIdentifier = new HashMap<String, X509Certificate>();
+	// the remembered validation results by fingerprint of the chain
+	private Map<String, Validation> validations = Collections.synchronizedMap(new LinkedHashMap<String, Validation>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Validation> eldest) {
+			return size() > maxValidations;
+		}
+	});
+	
+	private static class Validation {
+		private boolean trusted;
+		private long expires;
+		Validation(boolean trusted, long expires) {
+			this.trusted = trusted;
+			this.expires = expires;
+		}
+	}
+	
+	public static TrustIndex getIndex(KeyStoreHandler keystore) {
+		synchronized(indexes) {
+			TrustIndex index = indexes.get(keystore);
+			if (index == null) {
+				try {
+					index = new TrustIndex(keystore);
+				}
+				catch (KeyStoreException e) {
+					throw new RuntimeException(e);
+				}
+				indexes.put(keystore, index);
+			}
+			return index;
+		}
+	}
+	
+	private TrustIndex(KeyStoreHandler keystore) throws KeyStoreException {
+		for (Map.Entry<String, X509Certificate> entry : keystore.getCertificates().entrySet()) {
+			X509Certificate certificate = entry.getValue();
+			trusted.put(fingerprint(certificate), entry.getKey());
+			List<X509Certificate> list = bySubject.get(certificate.getSubjectX500Principal());
+			if (list == null) {
+				list = new ArrayList<X509Certificate>();
+				bySubject.put(certificate.getSubjectX500Principal(), list);
+			}
+			list.add(certificate);
+			String keyIdentifier = getKeyIdentifier(certificate, SUBJECT_KEY_IDENTIFIER);
+			if (keyIdentifier != null) {
+				byKeyIdentifier.put(keyIdentifier, certificate);
+			}
+		}
+		for (X509Certificate [] chain : keystore.getPrivateKeys().values()) {
+			if (chain != null && chain.length > 0) {
+				owned.add(fingerprint(chain[0]));
+			}
+		}
+	}
+	
+	/**
+	 * Returns the alias of the certificate if it is explicitly trusted, null otherwise
+	 */
+	public String getTrustedAlias(X509Certificate certificate) {
+		return trusted.get(fingerprint(certificate));
+	}
+	
+	public boolean isTrusted(X509Certificate [] chain) throws GeneralSecurityException {
+		String fingerprint = fingerprint(chain[0]);
+		// if we trust the certificate itself or it is one of our own, we good
+		if (trusted.containsKey(fingerprint) || owned.contains(fingerprint)) {
+			return true;
+		}
+		String key = fingerprint;
+		for (int i = 1; i < chain.length; i++) {
+			key += ":" + fingerprint(chain[i]);
+		}
+		long now = System.currentTimeMillis();
+		Validation validation = validations.get(key);
+		if (validation != null && validation.expires > now) {
+			return validation.trusted;
+		}
+		else if (validation != null) {
+			validations.remove(key);
+		}
+		List<X509Certificate> anchors = getAnchors(chain);
+		// without anything to validate against the answer is cheap, no need to remember it
+		if (anchors.isEmpty()) {
+			return false;
+		}
+		boolean result = BCSecurityUtils.validateCertificateChain(chain, anchors.toArray(new X509Certificate[0])) != null;
+		long expires = now + untrustedTimeout;
+		// a positive result is valid as long as none of the certificates involved expire
+		if (result) {
+			expires = Long.MAX_VALUE;
+			for (X509Certificate certificate : chain) {
+				expires = Math.min(expires, certificate.getNotAfter().getTime());
+			}
+			for (X509Certificate anchor : anchors) {
+				expires = Math.min(expires, anchor.getNotAfter().getTime());
+			}
+		}
+		validations.put(key, new Validation(result, expires));
+		return result;
+	}
+	
+	// only the trusted certificates that could have issued something in the chain are relevant for the validation
+	private List<X509Certificate> getAnchors(X509Certificate [] chain) {
+		Set<X509Certificate> anchors = new LinkedHashSet<X509Certificate>();
+		for (X509Certificate certificate : chain) {
+			String keyIdentifier = getKeyIdentifier(certificate, AUTHORITY_KEY_IDENTIFIER);
+			X509Certificate issuer = keyIdentifier == null ? null : byKeyIdentifier.get(keyIdentifier);
+			if (issuer != null) {
+				anchors.add(issuer);
+			}
+			List<X509Certificate> list = bySubject.get(certificate.getIssuerX500Principal());
+			if (list != null) {
+				anchors.addAll(list);
+			}
+		}
+		return anchors.isEmpty() ? Collections.<X509Certificate>emptyList() : new ArrayList<X509Certificate>(anchors);
+	}
+	
+	public static String fingerprint(X509Certificate certificate) {
+		try {
+			byte [] digest = MessageDigest.getInstance("SHA-256").digest(certificate.getEncoded());
+			return toHex(digest, 0, digest.length);
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+		catch (CertificateEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	// the extension value is an octet string wrapping the actual extension
+	// the subject key identifier is itself an octet string, the authority key identifier is a sequence where the key identifier is the optional implicitly tagged [0]
+	private static String getKeyIdentifier(X509Certificate certificate, String oid) {
+		byte [] value = certificate.getExtensionValue(oid);
+		if (value == null) {
+			return null;
+		}
+		int [] position = new int[] { 0 };
+		if (value[position[0]++] != 0x04) {
+			return null;
+		}
+		readLength(value, position);
+		int tag = value[position[0]++] & 0xff;
+		int length = readLength(value, position);
+		if (SUBJECT_KEY_IDENTIFIER.equals(oid)) {
+			return tag == 0x04 ? toHex(value, position[0], length) : null;
+		}
+		if (tag != 0x30 || position[0] >= value.length || (value[position[0]] & 0xff) != 0x80) {
+			return null;
+		}
+		position[0]++;
+		length = readLength(value, position);
+		return toHex(value, position[0], length);
+	}
+	
+	private static int readLength(byte [] value, int [] position) {
+		int length = value[position[0]++] & 0xff;
+		if ((length & 0x80) != 0) {
+			int bytes = length & 0x7f;
+			length = 0;
+			for (int i = 0; i < bytes; i++) {
+				length = (length << 8) | (value[position[0]++] & 0xff);
+			}
+		}
+		return length;
+	}
+	
+	private static String toHex(byte [] bytes, int offset, int length) {
+		StringBuilder builder = new StringBuilder();
+		for (int i = offset; i < offset + length && i < bytes.length; i++) {
+			builder.append(HEX[(bytes[i] >> 4) & 0xf]).append(HEX[bytes[i] & 0xf]);
+		}
+		return builder.toString();
+	}
+}
@@ -0,0 +1,31 @@
+/*
+* Copyright (C) 2021 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.triton.impl;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * An output that can take data straight from a file channel, for a socket channel this means the kernel copies the data without it ever passing through the jvm.
+ */
+public interface ZeroCopyOutput {
+	/**
+	 * Returns the amount of bytes transferred, which is always the full count unless the file is shorter
+	 */
+	public long transferFrom(FileChannel file, long position, long count) throws IOException;
+}